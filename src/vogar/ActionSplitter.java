@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vogar;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import vogar.util.Strings;
+
+/**
+ * Splits actions that run many tests into smaller actions that can run in
+ * parallel. A package action becomes an action for each of its classes, and
+ * a class with many test methods becomes several actions that each run some
+ * of its methods, like {@code java.util.FooTest#testA,testB}. The tests keep
+ * their outcome names, so it doesn't matter which action runs them.
+ *
+ * <p>Classes are found on the host's copy of the classpath. They're loaded to
+ * find their test methods, but never initialized.
+ */
+public final class ActionSplitter {
+    private static final String DOT_CLASS = ".class";
+
+    private final Log log;
+    private final Classpath classpath;
+    private final Classpath buildClasspath;
+    private final int methodsPerAction;
+
+    /** the top-level classes on the classpath; created lazily */
+    private TreeSet<String> classNames;
+    /** loads classes to inspect, without initializing them; created lazily */
+    private ClassLoader classLoader;
+
+    /**
+     * @param buildClasspath classes that the classes on {@code classpath}
+     *     depend on, like the Android framework, but that aren't split.
+     * @param methodsPerAction the most test methods of one class to run in a
+     *     single action.
+     */
+    public ActionSplitter(Log log, Classpath classpath, Classpath buildClasspath,
+            int methodsPerAction) {
+        this.log = log;
+        this.classpath = classpath;
+        this.buildClasspath = buildClasspath;
+        this.methodsPerAction = methodsPerAction;
+    }
+
+    /**
+     * Returns the actions that together run the same tests as {@code action}.
+     * This returns {@code action} itself if it can't be split, such as when
+     * it's built from source or its classes aren't on the classpath.
+     */
+    public synchronized List<Action> split(Action action) {
+        String classOrPackageName = action.getTargetClass();
+        if (action.getJavaFile() != null || classOrPackageName == null
+                || classOrPackageName.contains("#")) {
+            return Collections.singletonList(action);
+        }
+
+        List<String> classes = findClasses(classOrPackageName);
+        List<Action> result = new ArrayList<Action>();
+        for (String className : classes) {
+            List<String> methods = getTestMethods(className);
+            if (methods == null || methods.size() <= methodsPerAction) {
+                result.add(new Action(className, className, null, null, null));
+                continue;
+            }
+
+            int actionCount = (methods.size() + methodsPerAction - 1) / methodsPerAction;
+            for (int i = 0; i < actionCount; i++) {
+                List<String> someMethods = methods.subList(i * methodsPerAction,
+                        Math.min((i + 1) * methodsPerAction, methods.size()));
+                result.add(new Action(className + "#" + (i + 1) + "of" + actionCount,
+                        className + "#" + Strings.join(someMethods, ","), null, null, null));
+            }
+        }
+
+        if (result.size() <= 1) {
+            return Collections.singletonList(action);
+        }
+        log.verbose("split " + action + " into " + result.size() + " actions");
+        return result;
+    }
+
+    /**
+     * Returns the classes to run for {@code classOrPackageName}, or an empty
+     * list if it's neither a class nor a package on the classpath. Like
+     * {@code TestRunner}, this includes subpackages and leaves out AllTests
+     * classes, which would run the package's tests again.
+     */
+    private List<String> findClasses(String classOrPackageName) {
+        TreeSet<String> classNames = getClassNames();
+        if (classNames.contains(classOrPackageName)) {
+            return Collections.singletonList(classOrPackageName);
+        }
+
+        List<String> result = new ArrayList<String>();
+        String prefix = classOrPackageName + ".";
+        for (String className : classNames.subSet(prefix, prefix + Character.MAX_VALUE)) {
+            result.add(className);
+        }
+        if (result.size() > 1) {
+            for (Iterator<String> i = result.iterator(); i.hasNext(); ) {
+                if (i.next().endsWith(".AllTests")) {
+                    i.remove();
+                }
+            }
+        }
+        return result;
+    }
+
+    private TreeSet<String> getClassNames() {
+        if (classNames == null) {
+            classNames = new TreeSet<String>();
+            for (File file : classpath.getElements()) {
+                try {
+                    if (file.isDirectory()) {
+                        addClassNames(file, "");
+                    } else if (file.isFile()) {
+                        addClassNames(file);
+                    }
+                } catch (IOException e) {
+                    log.warn("Failed to read classes in " + file + ": " + e);
+                }
+            }
+        }
+        return classNames;
+    }
+
+    private void addClassNames(File directory, String packagePrefix) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (file.isDirectory()) {
+                addClassNames(file, packagePrefix + name + ".");
+            } else if (isTopLevelClass(name)) {
+                classNames.add(packagePrefix + toClassName(name));
+            }
+        }
+    }
+
+    private void addClassNames(File jar) throws IOException {
+        ZipFile zipFile = new ZipFile(jar);
+        try {
+            for (Enumeration<? extends ZipEntry> e = zipFile.entries(); e.hasMoreElements(); ) {
+                String name = e.nextElement().getName();
+                if (isTopLevelClass(name)) {
+                    classNames.add(toClassName(name).replace('/', '.'));
+                }
+            }
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    private static boolean isTopLevelClass(String fileName) {
+        return fileName.endsWith(DOT_CLASS) && fileName.indexOf('$') < 0;
+    }
+
+    private static String toClassName(String fileName) {
+        return fileName.substring(0, fileName.length() - DOT_CLASS.length());
+    }
+
+    /**
+     * Returns the sorted names of the test methods of {@code className}, or
+     * null if its tests can't be run one method at a time. That's the case
+     * for suites, for JUnit 4 classes that name their own runner, and for
+     * classes that can't be loaded on the host.
+     */
+    List<String> getTestMethods(String className) {
+        Class<?> testClass;
+        Class<?> testCaseClass;
+        Class<? extends Annotation> testAnnotation;
+        try {
+            ClassLoader classLoader = getClassLoader();
+            testClass = Class.forName(className, false, classLoader);
+            testCaseClass = loadOrNull("junit.framework.TestCase");
+            Class<?> testAnnotationClass = loadOrNull("org.junit.Test");
+            testAnnotation = testAnnotationClass != null
+                    ? testAnnotationClass.asSubclass(Annotation.class)
+                    : null;
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (LinkageError e) {
+            log.verbose("not splitting " + className + ": " + e);
+            return null;
+        }
+
+        try {
+            if (Modifier.isAbstract(testClass.getModifiers())) {
+                return null;
+            }
+            try {
+                testClass.getMethod("suite");
+                return null;
+            } catch (NoSuchMethodException expected) {
+            }
+
+            Set<String> result = new TreeSet<String>();
+            if (testCaseClass != null && testCaseClass.isAssignableFrom(testClass)) {
+                for (Method m : testClass.getMethods()) {
+                    if (m.getName().startsWith("test") && m.getParameterTypes().length == 0) {
+                        result.add(m.getName());
+                    }
+                }
+            } else if (testAnnotation != null) {
+                for (Annotation a : testClass.getAnnotations()) {
+                    if (a.annotationType().getName().equals("org.junit.runner.RunWith")) {
+                        return null;
+                    }
+                }
+                for (Method m : testClass.getMethods()) {
+                    if (m.isAnnotationPresent(testAnnotation)) {
+                        result.add(m.getName());
+                    }
+                }
+            }
+            return new ArrayList<String>(result);
+        } catch (LinkageError e) {
+            log.verbose("not splitting " + className + ": " + e);
+            return null;
+        }
+    }
+
+    private Class<?> loadOrNull(String className) {
+        try {
+            return Class.forName(className, false, getClassLoader());
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+    }
+
+    private ClassLoader getClassLoader() {
+        if (classLoader == null) {
+            List<URL> urls = new ArrayList<URL>();
+            try {
+                for (File file : classpath.getElements()) {
+                    urls.add(file.toURI().toURL());
+                }
+                for (File file : buildClasspath.getElements()) {
+                    urls.add(file.toURI().toURL());
+                }
+            } catch (MalformedURLException e) {
+                throw new RuntimeException(e);
+            }
+            // don't delegate to vogar's own classes; the action's classes bring their own JUnit
+            classLoader = new URLClassLoader(urls.toArray(new URL[urls.size()]), null);
+        }
+        return classLoader;
+    }
+}
@@ -62,6 +62,13 @@ public final class AnnotatedOutcome {
         return outcome.getResultValue(expectation);
     }
 
+    /**
+     * Returns the previous outcomes of this test, oldest first.
+     */
+    public List<Outcome> getPreviousOutcomes() {
+        return new ArrayList<Outcome>(previousOutcomes.values());
+    }
+
     public List<ResultValue> getPreviousResultValues() {
         List<ResultValue> previousResultValues = new ArrayList<ResultValue>();
         for (Outcome previousOutcome : previousOutcomes.values()) {
@@ -98,6 +105,31 @@ public final class AnnotatedOutcome {
         return previousResultValues.get(previousResultValues.size() - 1) != getResultValue();
     }
 
+    /**
+     * Returns how often the previous outcomes of this test changed in result
+     * value from one run to the next.
+     */
+    public double getFlakiness() {
+        return flakiness(getPreviousResultValues());
+    }
+
+    /**
+     * Returns the fraction of consecutive result values that differ: 0 if
+     * they're all the same and 1 if every one differs from the last.
+     */
+    static double flakiness(List<ResultValue> resultValues) {
+        if (resultValues.size() < 2) {
+            return 0;
+        }
+        int changes = 0;
+        for (int i = 1; i < resultValues.size(); i++) {
+            if (resultValues.get(i) != resultValues.get(i - 1)) {
+                changes++;
+            }
+        }
+        return (double) changes / (resultValues.size() - 1);
+    }
+
     /**
      * Returns a Long representing the time the outcome was last run. Returns {@code defaultValue}
      * if the outcome is not known to have run before.
@@ -0,0 +1,409 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vogar;
+
+import com.google.common.io.ByteStreams;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import vogar.commands.Command;
+import vogar.util.DeterministicJar;
+import vogar.util.IoUtils;
+import vogar.util.Strings;
+
+/**
+ * Caches the classes compiled for each action across runs, so actions whose
+ * sources haven't changed skip javac.
+ *
+ * <p>Like ccache, lookups happen in two steps. An action's primary key hashes
+ * everything known before compiling: its source file, the classpath jars,
+ * the javac version and arguments. The manifest stored under that key lists
+ * the sourcepath files that earlier compiles pulled in along with their
+ * hashes. If every file in a manifest entry still has the recorded hash, the
+ * entry's classes are reused.
+ *
+ * <p>Only actions whose generated classes can all be traced back to a source
+ * file are cached. Classpath directories can't be hashed cheaply so they
+ * disable the cache.
+ */
+public final class BuildCache {
+    /** Older manifest entries, typically for stale dependencies, are dropped. */
+    private static final int MAX_MANIFEST_ENTRIES = 8;
+    private static final String NOT_CACHED = "";
+
+    private final Log log;
+    private final FileHasher fileHasher;
+    private final File manifestsDir;
+    private final File classesDir;
+    private final String javac;
+    private final List<String> javacArgs;
+    private final boolean debug;
+    private final Classpath classpath;
+    private final Classpath buildClasspath;
+    private final List<File> sourcepath;
+
+    /** Hashes the compile environment, or is null if it can't be cached. */
+    private String environmentKey;
+    private boolean environmentHashed;
+
+    /** The result key of each action that was looked up, or NOT_CACHED. */
+    private final ConcurrentMap<Action, String> lookups = new ConcurrentHashMap<Action, String>();
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+
+    public BuildCache(Log log, FileHasher fileHasher, File directory, String javac, List<String> javacArgs,
+            boolean debug, Classpath classpath, Classpath buildClasspath, List<File> sourcepath) {
+        this.log = log;
+        this.fileHasher = fileHasher;
+        this.manifestsDir = new File(directory, "manifests");
+        this.classesDir = new File(directory, "classes");
+        this.javac = javac;
+        this.javacArgs = javacArgs;
+        this.debug = debug;
+        this.classpath = classpath;
+        this.buildClasspath = buildClasspath;
+        this.sourcepath = sourcepath;
+    }
+
+    public int getHits() {
+        return hits.get();
+    }
+
+    public int getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns true if compiled classes for {@code action} are in the cache.
+     */
+    public boolean isCached(Action action) {
+        String resultKey = lookups.get(action);
+        if (resultKey == null) {
+            String primaryKey = primaryKey(action);
+            if (primaryKey == null) {
+                return false;
+            }
+            resultKey = findResult(primaryKey);
+            if (lookups.putIfAbsent(action, resultKey) == null) {
+                (!resultKey.equals(NOT_CACHED) ? hits : misses).incrementAndGet();
+            }
+        }
+        return !resultKey.equals(NOT_CACHED);
+    }
+
+    /**
+     * Extracts the cached classes for {@code action} to {@code destination}.
+     * Returns false if there are no cached classes to extract.
+     */
+    public boolean restore(Action action, File destination) {
+        if (!isCached(action)) {
+            return false;
+        }
+        File jar = new File(classesDir, lookups.get(action) + ".jar");
+        try {
+            extract(jar, destination);
+            log.verbose("restored classes of " + action + " from " + jar);
+            return true;
+        } catch (IOException e) {
+            log.info("Failed to restore classes of " + action + " from " + jar, e);
+            return false;
+        }
+    }
+
+    /**
+     * Stores the classes in {@code compiledClassesDir}, which were just
+     * compiled for {@code action}.
+     */
+    public void insert(Action action, File compiledClassesDir) {
+        String primaryKey = primaryKey(action);
+        if (primaryKey == null) {
+            return;
+        }
+
+        try {
+            Map<String, String> dependencies = findDependencies(action, compiledClassesDir);
+            if (dependencies == null) {
+                return;
+            }
+            StringBuilder entry = new StringBuilder();
+            for (Map.Entry<String, String> dependency : dependencies.entrySet()) {
+                entry.append(dependency.getValue()).append(' ')
+                        .append(dependency.getKey()).append('\n');
+            }
+            String resultKey = Md5Cache.md5(primaryKey + "\n" + entry);
+
+            IoUtils.safeMkdirs(classesDir);
+            File jar = new File(classesDir, resultKey + ".jar");
+            File temporary = File.createTempFile(resultKey, ".tmp", classesDir);
+            DeterministicJar.create(temporary, compiledClassesDir);
+            moveIntoPlace(temporary, jar);
+
+            List<String> entries = readManifest(primaryKey);
+            entries.remove(resultKey + "\n" + entry);
+            entries.add(0, resultKey + "\n" + entry);
+            while (entries.size() > MAX_MANIFEST_ENTRIES) {
+                entries.remove(entries.size() - 1);
+            }
+            writeManifest(primaryKey, entries);
+            log.verbose("cached classes of " + action + " in " + jar);
+        } catch (IOException e) {
+            log.info("Failed to cache classes of " + action, e);
+        }
+    }
+
+    /**
+     * Returns the key of the first manifest entry whose dependencies are
+     * unchanged, or NOT_CACHED.
+     */
+    private String findResult(String primaryKey) {
+        for (String entry : readManifest(primaryKey)) {
+            String[] lines = entry.split("\n");
+            boolean unchanged = true;
+            for (int i = 1; i < lines.length && unchanged; i++) {
+                int space = lines[i].indexOf(' ');
+                File file = new File(lines[i].substring(space + 1));
+                unchanged = file.isFile()
+                        && lines[i].substring(0, space).equals(fileHasher.hash(file));
+            }
+            if (unchanged && new File(classesDir, lines[0] + ".jar").exists()) {
+                return lines[0];
+            }
+        }
+        return NOT_CACHED;
+    }
+
+    /**
+     * Returns the hash of each source file that {@code compiledClassesDir}'s
+     * classes were compiled from, keyed by path. Returns null if a class's
+     * source file can't be found.
+     */
+    private Map<String, String> findDependencies(Action action, File compiledClassesDir)
+            throws IOException {
+        List<File> sourceDirs = new ArrayList<File>();
+        if (action.getSourcePath() != null) {
+            sourceDirs.add(action.getSourcePath());
+        }
+        sourceDirs.addAll(sourcepath);
+
+        Map<String, String> result = new TreeMap<String, String>();
+        File javaFile = action.getJavaFile().getCanonicalFile();
+        result.put(javaFile.getPath(), fileHasher.hash(javaFile));
+        for (String className : classNames(compiledClassesDir, "")) {
+            // nested classes come from their outermost class's source file
+            int dollar = className.indexOf('$');
+            String sourceName = (dollar == -1 ? className : className.substring(0, dollar))
+                    + ".java";
+            File source = null;
+            if (javaFile.getPath().endsWith(File.separator + sourceName)) {
+                source = javaFile;
+            }
+            for (int i = 0; i < sourceDirs.size() && source == null; i++) {
+                File candidate = new File(sourceDirs.get(i), sourceName);
+                if (candidate.isFile()) {
+                    source = candidate.getCanonicalFile();
+                }
+            }
+            if (source == null) {
+                log.verbose("not caching " + action + "; no source file for " + className);
+                return null;
+            }
+            if (!result.containsKey(source.getPath())) {
+                result.put(source.getPath(), fileHasher.hash(source));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the names, like "java/util/Map$Entry", of the classes in {@code
+     * directory}.
+     */
+    private List<String> classNames(File directory, String prefix) {
+        List<String> result = new ArrayList<String>();
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return result;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                result.addAll(classNames(file, prefix + file.getName() + "/"));
+            } else if (file.getName().endsWith(".class")) {
+                String name = file.getName();
+                result.add(prefix + name.substring(0, name.length() - ".class".length()));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the key of everything known about {@code action} before it's
+     * compiled, or null if its classes can't be cached.
+     */
+    private String primaryKey(Action action) {
+        String environmentKey = environmentKey();
+        if (environmentKey == null || action.getJavaFile() == null) {
+            return null;
+        }
+        return Md5Cache.md5(environmentKey
+                + "\naction " + action.getName()
+                + "\nsource " + action.getJavaFile().getAbsolutePath()
+                + " " + fileHasher.hash(action.getJavaFile())
+                + "\nsourcepath " + action.getSourcePath());
+    }
+
+    private synchronized String environmentKey() {
+        if (environmentHashed) {
+            return environmentKey;
+        }
+        environmentHashed = true;
+
+        StringBuilder key = new StringBuilder();
+        try {
+            key.append("javac ").append(Strings.join(
+                    new Command.Builder(log).args(javac, "-version").execute(), " "));
+        } catch (RuntimeException e) {
+            log.info("Build cache disabled: failed to get the javac version", e);
+            return null;
+        }
+        key.append("\njava ").append(System.getProperty("java.version"));
+        key.append("\njavacArgs ").append(Strings.join(javacArgs, " "));
+        key.append("\ndebug ").append(debug);
+        key.append("\nsourcepath ").append(Classpath.of(sourcepath));
+        if (!appendClasspath(key, "classpath", classpath)
+                || !appendClasspath(key, "buildClasspath", buildClasspath)) {
+            return null;
+        }
+        environmentKey = key.toString();
+        return environmentKey;
+    }
+
+    private boolean appendClasspath(StringBuilder key, String name, Classpath path) {
+        for (File element : path.getElements()) {
+            if (!element.isFile()) {
+                log.verbose("build cache disabled: " + element + " is not a jar file");
+                return false;
+            }
+            key.append("\n").append(name).append(" ").append(element.getAbsolutePath())
+                    .append(" ").append(fileHasher.hash(element));
+        }
+        return true;
+    }
+
+    /**
+     * Returns the manifest entries for {@code primaryKey}, most recent first.
+     * Each entry is its result key on the first line followed by one line per
+     * dependency.
+     */
+    private List<String> readManifest(String primaryKey) {
+        List<String> entries = new ArrayList<String>();
+        File manifest = new File(manifestsDir, primaryKey);
+        if (!manifest.exists()) {
+            return entries;
+        }
+        try {
+            BufferedReader in = new BufferedReader(new FileReader(manifest));
+            try {
+                StringBuilder entry = null;
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.startsWith("result ")) {
+                        if (entry != null) {
+                            entries.add(entry.toString());
+                        }
+                        entry = new StringBuilder().append(line.substring("result ".length()))
+                                .append('\n');
+                    } else if (entry != null) {
+                        entry.append(line).append('\n');
+                    }
+                }
+                if (entry != null) {
+                    entries.add(entry.toString());
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            log.info("Failed to read build cache manifest " + manifest, e);
+            entries.clear();
+        }
+        return entries;
+    }
+
+    private void writeManifest(String primaryKey, List<String> entries) throws IOException {
+        IoUtils.safeMkdirs(manifestsDir);
+        File temporary = File.createTempFile(primaryKey, ".tmp", manifestsDir);
+        Writer out = new FileWriter(temporary);
+        try {
+            for (String entry : entries) {
+                out.write("result " + entry);
+            }
+        } finally {
+            out.close();
+        }
+        moveIntoPlace(temporary, new File(manifestsDir, primaryKey));
+    }
+
+    /**
+     * Renames {@code temporary} to {@code file}, so that concurrent runs never
+     * see a partially-written file.
+     */
+    private void moveIntoPlace(File temporary, File file) throws IOException {
+        if (!temporary.renameTo(file)) {
+            temporary.delete();
+            throw new IOException("Failed to move " + temporary + " to " + file);
+        }
+    }
+
+    private void extract(File jar, File destination) throws IOException {
+        ZipInputStream in = new ZipInputStream(new BufferedInputStream(new FileInputStream(jar)));
+        try {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                File file = new File(destination, entry.getName());
+                if (entry.isDirectory()) {
+                    IoUtils.safeMkdirs(file);
+                    continue;
+                }
+                IoUtils.safeMkdirs(file.getParentFile());
+                OutputStream out = new FileOutputStream(file);
+                try {
+                    ByteStreams.copy(in, out);
+                } finally {
+                    out.close();
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -19,6 +19,7 @@ package vogar;
 import com.google.common.collect.Lists;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -44,6 +45,7 @@ public abstract class Console implements Log {
     private boolean useColor;
     private boolean ansi;
     private boolean verbose;
+    private int slowestTestCount;
     protected String indent;
     protected CurrentLine currentLine = CurrentLine.NEW;
     protected final MarkResetConsole out = new MarkResetConsole(System.out);
@@ -72,6 +74,13 @@ public abstract class Console implements Log {
         this.verbose = verbose;
     }
 
+    /**
+     * Sets the number of slowest tests to list when summarizing outcomes.
+     */
+    public void setSlowestTestCount(int slowestTestCount) {
+        this.slowestTestCount = slowestTestCount;
+    }
+
     public boolean isVerbose() {
         return verbose;
     }
@@ -269,6 +278,39 @@ public abstract class Console implements Log {
                 out.println(skip);
             }
         }
+        summarizeSlowestOutcomes(annotatedOutcomes);
+    }
+
+    private void summarizeSlowestOutcomes(Collection<AnnotatedOutcome> annotatedOutcomes) {
+        List<Outcome> timed = Lists.newArrayList();
+        for (AnnotatedOutcome annotatedOutcome : annotatedOutcomes) {
+            if (annotatedOutcome.getOutcome().getDurationMillis() > 0) {
+                timed.add(annotatedOutcome.getOutcome());
+            }
+        }
+        if (slowestTestCount == 0 || timed.isEmpty()) {
+            return;
+        }
+
+        Collections.sort(timed, new Comparator<Outcome>() {
+            @Override public int compare(Outcome a, Outcome b) {
+                long aMillis = a.getDurationMillis();
+                long bMillis = b.getDurationMillis();
+                return aMillis > bMillis ? -1 : (aMillis < bMillis ? 1 : 0);
+            }
+        });
+        out.println("Slowest tests:");
+        for (Outcome outcome : timed.subList(0, Math.min(slowestTestCount, timed.size()))) {
+            StringBuilder sb = new StringBuilder();
+            sb.append(indent);
+            sb.append(String.format("%.3fs ", outcome.getDurationMillis() / 1000.0));
+            Long cpuNanos = outcome.getMetrics().get(Outcome.CPU_NANOS);
+            if (cpuNanos != null) {
+                sb.append(String.format("(%.3fs CPU) ", cpuNanos / 1000000000.0));
+            }
+            sb.append(outcome.getName());
+            out.println(sb.toString());
+        }
     }
 
     private String formatElapsedTime(long elapsedTime) {
@@ -400,7 +442,7 @@ public abstract class Console implements Log {
     /**
      * Returns an array containing the lines of the given text.
      */
-    private String[] messageToLines(String message) {
+    private static String[] messageToLines(String message) {
         // pass Integer.MAX_VALUE so split doesn't trim trailing empty strings.
         return message.split("\r\n|\r|\n", Integer.MAX_VALUE);
     }
@@ -457,6 +499,91 @@ public abstract class Console implements Log {
         }
     }
 
+    /**
+     * This console prints output as it's emitted, prefixing each line with the
+     * name of the outcome that emitted it. It supports multiple concurrent
+     * actions. Output is written a line at a time so that lines from
+     * different outcomes don't interleave.
+     */
+    static class ConcurrentStreamingConsole extends Console {
+        /** Output that hasn't been terminated by a newline yet. */
+        private final Map<String, StringBuilder> partialLineByOutcome
+                = new HashMap<String, StringBuilder>();
+
+        @Override public synchronized void action(String name) {
+            newLine();
+            out.println("Action " + name);
+        }
+
+        @Override public synchronized void streamOutput(String outcomeName, String output) {
+            StringBuilder partialLine = partialLineByOutcome.get(outcomeName);
+            if (partialLine == null) {
+                partialLine = new StringBuilder();
+                partialLineByOutcome.put(outcomeName, partialLine);
+            }
+            partialLine.append(output);
+
+            int end;
+            while ((end = indexOfLineEnd(partialLine)) != -1) {
+                int next = end + 1;
+                if (partialLine.charAt(end) == '\r') {
+                    if (next == partialLine.length()) {
+                        break; // wait to see if the next output starts with '\n'
+                    } else if (partialLine.charAt(next) == '\n') {
+                        next++;
+                    }
+                }
+                printLine(outcomeName, partialLine.substring(0, end));
+                partialLine.delete(0, next);
+            }
+        }
+
+        /**
+         * Prints output that isn't associated with an outcome. It's printed
+         * right away, partial lines included, since no outcome's result would
+         * flush it.
+         */
+        @Override public synchronized void streamOutput(CharSequence streamedOutput) {
+            String[] lines = messageToLines(streamedOutput.toString());
+            // a trailing line end doesn't start another line
+            int count = lines[lines.length - 1].isEmpty() ? lines.length - 1 : lines.length;
+            for (int i = 0; i < count; i++) {
+                printLine("", lines[i]);
+            }
+        }
+
+        @Override protected synchronized void flushBufferedOutput(String outcomeName) {
+            StringBuilder partialLine = partialLineByOutcome.remove(outcomeName);
+            if (partialLine == null || partialLine.length() == 0) {
+                return;
+            }
+            int length = partialLine.length();
+            if (partialLine.charAt(length - 1) == '\r') {
+                partialLine.setLength(length - 1);
+            }
+            printLine(outcomeName, partialLine.toString());
+        }
+
+        private void printLine(String outcomeName, String line) {
+            newLine();
+            if (outcomeName.isEmpty()) {
+                out.println(indent + line);
+            } else {
+                out.println(indent + "[" + outcomeName + "] " + line);
+            }
+        }
+
+        private int indexOfLineEnd(CharSequence s) {
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == '\n' || c == '\r') {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
     /**
      * This console buffers output, only printing when a result is found. It
      * supports multiple concurrent actions.
@@ -17,14 +17,18 @@
 package vogar;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import vogar.commands.InProcessJavac;
 import vogar.tasks.BuildActionTask;
+import vogar.tasks.CompileBatchTask;
 import vogar.tasks.PrepareTarget;
 import vogar.tasks.PrepareUserDirTask;
 import vogar.tasks.RetrieveFilesTask;
@@ -36,6 +40,9 @@ import vogar.util.TimeUtilities;
  * Compiles, installs, runs and reports on actions.
  */
 public final class Driver {
+    /** The most actions to compile with a single javac. */
+    private static final int MAX_COMPILE_BATCH_SIZE = 100;
+
     private final Run run;
 
     public Driver(Run run) {
@@ -48,6 +55,8 @@ public final class Driver {
 
     private Task prepareTargetTask;
     private Set<Task> installVogarTasks;
+    /** tasks that clean up after all others; these run even if the run stops early */
+    private final Set<Task> shutdownTasks = new HashSet<Task>();
 
     private final Map<String, Action> actions = Collections.synchronizedMap(
             new LinkedHashMap<String, Action>());
@@ -76,6 +85,11 @@ public final class Driver {
         run.console.info("Actions: " + actions.size());
         final long t0 = System.currentTimeMillis();
 
+        if (run.cleanAfter) {
+            shutdownTasks.add(new RmTask(run.rm, run.localTemp));
+            shutdownTasks.add(run.target.rmTask(run.runnerDir));
+        }
+
         prepareTargetTask = new PrepareTarget(run, run.target);
         run.taskQueue.enqueue(prepareTargetTask);
 
@@ -83,32 +97,78 @@ public final class Driver {
         run.taskQueue.enqueueAll(installVogarTasks);
         registerPrerequisites(Collections.singleton(prepareTargetTask), installVogarTasks);
 
+        List<Action> actionsToRun = new ArrayList<Action>();
         for (Action action : actions.values()) {
-            action.setUserDir(new File(run.runnerDir, action.getName()));
             Outcome outcome = outcomes.get(action.getName());
             if (outcome != null) {
+                action.setUserDir(new File(run.runnerDir, action.getName()));
                 addEarlyResult(outcome);
-            } else if (run.expectationStore.get(action.getName()).getResult() == Result.UNSUPPORTED) {
+                continue;
+            }
+            if (getExpectation(action).getResult() == Result.UNSUPPORTED) {
                 addEarlyResult(new Outcome(action.getName(), Result.UNSUPPORTED,
                     "Unsupported according to expectations file"));
-            } else {
-                enqueueActionTasks(action);
+                continue;
             }
+            List<Action> splitActions = run.actionSplitter != null
+                    ? run.actionSplitter.split(action)
+                    : Collections.singletonList(action);
+            for (Action splitAction : splitActions) {
+                splitAction.setUserDir(new File(run.runnerDir, splitAction.getName()));
+                if (splitAction != action
+                        && getExpectation(splitAction).getResult() == Result.UNSUPPORTED) {
+                    addEarlyResult(new Outcome(splitAction.getName(), Result.UNSUPPORTED,
+                        "Unsupported according to expectations file"));
+                } else {
+                    actionsToRun.add(splitAction);
+                }
+            }
+        }
+        if (actionsToRun.size() > actions.size()) {
+            run.console.info("Split into " + actionsToRun.size() + " actions");
         }
 
-        if (run.cleanAfter) {
-            Set<Task> shutdownTasks = new HashSet<Task>();
-            shutdownTasks.add(new RmTask(run.rm, run.localTemp));
-            shutdownTasks.add(run.target.rmTask(run.runnerDir));
-            for (Task task : shutdownTasks) {
-                task.after(run.taskQueue.getTasks());
+        Set<String> failedOrChanged = run.failedFirst
+                ? run.outcomeStore.getFailedOrChangedOutcomeNames()
+                : Collections.<String>emptySet();
+        int firstActions = 0;
+        Map<Action, CompileBatchTask> compileBatches = createCompileBatches(actionsToRun);
+        for (Action action : actionsToRun) {
+            boolean first = mayHaveAnyOutcome(action, failedOrChanged);
+            if (first) {
+                firstActions++;
             }
-            run.taskQueue.enqueueAll(shutdownTasks);
+            enqueueActionTasks(action, compileBatches.get(action), first);
+        }
+        if (firstActions > 0) {
+            run.console.info("Running " + firstActions
+                    + " actions with recently failed or changed outcomes first");
         }
 
+        for (Task task : shutdownTasks) {
+            task.after(run.taskQueue.getTasks());
+        }
+        run.taskQueue.enqueueAll(shutdownTasks);
+
+        run.taskDurationStore.read();
         run.taskQueue.printTasks();
         run.taskQueue.runTasks();
+        if (run.workerPool != null) {
+            run.workerPool.shutdown();
+        }
         run.taskQueue.printProblemTasks();
+        run.taskDurationStore.write();
+
+        if (run.taskQueue.getSkippedTaskCount() > 0) {
+            run.console.info(String.format("Skipped %d tasks after %d unexpected failures.",
+                    run.taskQueue.getSkippedTaskCount(), run.failFast));
+        }
+
+        if (run.buildCache != null
+                && run.buildCache.getHits() + run.buildCache.getMisses() > 0) {
+            run.console.info(String.format("Build cache: %d hits, %d misses.",
+                    run.buildCache.getHits(), run.buildCache.getMisses()));
+        }
 
         if (run.reportPrinter.isReady()) {
             run.console.info("Printing XML Reports... ");
@@ -116,6 +176,10 @@ public final class Driver {
             run.console.info(numFiles + " XML files written.");
         }
 
+        if (run.resourceReport != null) {
+            run.resourceReport.write();
+        }
+
         long t1 = System.currentTimeMillis();
 
         Map<String, AnnotatedOutcome> annotatedOutcomes = run.outcomeStore.read(this.outcomes);
@@ -144,17 +208,101 @@ public final class Driver {
         return failures == 0;
     }
 
-    private void enqueueActionTasks(Action action) {
-        Expectation expectation = run.expectationStore.get(action.getName());
+    /**
+     * Groups actions that share a source path into batches to be compiled
+     * together in this process. Batches are small enough that every allowed
+     * concurrent compile has work to do. Actions in the build cache aren't
+     * compiled at all. Returns an empty map if javac can't run in this process.
+     */
+    private Map<Action, CompileBatchTask> createCompileBatches(List<Action> actions) {
+        Map<Action, CompileBatchTask> result = new HashMap<Action, CompileBatchTask>();
+        if (run.javaHome != null || !InProcessJavac.isAvailable(run.javacArgs)) {
+            return result;
+        }
+
+        Map<File, List<Action>> actionsBySourcePath = new LinkedHashMap<File, List<Action>>();
+        for (Action action : actions) {
+            if (!BuildActionTask.canCompileInBatch(action)
+                    || (run.buildCache != null && run.buildCache.isCached(action))) {
+                continue;
+            }
+            List<Action> sameSourcePath = actionsBySourcePath.get(action.getSourcePath());
+            if (sameSourcePath == null) {
+                sameSourcePath = new ArrayList<Action>();
+                actionsBySourcePath.put(action.getSourcePath(), sameSourcePath);
+            }
+            sameSourcePath.add(action);
+        }
+
+        int batchCount = 0;
+        for (List<Action> sameSourcePath : actionsBySourcePath.values()) {
+            int batchSize = (sameSourcePath.size() + run.maxConcurrentCompiles - 1)
+                    / run.maxConcurrentCompiles;
+            batchSize = Math.min(batchSize, MAX_COMPILE_BATCH_SIZE);
+            for (int i = 0; i < sameSourcePath.size(); i += batchSize) {
+                List<Action> batch = sameSourcePath.subList(
+                        i, Math.min(i + batchSize, sameSourcePath.size()));
+                CompileBatchTask task = new CompileBatchTask(
+                        run, "batch-" + batchCount++, new ArrayList<Action>(batch));
+                run.taskQueue.enqueue(task);
+                for (Action action : batch) {
+                    result.put(action, task);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns true if any of {@code outcomeNames} may be an outcome of
+     * {@code action}: it names the action's class, a test method the action
+     * runs, or a class in the action's package.
+     */
+    private boolean mayHaveAnyOutcome(Action action, Set<String> outcomeNames) {
+        if (outcomeNames.isEmpty()) {
+            return false;
+        }
+        String target = action.getTargetClass() != null
+                ? action.getTargetClass()
+                : action.getName();
+        int hash = target.indexOf('#');
+        if (hash != -1) {
+            String className = target.substring(0, hash);
+            for (String method : target.substring(hash + 1).split(",")) {
+                if (outcomeNames.contains(className + "#" + method)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (outcomeNames.contains(target) || outcomeNames.contains(action.getName())) {
+            return true;
+        }
+        for (String outcomeName : outcomeNames) {
+            if (outcomeName.startsWith(target + "#") || outcomeName.startsWith(target + ".")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param first true to run the action ahead of actions that aren't.
+     */
+    private void enqueueActionTasks(Action action, CompileBatchTask compileBatch,
+            boolean first) {
+        Expectation expectation = getExpectation(action);
         boolean useLargeTimeout = expectation.getTags().contains("large");
         File jar = run.hostJar(action);
 
-        Task build = new BuildActionTask(run, action, this, jar);
+        Task build = new BuildActionTask(run, action, this, jar, compileBatch);
         run.taskQueue.enqueue(build);
 
-        Task prepareUserDir = new PrepareUserDirTask(run.target, action);
+        PrepareUserDirTask prepareUserDir = new PrepareUserDirTask(run.target, action);
         prepareUserDir.after(installVogarTasks);
         run.taskQueue.enqueue(prepareUserDir);
+        Set<Task> pushResources = prepareUserDir.pushResourcesTasks();
+        run.taskQueue.enqueueAll(pushResources);
 
         Set<Task> install = run.mode.installActionTasks(action, jar);
         registerPrerequisites(Collections.singleton(build), install);
@@ -166,7 +314,11 @@ public final class Driver {
                 .afterSuccess(installVogarTasks)
                 .afterSuccess(build)
                 .afterSuccess(prepareUserDir)
+                .afterSuccess(pushResources)
                 .afterSuccess(install);
+        if (first) {
+            execute.runFirst();
+        }
         run.taskQueue.enqueue(execute);
 
         Task retrieveFiles = new RetrieveFilesTask(run, action.getUserDir()).after(execute);
@@ -183,6 +335,16 @@ public final class Driver {
         }
     }
 
+    /**
+     * Returns the expectation for {@code action} as a whole. Actions for
+     * classes on the classpath are looked up by their class, which may be
+     * qualified with test methods that the action's name can't hold.
+     */
+    private Expectation getExpectation(Action action) {
+        boolean onClasspath = action.getJavaFile() == null && action.getTargetClass() != null;
+        return run.expectationStore.get(onClasspath ? action.getTargetClass() : action.getName());
+    }
+
     private void registerPrerequisites(Set<Task> allBefore, Set<Task> allAfter) {
         for (Task task : allAfter) {
             task.afterSuccess(allBefore);
@@ -224,6 +386,10 @@ public final class Driver {
             successes++;
         } else if (resultValue == ResultValue.FAIL) {
             failures++;
+            if (failures == run.failFast) {
+                // let the running actions finish, but don't start any more
+                run.taskQueue.cancel(shutdownTasks);
+            }
         } else { // ResultValue.IGNORE
             skipped++;
         }
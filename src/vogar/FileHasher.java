@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vogar;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+import vogar.util.IoUtils;
+
+/**
+ * Computes the MD5 of files, remembering the result across runs. A file's
+ * hash is reused for as long as its canonical path, size and modification
+ * time are unchanged, so large classpath jars are read once rather than on
+ * every dex, push and build cache lookup.
+ *
+ * <p>Hashes are appended to a file that's shared by all runs that use the
+ * same Vogar directory. Later lines replace earlier lines for the same path.
+ */
+public final class FileHasher {
+    /** Files are hashed this many bytes at a time to bound the mapped address space. */
+    private static final long CHUNK_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Files modified this recently may be modified again without their
+     * modification time changing, so their hashes aren't remembered.
+     */
+    private static final long RACY_MODIFICATION_MILLIS = 2000;
+
+    private static final Pattern ENTRY_PATTERN = Pattern.compile("\\d+ -?\\d+ [0-9a-f]{32}");
+
+    /** The memo file is rewritten when it has this many stale lines per live one. */
+    private static final int COMPACTION_RATIO = 2;
+
+    private final Log log;
+    private final File memoFile;
+
+    /** Entries like "1024 1300000000000 d41d8cd98f00b204e9800998ecf8427e", keyed by path. */
+    private Map<String, String> memo;
+
+    public FileHasher(Log log, File memoFile) {
+        this.log = log;
+        this.memoFile = memoFile;
+    }
+
+    /**
+     * Returns an ASCII hex representation of the MD5 of the content of {@code file}.
+     */
+    public String hash(File file) {
+        String path;
+        long size;
+        long lastModified;
+        try {
+            file = file.getCanonicalFile();
+            path = file.getPath();
+            size = file.length();
+            lastModified = file.lastModified();
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to compute MD5 of \"" + file + "\"", e);
+        }
+        String stat = size + " " + lastModified + " ";
+
+        synchronized (this) {
+            if (memo == null) {
+                memo = readMemo();
+            }
+            String entry = memo.get(path);
+            if (entry != null && entry.startsWith(stat)) {
+                return entry.substring(stat.length());
+            }
+        }
+
+        String md5 = md5(file);
+        if (System.currentTimeMillis() - lastModified < RACY_MODIFICATION_MILLIS) {
+            return md5;
+        }
+        synchronized (this) {
+            memo.put(path, stat + md5);
+            append(path, stat + md5);
+        }
+        return md5;
+    }
+
+    /**
+     * Hashes {@code file} by mapping it into memory, which avoids copying its
+     * contents through a heap buffer.
+     */
+    private static String md5(File file) {
+        try {
+            MessageDigest digester = MessageDigest.getInstance("MD5");
+            FileInputStream in = new FileInputStream(file);
+            try {
+                FileChannel channel = in.getChannel();
+                long size = channel.size();
+                for (long position = 0; position < size; position += CHUNK_SIZE) {
+                    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+                            position, Math.min(CHUNK_SIZE, size - position));
+                    digester.update(buffer);
+                }
+            } finally {
+                in.close();
+            }
+            return Md5Cache.byteArrayToHexString(digester.digest());
+        } catch (Exception cause) {
+            throw new RuntimeException("Unable to compute MD5 of \"" + file + "\"", cause);
+        }
+    }
+
+    private Map<String, String> readMemo() {
+        Map<String, String> result = new HashMap<String, String>();
+        if (!memoFile.exists()) {
+            return result;
+        }
+
+        int lineCount = 0;
+        try {
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(memoFile), "UTF-8"));
+            try {
+                // each line is like "1024 1300000000000 d41d8cd98f00b204e9800998ecf8427e /a.jar"
+                String line;
+                while ((line = in.readLine()) != null) {
+                    lineCount++;
+                    int space = nthIndexOf(line, ' ', 3);
+                    if (space != -1 && isValidEntry(line.substring(0, space))) {
+                        result.put(line.substring(space + 1), line.substring(0, space));
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            log.info("Failed to read file hashes from " + memoFile, e);
+            return new HashMap<String, String>();
+        }
+        log.verbose("read " + result.size() + " file hashes from " + memoFile);
+
+        if (lineCount > (COMPACTION_RATIO + 1) * result.size()) {
+            compact(result);
+        }
+        return result;
+    }
+
+    /**
+     * Rewrites the memo file without stale lines. The new file replaces the
+     * old one atomically so concurrent runs see either.
+     */
+    private void compact(Map<String, String> entries) {
+        try {
+            File temporary = File.createTempFile(memoFile.getName(), ".tmp",
+                    memoFile.getParentFile());
+            Writer out = new OutputStreamWriter(new FileOutputStream(temporary), "UTF-8");
+            try {
+                for (Map.Entry<String, String> entry : entries.entrySet()) {
+                    out.write(entry.getValue() + " " + entry.getKey() + "\n");
+                }
+            } finally {
+                out.close();
+            }
+            if (!temporary.renameTo(memoFile)) {
+                temporary.delete();
+            }
+        } catch (IOException e) {
+            log.verbose("failed to compact " + memoFile + ": " + e);
+        }
+    }
+
+    /**
+     * Appends a single line to the memo file. Each line is written with a
+     * single call so concurrent runs appending to the same file don't
+     * interleave their lines.
+     */
+    private void append(String path, String entry) {
+        try {
+            IoUtils.safeMkdirs(memoFile.getParentFile());
+            FileOutputStream out = new FileOutputStream(memoFile, true);
+            try {
+                out.write((entry + " " + path + "\n").getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            log.verbose("failed to record hash of " + path + ": " + e);
+        }
+    }
+
+    /**
+     * Returns true if {@code entry} has a size, a modification time and an
+     * MD5, so that a corrupt line can't supply a bogus hash.
+     */
+    private static boolean isValidEntry(String entry) {
+        return ENTRY_PATTERN.matcher(entry).matches();
+    }
+
+    private static int nthIndexOf(String s, char c, int n) {
+        int index = -1;
+        for (int i = 0; i < n; i++) {
+            index = s.indexOf(c, index + 1);
+            if (index == -1) {
+                return -1;
+            }
+        }
+        return index;
+    }
+}
@@ -16,56 +16,228 @@
 
 package vogar;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
-import vogar.commands.Command;
-import vogar.commands.Mkdir;
+import java.util.Map;
+import vogar.util.IoUtils;
 
+/**
+ * Caches files in a directory on the host. Files are hard linked into and out
+ * of the cache where the file system allows it, so hits don't copy any data.
+ *
+ * <p>The cache is bounded. Every insert and hit is appended to an access log,
+ * and once the cache outgrows its limit the least recently used files are
+ * deleted.
+ */
 public class HostFileCache implements FileCache {
-    private final File CACHE_ROOT = new File("/tmp/vogar-md5-cache");
+    private static final String ACCESS_LOG = "access.log";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
 
     private final Log log;
-    private final Mkdir mkdir;
+    private final File cacheRoot;
+    private final long maxSizeBytes;
+    private final File accessLog;
 
-    public HostFileCache(Log log, Mkdir mkdir) {
+    public HostFileCache(Log log, File cacheRoot, long maxSizeBytes) {
         this.log = log;
-        this.mkdir = mkdir;
+        this.cacheRoot = cacheRoot;
+        this.maxSizeBytes = maxSizeBytes;
+        this.accessLog = new File(cacheRoot, ACCESS_LOG);
     }
 
-    private void cp(File source, File destination) {
-        List<String> rawResult = new Command.Builder(log).args("cp", source, destination).execute();
-        // A successful copy returns no results.
-        if (!rawResult.isEmpty()) {
-            throw new RuntimeException("Couldn't copy " + source + " to " + destination
-                    + ": " + rawResult.get(0));
+    public void copyFromCache(String key, File destination) {
+        File cachedFile = new File(cacheRoot, key);
+        try {
+            Files.deleteIfExists(destination.toPath());
+            linkOrCopy(cachedFile.toPath(), destination.toPath());
+        } catch (IOException e) {
+            throw new RuntimeException("Couldn't copy " + cachedFile + " to " + destination, e);
         }
+        recordAccess(key);
     }
 
-    private void mv(File source, File destination) {
-        List<String> rawResult = new Command.Builder(log).args("mv", source, destination).execute();
-        // A successful move returns no results.
-        if (!rawResult.isEmpty()) {
-            throw new RuntimeException("Couldn't move " + source + " to " + destination
-                    + ": " + rawResult.get(0));
+    public void copyToCache(File source, String key) {
+        File cachedFile = new File(cacheRoot, key);
+        IoUtils.safeMkdirs(cacheRoot);
+        // Copy it onto the same file system first, then atomically move it into place.
+        // That way, if we fail, we don't leave anything dangerous lying around.
+        File temporary = null;
+        try {
+            temporary = File.createTempFile("insert-", TEMPORARY_SUFFIX, cacheRoot);
+            temporary.delete();
+            linkOrCopy(source.toPath(), temporary.toPath());
+            Files.move(temporary.toPath(), cachedFile.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            if (temporary != null) {
+                temporary.delete();
+            }
+            throw new RuntimeException("Couldn't copy " + source + " to " + cachedFile, e);
         }
+        recordAccess(key);
+        evict();
     }
 
-    public void copyFromCache(String key, File destination) {
-        File cachedFile = new File(CACHE_ROOT, key);
-        cp(cachedFile, destination);
+    public boolean existsInCache(String key) {
+        return new File(cacheRoot, key).exists();
     }
 
-    public void copyToCache(File source, String key) {
-        File cachedFile = new File(CACHE_ROOT, key);
-        mkdir.mkdirs(CACHE_ROOT);
-        // Copy it onto the same file system first, then atomically move it into place.
-        // That way, if we fail, we don't leave anything dangerous lying around.
-        File temporary = new File(cachedFile + ".tmp");
-        cp(source, temporary);
-        mv(temporary, cachedFile);
+    /**
+     * Hard links {@code target} to {@code source}, or copies it if the file
+     * system doesn't support links between them.
+     */
+    private void linkOrCopy(Path source, Path target) throws IOException {
+        try {
+            link(source, target);
+        } catch (IOException e) {
+            Files.copy(source, target);
+        } catch (UnsupportedOperationException e) {
+            Files.copy(source, target);
+        }
     }
 
-    public boolean existsInCache(String key) {
-        return new File(CACHE_ROOT, key).exists();
+    /**
+     * Hard links {@code target} to {@code source}. Tests override this to
+     * simulate file systems without hard links.
+     */
+    void link(Path source, Path target) throws IOException {
+        Files.createLink(target, source);
+    }
+
+    /**
+     * Appends {@code key} to the access log with a single write, so
+     * concurrent runs sharing the cache don't interleave their lines.
+     */
+    private synchronized void recordAccess(String key) {
+        try {
+            FileOutputStream out = new FileOutputStream(accessLog, true);
+            try {
+                out.write((key + "\n").getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            log.verbose("failed to record access to " + key + ": " + e);
+        }
+    }
+
+    /**
+     * Deletes the least recently used files until the cache fits in its
+     * limit, then rewrites the access log without the lines for deleted and
+     * repeated keys.
+     */
+    private synchronized void evict() {
+        File[] files = cacheRoot.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        long size = 0;
+        List<File> cachedFiles = new ArrayList<File>();
+        for (File file : files) {
+            if (!file.getName().equals(ACCESS_LOG)
+                    && !file.getName().endsWith(TEMPORARY_SUFFIX)) {
+                cachedFiles.add(file);
+                size += file.length();
+            }
+        }
+        if (size <= maxSizeBytes) {
+            return;
+        }
+
+        final Map<String, Integer> lastAccesses = readAccessLog();
+        Collections.sort(cachedFiles, new Comparator<File>() {
+            public int compare(File a, File b) {
+                Integer aAccess = lastAccesses.get(a.getName());
+                Integer bAccess = lastAccesses.get(b.getName());
+                // files that aren't in the log are evicted first, oldest first
+                if (aAccess == null || bAccess == null) {
+                    if (aAccess != null) {
+                        return 1;
+                    } else if (bAccess != null) {
+                        return -1;
+                    }
+                    return Long.valueOf(a.lastModified()).compareTo(b.lastModified());
+                }
+                return aAccess.compareTo(bAccess);
+            }
+        });
+
+        int evicted = 0;
+        for (File file : cachedFiles) {
+            if (size <= maxSizeBytes) {
+                break;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                size -= length;
+                lastAccesses.remove(file.getName());
+                evicted++;
+            }
+        }
+        log.verbose("evicted " + evicted + " files from " + cacheRoot);
+
+        writeAccessLog(lastAccesses);
+    }
+
+    /**
+     * Returns the line number of each key's most recent access.
+     */
+    private Map<String, Integer> readAccessLog() {
+        Map<String, Integer> result = new HashMap<String, Integer>();
+        if (!accessLog.exists()) {
+            return result;
+        }
+        try {
+            BufferedReader in = new BufferedReader(new FileReader(accessLog));
+            try {
+                String line;
+                for (int i = 0; (line = in.readLine()) != null; i++) {
+                    result.put(line, i);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            log.verbose("failed to read " + accessLog + ": " + e);
+        }
+        return result;
+    }
+
+    private void writeAccessLog(final Map<String, Integer> lastAccesses) {
+        List<String> keys = new ArrayList<String>(lastAccesses.keySet());
+        Collections.sort(keys, new Comparator<String>() {
+            public int compare(String a, String b) {
+                return lastAccesses.get(a).compareTo(lastAccesses.get(b));
+            }
+        });
+        try {
+            File temporary = File.createTempFile(ACCESS_LOG, TEMPORARY_SUFFIX, cacheRoot);
+            Writer out = new FileWriter(temporary);
+            try {
+                for (String key : keys) {
+                    out.write(key + "\n");
+                }
+            } finally {
+                out.close();
+            }
+            Files.move(temporary.toPath(), accessLog.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            log.verbose("failed to rewrite " + accessLog + ": " + e);
+        }
     }
 }
@@ -86,6 +86,22 @@ final class JavaVm implements Mode {
         return result;
     }
 
+    /**
+     * Returns everything but vogar's own classes, so that static state in
+     * libraries on the classpath isn't shared by actions. Class loading is
+     * cheap compared to starting a VM.
+     */
+    @Override public Classpath getActionClasspath(Action action) {
+        File vogarJar = run.vogarJar();
+        Classpath result = new Classpath();
+        for (File element : getRuntimeClasspath(action).getElements()) {
+            if (!element.equals(vogarJar)) {
+                result.addAll(element);
+            }
+        }
+        return result;
+    }
+
     @Override public Set<Task> cleanupTasks(Action action) {
         return Collections.emptySet();
     }
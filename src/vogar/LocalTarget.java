@@ -59,6 +59,10 @@ public final class LocalTarget extends Target {
         run.mkdir.mkdirs(file);
     }
 
+    @Override public int defaultMaxConcurrentTransfers() {
+        return Vogar.NUM_PROCESSORS;
+    }
+
     @Override public void forwardTcp(int port) {
         // do nothing
     }
@@ -17,7 +17,6 @@
 package vogar;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.security.MessageDigest;
 
 /**
@@ -28,15 +27,17 @@ public final class Md5Cache {
     private final Log log;
     private final String keyPrefix;
     private final FileCache fileCache;
+    private final FileHasher fileHasher;
 
     /**
      * Creates a new cache accessor. There's only one directory on disk, so 'keyPrefix' is really
      * just a convenience for humans inspecting the cache.
      */
-    public Md5Cache(Log log, String keyPrefix, FileCache fileCache) {
+    public Md5Cache(Log log, String keyPrefix, FileCache fileCache, FileHasher fileHasher) {
         this.log = log;
         this.keyPrefix = keyPrefix;
         this.fileCache = fileCache;
+        this.fileHasher = fileHasher;
     }
 
     public boolean getFromCache(File output, String key) {
@@ -48,30 +49,18 @@ public final class Md5Cache {
     }
 
     /**
-     * Returns an ASCII hex representation of the MD5 of the content of 'file'.
+     * Returns an ASCII hex representation of the MD5 of the UTF-8 bytes of 'text'.
      */
-    private static String md5(File file) {
-        byte[] digest = null;
+    public static String md5(String text) {
         try {
             MessageDigest digester = MessageDigest.getInstance("MD5");
-            byte[] bytes = new byte[8192];
-            FileInputStream in = new FileInputStream(file);
-            try {
-                int byteCount;
-                while ((byteCount = in.read(bytes)) > 0) {
-                    digester.update(bytes, 0, byteCount);
-                }
-                digest = digester.digest();
-            } finally {
-                in.close();
-            }
+            return byteArrayToHexString(digester.digest(text.getBytes("UTF-8")));
         } catch (Exception cause) {
-            throw new RuntimeException("Unable to compute MD5 of \"" + file + "\"", cause);
+            throw new RuntimeException("Unable to compute MD5", cause);
         }
-        return (digest == null) ? null : byteArrayToHexString(digest);
     }
 
-    private static String byteArrayToHexString(byte[] bytes) {
+    static String byteArrayToHexString(byte[] bytes) {
         StringBuilder result = new StringBuilder();
         for (byte b : bytes) {
             result.append(Integer.toHexString((b >> 4) & 0xf));
@@ -92,7 +81,7 @@ public final class Md5Cache {
             if (!element.toString().endsWith(".jar")) {
                 return null;
             }
-            key += "-" + md5(element);
+            key += "-" + fileHasher.hash(element);
         }
         return key;
     }
@@ -101,7 +90,7 @@ public final class Md5Cache {
      * Returns a key corresponding to the MD5ed contents of {@code file}.
      */
     public String makeKey(File file) {
-        return keyPrefix + "-" + md5(file);
+        return keyPrefix + "-" + fileHasher.hash(file);
     }
 
     /**
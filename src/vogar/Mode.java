@@ -60,4 +60,12 @@ public interface Mode {
      * required for action execution.
      */
     Classpath getRuntimeClasspath(Action action);
+
+    /**
+     * Returns the elements of the runtime classpath to load separately for
+     * each action when one process runs several actions. This includes at
+     * least the action's own classes. The remaining elements are loaded once
+     * and shared by every action in the process.
+     */
+    Classpath getActionClasspath(Action action);
 }
@@ -20,8 +20,11 @@ import com.google.common.collect.Lists;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import vogar.util.Strings;
 
 /**
@@ -30,16 +33,50 @@ import vogar.util.Strings;
  */
 public final class Outcome {
 
+    /** the metric for the wall time an outcome took on the target, in nanoseconds */
+    public static final String WALL_NANOS = "wallNanos";
+    /** the metric for the CPU time of the thread that ran an outcome, in nanoseconds */
+    public static final String CPU_NANOS = "cpuNanos";
+    /** the metric for the bytes allocated by the thread that ran an outcome */
+    public static final String ALLOCATED_BYTES = "allocatedBytes";
+    /** the metric for the garbage collections while an outcome ran */
+    public static final String GC_COUNT = "gcCount";
+    /** the metric for the time spent in garbage collection while an outcome ran */
+    public static final String GC_MILLIS = "gcMillis";
+    /** the metric for the heap in use just after an outcome ran, in bytes */
+    public static final String HEAP_USED_BYTES = "heapUsedBytes";
+    /** the metric for how much more heap was in use after an outcome than before, in bytes */
+    public static final String HEAP_GROWTH_BYTES = "heapGrowthBytes";
+    /** the metric for the live threads just after an outcome ran */
+    public static final String LIVE_THREADS = "liveThreads";
+    /** the metric for how many more threads were live after an outcome than before */
+    public static final String THREAD_GROWTH = "threadGrowth";
+    /** the metric for how many times the host ran an outcome again after it failed */
+    public static final String RETRIES = "retries";
+    /** the metric for how often an outcome's result changed from one run to the next, in percent */
+    public static final String FLAKINESS_PERCENT = "flakinessPercent";
+
     private final String outcomeName;
     private final Result result;
     private final String output;
     private final Date date;
+    /** how long the outcome took to run, or -1 if that isn't known */
+    private final long durationMillis;
+    /** values measured by the target while the outcome ran, keyed by metric name */
+    private final Map<String, Long> metrics;
 
     public Outcome(String outcomeName, Result result, List<String> outputLines) {
+        this(outcomeName, result, outputLines, -1);
+    }
+
+    public Outcome(String outcomeName, Result result, List<String> outputLines,
+            long durationMillis) {
         this.outcomeName = outcomeName;
         this.result = result;
         this.output = sanitizeOutputLines(outputLines);
         this.date = new Date();
+        this.durationMillis = durationMillis;
+        this.metrics = Collections.emptyMap();
     }
 
     public Outcome(String outcomeName, Result result, String outputLine, Date date) {
@@ -47,13 +84,27 @@ public final class Outcome {
         this.result = result;
         this.output = sanitizeOutputLine(outputLine);
         this.date = date;
+        this.durationMillis = -1;
+        this.metrics = Collections.emptyMap();
     }
 
     public Outcome(String outcomeName, Result result, String outputLine) {
+        this(outcomeName, result, outputLine, -1);
+    }
+
+    public Outcome(String outcomeName, Result result, String outputLine, long durationMillis) {
+        this(outcomeName, result, outputLine, durationMillis,
+                Collections.<String, Long>emptyMap());
+    }
+
+    public Outcome(String outcomeName, Result result, String outputLine, long durationMillis,
+            Map<String, Long> metrics) {
         this.outcomeName = outcomeName;
         this.result = result;
         this.output = sanitizeOutputLine(outputLine);
         this.date = new Date();
+        this.durationMillis = durationMillis;
+        this.metrics = Collections.unmodifiableMap(new LinkedHashMap<String, Long>(metrics));
     }
 
     public Outcome(String outcomeName, Result result, Throwable throwable) {
@@ -61,6 +112,8 @@ public final class Outcome {
         this.result = result;
         this.output = sanitizeOutputLines(throwableToLines(throwable));
         this.date = new Date();
+        this.durationMillis = -1;
+        this.metrics = Collections.emptyMap();
     }
 
     private String sanitizeOutputLines(List<String> outputLines) {
@@ -83,6 +136,22 @@ public final class Outcome {
         return outcomeName;
     }
 
+    /**
+     * Returns how long this outcome took to run in milliseconds, or -1 if
+     * that isn't known.
+     */
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    /**
+     * Returns the values measured by the target while this outcome ran, like
+     * {@link #CPU_NANOS}. Outcomes that weren't measured have none.
+     */
+    public Map<String, Long> getMetrics() {
+        return metrics;
+    }
+
     public Result getResult() {
         return result;
     }
@@ -0,0 +1,557 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vogar;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The results and durations of outcomes from previous runs. Each run appends
+ * its outcomes, and looks up the history of just its own outcomes, so neither
+ * costs more as the history grows. The history is a directory of four files:
+ *
+ * <ul>
+ *   <li>outcomes.log: a header, then a fixed-size entry for each outcome of
+ *     each run. An entry holds the offset of the previous entry for the same
+ *     outcome, so each outcome's entries form a list from newest to oldest.
+ *   <li>outcomes.index: for each outcome ID, the offset of its newest entry.
+ *     It's memory-mapped, so a run reads and updates only its own outcomes.
+ *   <li>outcomes.names: outcome names, one per line. An outcome's ID is its
+ *     line number.
+ *   <li>runs: a header, then each run's date and the offset of its first
+ *     entry.
+ * </ul>
+ *
+ * <p>Several processes may share a history, so it's read and written while
+ * holding a lock on a file beside the directory. The lock file isn't in the
+ * directory because compaction replaces the directory.
+ *
+ * <p>Only the newest {@code maxRuns} runs are kept. Older runs are ignored
+ * until they take up half of the log, when the history is compacted by
+ * rewriting it without them.
+ */
+final class OutcomeHistory {
+    private static final int MAGIC = 0x766f6768;
+    /** increment this when the format changes, including the order of {@link Result} */
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    /** the previous entry's offset, then the outcome ID, run, result and duration */
+    private static final int ENTRY_SIZE = 24;
+
+    private static final String LOG_FILE = "outcomes.log";
+    private static final String INDEX_FILE = "outcomes.index";
+    private static final String NAMES_FILE = "outcomes.names";
+    private static final String RUNS_FILE = "runs";
+    private static final String LOCK_FILE_SUFFIX = ".lock";
+
+    private static final Result[] RESULTS = Result.values();
+
+    private final Log log;
+    private final File dir;
+    private final int maxRuns;
+
+    /** the history as of when it was last read from disk; null until then */
+    private Map<String, Integer> ids;
+    private List<String> names;
+    private List<Long> runDates;
+    private List<Long> runOffsets;
+    private ByteBuffer entries;
+    private LongBuffer index;
+    /** the offset just past the log's last complete entry */
+    private long logLength;
+
+    OutcomeHistory(Log log, File dir, int maxRuns) {
+        this.log = log;
+        this.dir = dir;
+        this.maxRuns = maxRuns;
+    }
+
+    /**
+     * Adds the newest {@code depth} previous outcomes of each of {@code
+     * outcomes}, which are keyed by outcome name. Returns the number added.
+     */
+    public synchronized int addTo(Map<String, AnnotatedOutcome> outcomes, int depth)
+            throws IOException {
+        loadLocked();
+        int added = 0;
+        for (Map.Entry<String, AnnotatedOutcome> entry : outcomes.entrySet()) {
+            String outcomeName = entry.getKey();
+            Integer id = ids.get(outcomeName);
+            if (id == null) {
+                continue;
+            }
+            for (int position : entryPositions(id, depth)) {
+                entry.getValue().add(runDates.get(entries.getInt(position + 12)),
+                        new Outcome(outcomeName, RESULTS[entries.getInt(position + 16)],
+                                Collections.<String>emptyList(), entries.getInt(position + 20)));
+                added++;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Returns the newest {@code depth} results of every outcome in the
+     * history, newest first, keyed by outcome name.
+     */
+    public synchronized Map<String, List<Result>> getRecentResults(int depth)
+            throws IOException {
+        loadLocked();
+        Map<String, List<Result>> result = new HashMap<String, List<Result>>();
+        for (int id = 0; id < names.size(); id++) {
+            List<Result> results = new ArrayList<Result>();
+            for (int position : entryPositions(id, depth)) {
+                results.add(RESULTS[entries.getInt(position + 16)]);
+            }
+            if (!results.isEmpty()) {
+                result.put(names.get(id), results);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the positions in the log of the newest {@code depth} entries
+     * of the outcome {@code id} in the retained runs, newest first. Entries
+     * that are cut short or corrupt end the list.
+     */
+    private List<Integer> entryPositions(int id, int depth) {
+        List<Integer> result = new ArrayList<Integer>();
+        if (id >= index.limit()) {
+            return result;
+        }
+        int firstRun = firstRetainedRun();
+        long offset = index.get(id);
+        while (result.size() < depth && offset != 0 && offset + ENTRY_SIZE <= logLength) {
+            int position = (int) offset;
+            int run = entries.getInt(position + 12);
+            int resultOrdinal = entries.getInt(position + 16);
+            if (run < firstRun || run >= runDates.size()
+                    || resultOrdinal < 0 || resultOrdinal >= RESULTS.length) {
+                break;
+            }
+            result.add(position);
+            offset = entries.getLong(position);
+        }
+        return result;
+    }
+
+    /**
+     * Appends a run of {@code outcomes} from {@code date}, then compacts the
+     * history if runs that are no longer kept fill half of it.
+     */
+    public synchronized void append(long date, Collection<Outcome> outcomes)
+            throws IOException {
+        synchronized (OutcomeHistory.class) {
+            FileLock lock = lock();
+            try {
+                // another process may have appended since this one last read the history
+                unload();
+                load();
+                appendLocked(date, outcomes);
+            } finally {
+                release(lock);
+            }
+        }
+    }
+
+    private void appendLocked(long date, Collection<Outcome> outcomes) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create " + dir);
+        }
+
+        // entries first, so the runs and index never refer to entries that weren't written
+        int run = runDates.size();
+        long runOffset = logLength;
+        int firstNewId = names.size();
+        Map<Integer, Long> newOffsets = new HashMap<Integer, Long>();
+        File logFile = new File(dir, LOG_FILE);
+        truncate(logFile, logLength);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(logFile, true)));
+        try {
+            if (runOffset == 0) {
+                writeHeader(out);
+                runOffset = HEADER_SIZE;
+            }
+            long offset = runOffset;
+            for (Outcome outcome : outcomes) {
+                Integer id = ids.get(outcome.getName());
+                if (id == null) {
+                    id = names.size();
+                    names.add(outcome.getName());
+                    ids.put(outcome.getName(), id);
+                }
+                out.writeLong(id < index.limit() ? index.get(id) : 0);
+                out.writeInt(id);
+                out.writeInt(run);
+                out.writeInt(outcome.getResult().ordinal());
+                out.writeInt((int) Math.min(outcome.getDurationMillis(), Integer.MAX_VALUE));
+                newOffsets.put(id, offset);
+                offset += ENTRY_SIZE;
+            }
+        } finally {
+            out.close();
+        }
+
+        Writer namesOut = new OutputStreamWriter(
+                new FileOutputStream(new File(dir, NAMES_FILE), true), "UTF-8");
+        try {
+            for (String name : names.subList(firstNewId, names.size())) {
+                namesOut.write(name + "\n");
+            }
+        } finally {
+            namesOut.close();
+        }
+
+        File runsFile = new File(dir, RUNS_FILE);
+        boolean newRunsFile = runDates.isEmpty();
+        truncate(runsFile, newRunsFile ? 0 : HEADER_SIZE + 16L * run);
+        DataOutputStream runsOut = new DataOutputStream(new FileOutputStream(runsFile, true));
+        try {
+            if (newRunsFile) {
+                writeHeader(runsOut);
+            }
+            runsOut.writeLong(date);
+            runsOut.writeLong(runOffset);
+        } finally {
+            runsOut.close();
+        }
+
+        FileChannel indexChannel = new RandomAccessFile(new File(dir, INDEX_FILE), "rw")
+                .getChannel();
+        try {
+            LongBuffer indexOut = indexChannel.map(
+                    FileChannel.MapMode.READ_WRITE, 0, 8L * names.size()).asLongBuffer();
+            for (Map.Entry<Integer, Long> entry : newOffsets.entrySet()) {
+                indexOut.put(entry.getKey(), entry.getValue());
+            }
+        } finally {
+            indexChannel.close();
+        }
+
+        unload();
+        load();
+        int firstRun = firstRetainedRun();
+        if (firstRun > 0 && (runOffsets.get(firstRun) - HEADER_SIZE) * 2 > logLength - HEADER_SIZE) {
+            compact(firstRun);
+        }
+    }
+
+    /**
+     * Rewrites the history without the runs before {@code firstRun}, and
+     * without outcomes that only those runs had.
+     */
+    private void compact(int firstRun) throws IOException {
+        File newDir = new File(dir.getPath() + ".new");
+        deleteHistory(newDir);
+        if (!newDir.mkdirs()) {
+            throw new IOException("Failed to create " + newDir);
+        }
+
+        Map<Integer, Integer> newIds = new HashMap<Integer, Integer>();
+        List<String> newNames = new ArrayList<String>();
+        long[] newIndex = new long[names.size()];
+        DataOutputStream logOut = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(new File(newDir, LOG_FILE))));
+        DataOutputStream runsOut = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(new File(newDir, RUNS_FILE))));
+        try {
+            writeHeader(logOut);
+            writeHeader(runsOut);
+            long offset = HEADER_SIZE;
+            for (int run = firstRun; run < runDates.size(); run++) {
+                runsOut.writeLong(runDates.get(run));
+                runsOut.writeLong(offset);
+                long end = run + 1 < runDates.size() ? runOffsets.get(run + 1) : logLength;
+                for (long p = runOffsets.get(run); p + ENTRY_SIZE <= end; p += ENTRY_SIZE) {
+                    int position = (int) p;
+                    if (entries.getInt(position + 12) != run) {
+                        continue; // written by a run that didn't finish
+                    }
+                    Integer oldId = entries.getInt(position + 8);
+                    Integer newId = newIds.get(oldId);
+                    if (newId == null) {
+                        newId = newNames.size();
+                        newNames.add(names.get(oldId));
+                        newIds.put(oldId, newId);
+                    }
+                    logOut.writeLong(newIndex[newId]);
+                    logOut.writeInt(newId);
+                    logOut.writeInt(run - firstRun);
+                    logOut.writeInt(entries.getInt(position + 16));
+                    logOut.writeInt(entries.getInt(position + 20));
+                    newIndex[newId] = offset;
+                    offset += ENTRY_SIZE;
+                }
+            }
+        } finally {
+            logOut.close();
+            runsOut.close();
+        }
+
+        DataOutputStream indexOut = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(new File(newDir, INDEX_FILE))));
+        Writer namesOut = new OutputStreamWriter(new BufferedOutputStream(
+                new FileOutputStream(new File(newDir, NAMES_FILE))), "UTF-8");
+        try {
+            for (int id = 0; id < newNames.size(); id++) {
+                indexOut.writeLong(newIndex[id]);
+                namesOut.write(newNames.get(id) + "\n");
+            }
+        } finally {
+            indexOut.close();
+            namesOut.close();
+        }
+
+        log.verbose("compacted results history from " + runDates.size() + " to "
+                + (runDates.size() - firstRun) + " runs");
+        unload();
+        File oldDir = new File(dir.getPath() + ".old");
+        deleteHistory(oldDir);
+        if (!dir.renameTo(oldDir) || !newDir.renameTo(dir)) {
+            throw new IOException("Failed to replace " + dir + " with " + newDir);
+        }
+        deleteHistory(oldDir);
+    }
+
+    private int firstRetainedRun() {
+        return Math.max(0, runDates.size() - maxRuns);
+    }
+
+    /**
+     * Loads the history, if it isn't loaded, while holding the lock.
+     */
+    private void loadLocked() throws IOException {
+        if (ids != null) {
+            return;
+        }
+        if (!dir.getAbsoluteFile().getParentFile().isDirectory()) {
+            load(); // there's no history to lock
+            return;
+        }
+        synchronized (OutcomeHistory.class) {
+            FileLock lock = lock();
+            try {
+                load();
+            } finally {
+                release(lock);
+            }
+        }
+    }
+
+    /**
+     * Locks the history against other processes. Callers must hold the
+     * class's monitor, since a process can't take the same file lock twice.
+     */
+    private FileLock lock() throws IOException {
+        File lockFile = new File(dir.getPath() + LOCK_FILE_SUFFIX);
+        File parent = lockFile.getAbsoluteFile().getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Failed to create " + parent);
+        }
+        FileChannel channel = new RandomAccessFile(lockFile, "rw").getChannel();
+        try {
+            return channel.lock();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static void release(FileLock lock) throws IOException {
+        lock.channel().close(); // also releases the lock
+    }
+
+    private void load() throws IOException {
+        if (ids != null) {
+            return;
+        }
+
+        clear();
+
+        // finish a compaction that was interrupted after the old history was moved away
+        File newDir = new File(dir.getPath() + ".new");
+        if (!dir.exists() && newDir.isDirectory()) {
+            newDir.renameTo(dir);
+        }
+        File runsFile = new File(dir, RUNS_FILE);
+        if (!runsFile.exists()) {
+            return;
+        }
+
+        try {
+            readRuns(runsFile);
+            readNames(new File(dir, NAMES_FILE));
+            entries = map(new File(dir, LOG_FILE));
+            readHeader(entries);
+            logLength = HEADER_SIZE
+                    + (entries.limit() - HEADER_SIZE) / ENTRY_SIZE * (long) ENTRY_SIZE;
+            index = map(new File(dir, INDEX_FILE)).asLongBuffer();
+        } catch (IOException e) {
+            log.info("Discarding unreadable results history in " + dir, e);
+            deleteHistory(dir);
+            clear();
+        }
+    }
+
+    private void clear() {
+        ids = new HashMap<String, Integer>();
+        names = new ArrayList<String>();
+        runDates = new ArrayList<Long>();
+        runOffsets = new ArrayList<Long>();
+        entries = ByteBuffer.allocate(0);
+        index = LongBuffer.allocate(0);
+        logLength = 0;
+    }
+
+    private void unload() {
+        ids = null;
+        names = null;
+        runDates = null;
+        runOffsets = null;
+        entries = null;
+        index = null;
+    }
+
+    private void readRuns(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            in.readFully(header.array());
+            readHeader(header);
+            while (true) {
+                long date = in.readLong();
+                long offset = in.readLong();
+                runDates.add(date);
+                runOffsets.add(offset);
+            }
+        } catch (EOFException done) {
+        } finally {
+            in.close();
+        }
+    }
+
+    private void readNames(File file) throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        // drop a name that was cut short, so the next name doesn't extend it
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            long length = randomAccessFile.length();
+            while (length > 0) {
+                randomAccessFile.seek(length - 1);
+                if (randomAccessFile.read() == '\n') {
+                    break;
+                }
+                length--;
+            }
+            randomAccessFile.setLength(length);
+        } finally {
+            randomAccessFile.close();
+        }
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), "UTF-8"));
+        try {
+            String name;
+            while ((name = in.readLine()) != null) {
+                ids.put(name, names.size());
+                names.add(name);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Maps {@code file} into memory for reading. The mapping is valid even
+     * once its channel is closed.
+     */
+    private static ByteBuffer map(File file) throws IOException {
+        if (!file.exists()) {
+            return ByteBuffer.allocate(0);
+        }
+        FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+        try {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Too large: " + file);
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static void writeHeader(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+    }
+
+    private static void readHeader(ByteBuffer buffer) throws IOException {
+        if (buffer.limit() < HEADER_SIZE
+                || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Unexpected format");
+        }
+    }
+
+    /**
+     * Drops anything after {@code length} in {@code file}, like an entry that
+     * was cut short when a previous run was killed.
+     */
+    private static void truncate(File file, long length) throws IOException {
+        if (file.exists() && file.length() > length) {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            try {
+                randomAccessFile.setLength(length);
+            } finally {
+                randomAccessFile.close();
+            }
+        }
+    }
+
+    private static void deleteHistory(File dir) {
+        for (String name : new String[] { LOG_FILE, INDEX_FILE, NAMES_FILE, RUNS_FILE }) {
+            new File(dir, name).delete();
+        }
+        dir.delete();
+    }
+}
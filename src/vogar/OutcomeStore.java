@@ -17,25 +17,31 @@
 package vogar;
 
 import com.google.caliper.internal.gson.stream.JsonReader;
-import com.google.caliper.internal.gson.stream.JsonWriter;
 import java.io.File;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.TimeZone;
-import vogar.commands.Mkdir;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import vogar.commands.Rm;
 
+/**
+ * Reads and records the outcomes of previous runs in an {@link
+ * OutcomeHistory}. Results from older versions of vogar, which kept each run
+ * in its own JSON file, are read as well, and are moved into the history the
+ * next time results are recorded.
+ */
 public final class OutcomeStore {
-    private static final String FILE_NAME_DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ssz";
-    private static final int PRESERVE_TOTAL = 10;
+    /** the number of previous outcomes to annotate each outcome with */
+    private static final int HISTORY_DEPTH = 10;
 
     private static final Comparator<File> ORDER_BY_LAST_MODIFIED = new Comparator<File>() {
         @Override public int compare(File a, File b) {
@@ -47,22 +53,25 @@ public final class OutcomeStore {
     };
 
     private final Log log;
-    private final Mkdir mkdir;
     private final Rm rm;
     private final File resultsDir;
     private final boolean recordResults;
     private final ExpectationStore expectationStore;
     private final Date date;
+    private final OutcomeHistory history;
 
-    public OutcomeStore(Log log, Mkdir mkdir, Rm rm, File resultsDir, boolean recordResults,
-            ExpectationStore expectationStore, Date date) {
+    /**
+     * @param maxRuns the number of runs to keep in the history.
+     */
+    public OutcomeStore(Log log, Rm rm, File resultsDir, boolean recordResults,
+            int maxRuns, ExpectationStore expectationStore, Date date) {
         this.log = log;
-        this.mkdir = mkdir;
         this.rm = rm;
         this.resultsDir = resultsDir;
         this.recordResults = recordResults;
         this.expectationStore = expectationStore;
         this.date = date;
+        this.history = new OutcomeHistory(log, new File(resultsDir, "history"), maxRuns);
     }
 
     public Map<String, AnnotatedOutcome> read(Map<String, Outcome> outcomes) {
@@ -74,14 +83,18 @@ public final class OutcomeStore {
         }
 
         try {
-            File[] oldOutcomes = getOutcomeFiles();
-            log.verbose("parsing outcomes from " + oldOutcomes.length + " files");
-            for (File file : oldOutcomes) {
-                if (!file.getName().endsWith(".json")) {
-                    continue;
+            long start = System.nanoTime();
+            int count = history.addTo(result, HISTORY_DEPTH);
+            log.verbose("read " + count + " previous outcomes in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+
+            for (File file : getLegacyFiles()) {
+                for (Outcome outcome : readLegacyFile(file)) {
+                    AnnotatedOutcome annotatedOutcome = result.get(outcome.getName());
+                    if (annotatedOutcome != null) {
+                        annotatedOutcome.add(file.lastModified(), outcome);
+                    }
                 }
-
-                loadOutcomes(result, file, file.lastModified());
             }
         } catch (IOException e) {
             log.info("Failed to read outcomes from " + resultsDir, e);
@@ -90,35 +103,36 @@ public final class OutcomeStore {
         return result;
     }
 
-    private void loadOutcomes(Map<String, AnnotatedOutcome> map, File file, long fileDate)
-            throws IOException {
-        JsonReader in = new JsonReader(new FileReader(file));
-        in.beginObject();
-        while (in.hasNext()) {
-            String outcomeName = in.nextName();
-            AnnotatedOutcome annotatedOutcome = map.get(outcomeName);
-            if (annotatedOutcome == null) {
-                in.skipValue();
-                continue;
-            }
+    /**
+     * Returns {@code outcome} annotated with the previous outcomes of its
+     * test.
+     */
+    public AnnotatedOutcome annotate(Outcome outcome) {
+        return read(Collections.singletonMap(outcome.getName(), outcome)).get(outcome.getName());
+    }
 
-            Result result = null;
-            in.beginObject();
-            while (in.hasNext()) {
-                String fieldName = in.nextName();
-                if (fieldName.equals("result")) {
-                    result = Result.valueOf(in.nextString());
-                } else {
-                    in.skipValue();
+    /**
+     * Returns the names of the outcomes whose most recent result was a
+     * failure, or differs from the result before it.
+     */
+    public Set<String> getFailedOrChangedOutcomeNames() {
+        Set<String> result = new HashSet<String>();
+        try {
+            for (Map.Entry<String, List<Result>> entry : history.getRecentResults(2).entrySet()) {
+                List<ResultValue> resultValues = new ArrayList<ResultValue>();
+                for (Result previous : entry.getValue()) {
+                    Outcome outcome = new Outcome(entry.getKey(), previous, "");
+                    resultValues.add(outcome.getResultValue(expectationStore.get(outcome)));
+                }
+                if (resultValues.get(0) == ResultValue.FAIL
+                        || (resultValues.size() > 1 && resultValues.get(0) != resultValues.get(1))) {
+                    result.add(entry.getKey());
                 }
             }
-            in.endObject();
-
-            annotatedOutcome.add(fileDate, new Outcome(outcomeName, result,
-                    Collections.<String>emptyList()));
+        } catch (IOException e) {
+            log.info("Failed to read outcomes from " + resultsDir, e);
         }
-        in.endObject();
-        in.close();
+        return result;
     }
 
     public void write(Map<String, Outcome> outcomes) {
@@ -126,52 +140,62 @@ public final class OutcomeStore {
             return;
         }
 
-        makeRoom();
-        File outputFile = getOutputFile();
         try {
-            mkdir.mkdirs(outputFile.getParentFile());
-            JsonWriter out = new JsonWriter(new FileWriter(outputFile));
-            out.setIndent("  ");
-            out.beginObject();
-            for (Map.Entry<String, Outcome> entry : outcomes.entrySet()) {
-                out.name(entry.getKey());
-                out.beginObject();
-                out.name("result");
-                out.value(entry.getValue().getResult().toString());
-                out.endObject();
+            for (File file : getLegacyFiles()) {
+                history.append(file.lastModified(), readLegacyFile(file));
+                rm.file(file);
+                log.verbose("moved results file into the results history: " + file);
             }
-            out.endObject();
-            out.close();
+            history.append(date.getTime(), outcomes.values());
         } catch (IOException e) {
-            log.info("Failed to write outcomes to " + outputFile, e);
+            log.info("Failed to write outcomes to " + resultsDir, e);
         }
     }
 
-    private File[] getOutcomeFiles() {
-        File[] result = resultsDir.listFiles();
-        if (result == null) {
-            return new File[0];
+    /**
+     * Returns the JSON files of results from older versions of vogar, oldest
+     * first.
+     */
+    private List<File> getLegacyFiles() {
+        File[] files = resultsDir.listFiles();
+        if (files == null) {
+            return Collections.emptyList();
+        }
+        Arrays.sort(files, ORDER_BY_LAST_MODIFIED);
+        List<File> result = new ArrayList<File>();
+        for (File file : files) {
+            if (file.getName().endsWith(".json")) {
+                result.add(file);
+            }
         }
-        Arrays.sort(result, ORDER_BY_LAST_MODIFIED);
         return result;
     }
 
-    private File getOutputFile() {
-        SimpleDateFormat dateFormat = new SimpleDateFormat(FILE_NAME_DATE_FORMAT);
-        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
-        dateFormat.setLenient(true);
-        String timestamp = dateFormat.format(date);
-        return new File(resultsDir, timestamp + ".json");
-    }
-
-    /**
-     * Removes the oldest result files until only (PRESERVE_TOTAL - 1) remain.
-     */
-    private void makeRoom() {
-        File[] outcomeFiles = getOutcomeFiles();
-        for (int i = 0; i <= (outcomeFiles.length - PRESERVE_TOTAL); i++) {
-            rm.file(outcomeFiles[i]);
-            log.verbose("garbage collected results file: " + outcomeFiles[i]);
+    private List<Outcome> readLegacyFile(File file) throws IOException {
+        List<Outcome> result = new ArrayList<Outcome>();
+        JsonReader in = new JsonReader(new FileReader(file));
+        try {
+            in.beginObject();
+            while (in.hasNext()) {
+                String outcomeName = in.nextName();
+                Result outcomeResult = null;
+                in.beginObject();
+                while (in.hasNext()) {
+                    String fieldName = in.nextName();
+                    if (fieldName.equals("result")) {
+                        outcomeResult = Result.valueOf(in.nextString());
+                    } else {
+                        in.skipValue();
+                    }
+                }
+                in.endObject();
+                result.add(new Outcome(outcomeName, outcomeResult,
+                        Collections.<String>emptyList()));
+            }
+            in.endObject();
+        } finally {
+            in.close();
         }
+        return result;
     }
 }
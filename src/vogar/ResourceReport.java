@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vogar;
+
+import com.google.caliper.internal.gson.stream.JsonWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import vogar.commands.Mkdir;
+
+/**
+ * Collects the time and resources that each outcome used on the target, from
+ * the metrics it reported, and writes them to a JSON file for each outcome
+ * and totalled for each action. Use it to decide how many actions a target
+ * can run at once.
+ */
+public final class ResourceReport {
+    /** levels rather than amounts, so an action reports the highest of its outcomes */
+    private static final Set<String> PEAK_METRICS = new HashSet<String>(Arrays.asList(
+            Outcome.HEAP_USED_BYTES, Outcome.LIVE_THREADS, Outcome.FLAKINESS_PERCENT));
+
+    private final Log log;
+    private final Mkdir mkdir;
+    private final File file;
+
+    /** the metrics of each outcome, keyed by outcome name */
+    private final Map<String, Map<String, Long>> outcomeMetrics
+            = new TreeMap<String, Map<String, Long>>();
+    /** the action of each outcome, keyed by outcome name */
+    private final Map<String, String> outcomeActions = new TreeMap<String, String>();
+
+    public ResourceReport(Log log, Mkdir mkdir, File file) {
+        this.log = log;
+        this.mkdir = mkdir;
+        this.file = file;
+    }
+
+    /**
+     * Records the metrics of {@code outcome}, which {@code actionName} ran.
+     * An outcome that's run again replaces the earlier one.
+     */
+    public synchronized void add(String actionName, Outcome outcome) {
+        if (outcome.getMetrics().isEmpty()) {
+            return;
+        }
+        outcomeMetrics.put(outcome.getName(), outcome.getMetrics());
+        outcomeActions.put(outcome.getName(), actionName);
+    }
+
+    /**
+     * Returns the metrics of each action, totalled over its outcomes, along
+     * with its number of outcomes.
+     */
+    synchronized Map<String, Map<String, Long>> getActionMetrics() {
+        Map<String, Map<String, Long>> result = new TreeMap<String, Map<String, Long>>();
+        for (Map.Entry<String, Map<String, Long>> entry : outcomeMetrics.entrySet()) {
+            String actionName = outcomeActions.get(entry.getKey());
+            Map<String, Long> totals = result.get(actionName);
+            if (totals == null) {
+                totals = new LinkedHashMap<String, Long>();
+                totals.put("outcomes", 0L);
+                result.put(actionName, totals);
+            }
+            totals.put("outcomes", totals.get("outcomes") + 1);
+            for (Map.Entry<String, Long> metric : entry.getValue().entrySet()) {
+                Long total = totals.get(metric.getKey());
+                long value = metric.getValue();
+                if (total == null) {
+                    totals.put(metric.getKey(), value);
+                } else if (PEAK_METRICS.contains(metric.getKey())) {
+                    totals.put(metric.getKey(), Math.max(total, value));
+                } else {
+                    totals.put(metric.getKey(), total + value);
+                }
+            }
+        }
+        return result;
+    }
+
+    public synchronized void write() {
+        try {
+            mkdir.mkdirs(file.getAbsoluteFile().getParentFile());
+            JsonWriter out = new JsonWriter(new FileWriter(file));
+            out.setIndent("  ");
+            out.beginObject();
+            out.name("actions");
+            writeMetrics(out, getActionMetrics(), null);
+            out.name("outcomes");
+            writeMetrics(out, outcomeMetrics, outcomeActions);
+            out.endObject();
+            out.close();
+            log.info("Resource report written to " + file);
+        } catch (IOException e) {
+            log.info("Failed to write resource report to " + file, e);
+        }
+    }
+
+    private void writeMetrics(JsonWriter out, Map<String, Map<String, Long>> metricsByName,
+            Map<String, String> actions) throws IOException {
+        out.beginObject();
+        for (Map.Entry<String, Map<String, Long>> entry : metricsByName.entrySet()) {
+            out.name(entry.getKey());
+            out.beginObject();
+            if (actions != null) {
+                out.name("action");
+                out.value(actions.get(entry.getKey()));
+            }
+            for (Map.Entry<String, Long> metric : entry.getValue().entrySet()) {
+                out.name(metric.getKey());
+                out.value(metric.getValue());
+            }
+            out.endObject();
+        }
+        out.endObject();
+    }
+}
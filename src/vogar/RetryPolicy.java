@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vogar;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides which failed tests to run again, runs them until they pass or run
+ * out of retries, and summarizes the attempts as a single outcome.
+ */
+public final class RetryPolicy {
+    /**
+     * Runs a test again on its own.
+     */
+    public interface Attempt {
+        Outcome run(String outcomeName);
+    }
+
+    private final ExpectationStore expectationStore;
+    private final OutcomeStore outcomeStore;
+    private final int maxRetries;
+
+    /**
+     * @param maxRetries how many times to run a failed test again, or 0 to
+     *     never.
+     */
+    RetryPolicy(ExpectationStore expectationStore, OutcomeStore outcomeStore, int maxRetries) {
+        this.expectationStore = expectationStore;
+        this.outcomeStore = outcomeStore;
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * Returns true if {@code outcome} failed in a way that running its test
+     * again might fix: the test has a flaky history, or it failed with an
+     * error, which usually means that the target went wrong rather than the
+     * test.
+     */
+    public boolean shouldRetry(Outcome outcome) {
+        if (maxRetries == 0 || !isFailure(outcome)) {
+            return false;
+        }
+        return outcome.getResult() == Result.ERROR
+                || outcomeStore.annotate(outcome).getFlakiness() > 0;
+    }
+
+    private boolean isFailure(Outcome outcome) {
+        return outcome.getResultValue(expectationStore.get(outcome)) == ResultValue.FAIL;
+    }
+
+    /**
+     * Runs the test of {@code failed} again until it passes or has been run
+     * again {@code maxRetries} times. Returns every attempt, starting with
+     * {@code failed}.
+     */
+    public List<Outcome> retry(Outcome failed, Attempt attempt) {
+        List<Outcome> attempts = new ArrayList<Outcome>();
+        attempts.add(failed);
+        Outcome last = failed;
+        while (attempts.size() <= maxRetries && isFailure(last)) {
+            last = attempt.run(failed.getName());
+            attempts.add(last);
+        }
+        return attempts;
+    }
+
+    /**
+     * Returns the outcome to record for {@code attempts}, which ran the same
+     * test one after another: the last attempt, with the output of every
+     * attempt, the number of retries and how flaky the test has been
+     * including these attempts.
+     */
+    public Outcome summarize(List<Outcome> attempts) {
+        Outcome first = attempts.get(0);
+        Outcome last = attempts.get(attempts.size() - 1);
+        Expectation expectation = expectationStore.get(first);
+        List<ResultValue> resultValues = outcomeStore.annotate(first).getPreviousResultValues();
+        StringBuilder output = new StringBuilder();
+        for (int i = 0; i < attempts.size(); i++) {
+            Outcome attempt = attempts.get(i);
+            resultValues.add(attempt.getResultValue(expectation));
+            output.append("Attempt ").append(i + 1).append(" of ").append(attempts.size())
+                    .append(": ").append(attempt.getResult()).append("\n");
+            for (String line : attempt.getOutputLines()) {
+                output.append(line).append("\n");
+            }
+        }
+
+        Map<String, Long> metrics = new LinkedHashMap<String, Long>(last.getMetrics());
+        metrics.put(Outcome.RETRIES, (long) attempts.size() - 1);
+        metrics.put(Outcome.FLAKINESS_PERCENT,
+                Math.round(100 * AnnotatedOutcome.flakiness(resultValues)));
+        return new Outcome(last.getName(), last.getResult(), output.toString(),
+                last.getDurationMillis(), metrics);
+    }
+}
@@ -19,14 +19,19 @@ package vogar;
 import com.google.common.base.Splitter;
 import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
+import java.util.EnumMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import vogar.android.ActivityMode;
+import vogar.android.AdbClient;
 import vogar.android.AdbTarget;
 import vogar.android.AndroidSdk;
 import vogar.android.DeviceFileCache;
@@ -34,10 +39,16 @@ import vogar.android.DeviceRuntime;
 import vogar.android.HostRuntime;
 import vogar.commands.Mkdir;
 import vogar.commands.Rm;
+import vogar.tasks.Resource;
+import vogar.tasks.TaskDurationStore;
 import vogar.tasks.TaskQueue;
+import vogar.tasks.WorkerPool;
 import vogar.util.Strings;
 
 public final class Run {
+    /** The heap each dx process may use; see AndroidSdk.dex(). */
+    private static final long DEX_MEMORY_BYTES = 1536L * 1024 * 1024;
+
     /** A list of generic names that we avoid when naming generated files. */
     private static final Set<String> BANNED_NAMES = new HashSet<String>();
     static {
@@ -76,6 +87,7 @@ public final class Run {
     public final boolean cleanAfter;
     public final File localTemp;
     public final int maxConcurrentActions;
+    public final int maxConcurrentCompiles;
     public final File deviceUserHome;
     public final Console console;
     public final int smallTimeoutSeconds;
@@ -85,35 +97,56 @@ public final class Run {
     public final List<String> targetArgs;
     public final boolean useBootClasspath;
     public final int largeTimeoutSeconds;
+    public final RetryPolicy retryPolicy;
+    /** true to run actions with recently failed or changed outcomes first */
+    public final boolean failedFirst;
+    /** how many unexpected failures to stop starting actions after, or 0 to never stop */
+    public final int failFast;
     public final RetrievedFilesFilter retrievedFiles;
     public final Driver driver;
     public final Mode mode;
     public final Target target;
     public final AndroidSdk androidSdk;
     public final XmlReportPrinter reportPrinter;
+    public final ResourceReport resourceReport;
     public final JarSuggestions jarSuggestions;
     public final ClassFileIndex classFileIndex;
     public final OutcomeStore outcomeStore;
+    public final TaskDurationStore taskDurationStore;
+    public final BuildCache buildCache;
     public final TaskQueue taskQueue;
+    public final WorkerPool workerPool;
+    public final ActionSplitter actionSplitter;
 
     public Run(Vogar vogar) throws IOException {
-        this.console = vogar.stream
-                ? new Console.StreamingConsole()
-                : new Console.MultiplexingConsole();
+        this.maxConcurrentActions = vogar.modeId == ModeId.ACTIVITY
+                    ? 1
+                    : vogar.maxConcurrentActions != null
+                            ? vogar.maxConcurrentActions
+                            : Vogar.NUM_PROCESSORS;
+        if (!vogar.stream) {
+            this.console = new Console.MultiplexingConsole();
+        } else if (maxConcurrentActions == 1 && !vogar.isSharded()) {
+            this.console = new Console.StreamingConsole();
+        } else {
+            this.console = new Console.ConcurrentStreamingConsole();
+        }
         console.setUseColor(vogar.color, vogar.passColor, vogar.warnColor, vogar.failColor);
         console.setAnsi(vogar.ansi);
         console.setIndent(vogar.indent);
         console.setVerbose(vogar.verbose);
+        console.setSlowestTestCount(vogar.slowestTests);
 
         this.localTemp = new File("/tmp/vogar/" + UUID.randomUUID());
         this.log = console;
 
-        if (vogar.sshHost != null) {
-            this.target = new SshTarget(vogar.sshHost, log);
+        List<String> deviceSerials = deviceSerials(vogar.devices);
+        if (!vogar.sshHosts.isEmpty()) {
+            this.target = createSshTarget(vogar.sshHosts);
         } else if (vogar.modeId.isLocal()) {
             this.target = new LocalTarget(this);
         } else {
-            this.target = new AdbTarget(this);
+            this.target = createAdbTarget(deviceSerials);
         }
 
         this.vmCommand = vogar.vmCommand;
@@ -134,12 +167,14 @@ public final class Run {
         this.invokeWith = vogar.invokeWith;
         this.javacArgs = vogar.javacArgs;
         this.javaHome = vogar.javaHome;
+        this.maxConcurrentCompiles = vogar.maxConcurrentCompiles != null
+                ? vogar.maxConcurrentCompiles
+                : Vogar.NUM_PROCESSORS;
         this.largeTimeoutSeconds = vogar.timeoutSeconds * Vogar.LARGE_TIMEOUT_MULTIPLIER;
-        this.maxConcurrentActions = (vogar.stream || vogar.modeId == ModeId.ACTIVITY)
-                    ? 1
-                    : Vogar.NUM_PROCESSORS;
         this.timeoutSeconds = vogar.timeoutSeconds;
         this.smallTimeoutSeconds = vogar.timeoutSeconds;
+        this.failedFirst = vogar.failedFirst;
+        this.failFast = vogar.failFast;
         this.sourcepath = vogar.sourcepath;
         this.resourceClasspath = Classpath.of(vogar.resourceClasspath);
         this.useBootClasspath = vogar.useBootClasspath;
@@ -159,10 +194,13 @@ public final class Run {
         this.classpath = Classpath.of(vogar.classpath);
         this.classpath.addAll(vogarJar());
 
+        FileHasher fileHasher = new FileHasher(log, new File(vogar.vogarDir, "file-hashes"));
         if (vogar.modeId.requiresAndroidSdk()) {
-            androidSdk = new AndroidSdk(log, mkdir, vogar.modeId);
-            androidSdk.setCaches(new HostFileCache(log, mkdir),
-                    new DeviceFileCache(log, runnerDir, androidSdk));
+            androidSdk = new AndroidSdk(log, mkdir, vogar.modeId,
+                    deviceSerials.size() == 1 ? deviceSerials.get(0) : null);
+            androidSdk.setCaches(new HostFileCache(log, vogar.hostCacheDir,
+                            vogar.hostCacheSizeMegabytes * 1024L * 1024L),
+                    new DeviceFileCache(log, runnerDir, androidSdk.deviceFilesystem), fileHasher);
         } else {
             androidSdk = null;
         }
@@ -179,6 +217,12 @@ public final class Run {
             buildClasspath.addAll(androidSdk.getCompilationClasspath());
         }
 
+        this.buildCache = vogar.buildCache
+                ? new BuildCache(log, fileHasher, new File(vogar.vogarDir, "build-cache"),
+                        javaPath("javac"), javacArgs, debugPort != null, classpath,
+                        buildClasspath, sourcepath)
+                : null;
+
         this.classFileIndex = new ClassFileIndex(log, mkdir, vogar.jarSearchDirs);
         if (vogar.suggestClasspaths) {
             classFileIndex.createIndex();
@@ -186,11 +230,110 @@ public final class Run {
 
         this.retrievedFiles = new RetrievedFilesFilter(profile, profileFile);
         this.reportPrinter = new XmlReportPrinter(xmlReportsDirectory, expectationStore, date);
+        this.resourceReport = vogar.resourceReport != null
+                ? new ResourceReport(log, mkdir, vogar.resourceReport)
+                : null;
         this.jarSuggestions = new JarSuggestions();
-        this.outcomeStore = new OutcomeStore(log, mkdir, rm, resultsDir, recordResults,
-                expectationStore, date);
+        this.outcomeStore = new OutcomeStore(log, rm, resultsDir, recordResults,
+                vogar.resultsHistoryRuns, expectationStore, date);
+        // activities can't be asked to run a single test again
+        this.retryPolicy = new RetryPolicy(expectationStore, outcomeStore,
+                vogar.benchmark || vogar.modeId == ModeId.ACTIVITY ? 0 : vogar.flakyRetries);
+        this.taskDurationStore = new TaskDurationStore(log, mkdir,
+                new File(resultsDir.getAbsoluteFile().getParentFile(), "task-durations.json"));
         this.driver = new Driver(this);
-        this.taskQueue = new TaskQueue(console, maxConcurrentActions);
+        Map<Resource, Integer> taskLimits = new EnumMap<Resource, Integer>(Resource.class);
+        taskLimits.put(Resource.TARGET, target instanceof ShardedTarget
+                ? ((ShardedTarget) target).getMaxConcurrentActions()
+                : maxConcurrentActions);
+        taskLimits.put(Resource.COMPILE, maxConcurrentCompiles);
+        taskLimits.put(Resource.DEX, vogar.maxConcurrentDexes != null
+                ? vogar.maxConcurrentDexes
+                : defaultMaxConcurrentDexes());
+        taskLimits.put(Resource.TRANSFER, vogar.maxConcurrentTransfers != null
+                ? vogar.maxConcurrentTransfers
+                : target.defaultMaxConcurrentTransfers());
+        taskLimits.put(Resource.GENERAL, Vogar.NUM_PROCESSORS);
+        this.taskQueue = new TaskQueue(console, taskLimits, taskDurationStore);
+        this.workerPool = vogar.actionsPerWorker > 1
+                ? new WorkerPool(console, firstMonitorPort, maxConcurrentActions,
+                        vogar.actionsPerWorker)
+                : null;
+        this.actionSplitter = vogar.splitActions
+                ? new ActionSplitter(console, classpath, buildClasspath, vogar.methodsPerAction)
+                : null;
+    }
+
+    /**
+     * Returns a target for the SSH hosts in {@code hosts}, each like
+     * "host:port,weight". Several hosts are sharded.
+     */
+    private Target createSshTarget(List<String> hosts) {
+        List<Target> targets = new ArrayList<Target>();
+        List<Integer> weights = new ArrayList<Integer>();
+        for (String host : hosts) {
+            int comma = host.indexOf(',');
+            if (comma == -1) {
+                targets.add(new SshTarget(host, log));
+                weights.add(1);
+            } else {
+                targets.add(new SshTarget(host.substring(0, comma), log));
+                weights.add(Integer.parseInt(host.substring(comma + 1)));
+            }
+        }
+        if (targets.size() == 1) {
+            return targets.get(0);
+        }
+        console.info("Sharding across hosts " + targets);
+        return new ShardedTarget(log, targets, weights, maxConcurrentActions);
+    }
+
+    /**
+     * Returns the serials named by {@code devices}, which may be "all" for
+     * every attached device.
+     */
+    private List<String> deviceSerials(List<String> devices) {
+        if (!devices.contains("all")) {
+            return devices;
+        }
+        List<String> result = new AdbClient(log).devices();
+        if (result.isEmpty()) {
+            throw new RuntimeException("No devices attached");
+        }
+        return result;
+    }
+
+    /**
+     * Returns a target that shards actions across the devices with
+     * {@code serials}, or targets the default device if there's at most one.
+     */
+    private Target createAdbTarget(List<String> serials) {
+        if (serials.size() <= 1) {
+            return new AdbTarget(this, null);
+        }
+        List<Target> devices = new ArrayList<Target>();
+        for (String serial : serials) {
+            devices.add(new AdbTarget(this, serial));
+        }
+        console.info("Sharding across devices " + devices);
+        return new ShardedTarget(log, devices, maxConcurrentActions);
+    }
+
+    /**
+     * Returns as many dx processes as fit in the host's physical memory, but
+     * no more than one per processor. Falls back to half the processors when
+     * the VM doesn't report physical memory.
+     */
+    private static int defaultMaxConcurrentDexes() {
+        try {
+            Class<?> sunOsBean = Class.forName("com.sun.management.OperatingSystemMXBean");
+            long physicalMemory = (Long) sunOsBean.getMethod("getTotalPhysicalMemorySize")
+                    .invoke(ManagementFactory.getOperatingSystemMXBean());
+            int fit = (int) (physicalMemory / DEX_MEMORY_BYTES) - 1; // leave room for the rest
+            return Math.max(1, Math.min(Vogar.NUM_PROCESSORS, fit));
+        } catch (Exception e) {
+            return Math.max(1, Vogar.NUM_PROCESSORS / 2);
+        }
     }
 
     private Mode createMode(ModeId modeId, Variant variant) {
@@ -217,7 +360,7 @@ public final class Run {
         return new File(localTemp + "/" + Strings.join("/", path));
     }
 
-    private File vogarJar() {
+    public File vogarJar() {
         URL jarUrl = Vogar.class.getResource("/vogar/Vogar.class");
         if (jarUrl == null) {
             // should we add an option for IDE users, to use a user-specified vogar.jar?
@@ -0,0 +1,354 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vogar;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import vogar.tasks.Lane;
+import vogar.tasks.Resource;
+import vogar.tasks.Task;
+
+/**
+ * Runs actions across several devices. Devices may be weighted: a device
+ * with weight 2 runs twice as many actions at once, and is expected to get
+ * through twice as much work, as a device with weight 1.
+ *
+ * <p>Each action is placed when it starts, on the device with a free slot
+ * that's expected to finish it first: the device with the least estimated
+ * work running per unit of weight, using durations from previous runs. Since
+ * the task queue starts the longest actions first, this is
+ * longest-processing-time-first scheduling.
+ *
+ * <p>Everything an action might need is installed on every device, so that
+ * it can run anywhere. Each device gets its own push tasks in its own
+ * transfer lane, so devices install at their own pace. Files in an action's
+ * user directory are read from the device that ran it. If a device is lost,
+ * actions running on it are moved to the remaining devices.
+ */
+public final class ShardedTarget extends Target {
+    private final Log log;
+    private final List<Target> devices;
+    private final Map<Target, Integer> weights = new HashMap<Target, Integer>();
+    private final Map<Target, Lane> transferLanes = new HashMap<Target, Lane>();
+    private final int actionsPerDevice;
+
+    /** guarded by this */
+    private final Set<Target> lost = new LinkedHashSet<Target>();
+    /** the number of actions running on each device; guarded by this */
+    private final Map<Target, Integer> running = new HashMap<Target, Integer>();
+    /** the estimated duration of the actions running on each device; guarded by this */
+    private final Map<Target, Long> runningMillis = new HashMap<Target, Long>();
+    /** the device that each action's user dir is on; guarded by this */
+    private final Map<File, Target> placements = new HashMap<File, Target>();
+    /** the estimated duration of each running action; guarded by this */
+    private final Map<File, Long> estimates = new HashMap<File, Long>();
+
+    /**
+     * @param actionsPerDevice the most actions that may run at once on each
+     *     device of weight 1.
+     */
+    public ShardedTarget(Log log, List<Target> devices, int actionsPerDevice) {
+        this(log, devices, Collections.nCopies(devices.size(), 1), actionsPerDevice);
+    }
+
+    /**
+     * @param weights the relative capacity of each device, at least 1.
+     * @param actionsPerDevice the most actions that may run at once on each
+     *     device of weight 1.
+     */
+    public ShardedTarget(Log log, List<Target> devices, List<Integer> weights,
+            int actionsPerDevice) {
+        if (devices.isEmpty() || devices.size() != weights.size()) {
+            throw new IllegalArgumentException("Bad devices " + devices + " or weights " + weights);
+        }
+        this.log = log;
+        this.devices = new ArrayList<Target>(devices);
+        this.actionsPerDevice = actionsPerDevice;
+        for (int i = 0; i < devices.size(); i++) {
+            Target device = devices.get(i);
+            this.weights.put(device, weights.get(i));
+            transferLanes.put(device, new Lane("transfers to " + device,
+                    device.defaultMaxConcurrentTransfers()));
+            running.put(device, 0);
+            runningMillis.put(device, 0L);
+        }
+    }
+
+    public List<Target> getDevices() {
+        return devices;
+    }
+
+    /**
+     * Returns the most actions that may run at once across all devices.
+     */
+    public int getMaxConcurrentActions() {
+        int result = 0;
+        for (Target device : devices) {
+            result += slots(device);
+        }
+        return result;
+    }
+
+    private int slots(Target device) {
+        return actionsPerDevice * weights.get(device);
+    }
+
+    @Override public synchronized boolean acquire(File userDir, long estimatedMillis) {
+        while (true) {
+            Target best = null;
+            for (Target device : devices) {
+                if (!lost.contains(device) && running.get(device) < slots(device)
+                        && (best == null || isBetter(device, best, estimatedMillis))) {
+                    best = device;
+                }
+            }
+            if (best != null) {
+                running.put(best, running.get(best) + 1);
+                runningMillis.put(best, runningMillis.get(best) + estimatedMillis);
+                placements.put(userDir, best);
+                estimates.put(userDir, estimatedMillis);
+                return true;
+            }
+            if (lost.size() == devices.size()) {
+                return false;
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Returns true if {@code a} is expected to finish a new action sooner than
+     * {@code b}. Without history, this prefers the device whose slots are
+     * least used.
+     */
+    private boolean isBetter(Target a, Target b, long estimatedMillis) {
+        // compare (runningMillis + estimatedMillis) / weight without dividing
+        long aFinish = (runningMillis.get(a) + estimatedMillis) * weights.get(b);
+        long bFinish = (runningMillis.get(b) + estimatedMillis) * weights.get(a);
+        if (aFinish != bFinish) {
+            return aFinish < bFinish;
+        }
+        return running.get(a) * slots(b) < running.get(b) * slots(a);
+    }
+
+    @Override public synchronized void release(File userDir) {
+        Target device = placements.get(userDir);
+        Long estimate = estimates.remove(userDir);
+        if (device != null && estimate != null) {
+            running.put(device, running.get(device) - 1);
+            runningMillis.put(device, runningMillis.get(device) - estimate);
+            notifyAll();
+        }
+    }
+
+    @Override public boolean reassign(File userDir) {
+        Target device;
+        long estimate;
+        synchronized (this) {
+            device = placements.get(userDir);
+            Long running = estimates.get(userDir);
+            estimate = running != null ? running : 0;
+        }
+        if (device == null || device.isAvailable()) {
+            return false;
+        }
+        markLost(device);
+        release(userDir);
+        if (!acquire(userDir, estimate)) {
+            return false;
+        }
+        log.info("Moved " + userDir.getName() + " from " + device + " to " + deviceFor(userDir));
+        return true;
+    }
+
+    private synchronized void markLost(Target device) {
+        if (lost.add(device)) {
+            log.warn("Lost device " + device + "; continuing on the remaining devices.");
+            notifyAll();
+        }
+    }
+
+    private synchronized List<Target> availableDevices() {
+        List<Target> result = new ArrayList<Target>(devices);
+        result.removeAll(lost);
+        if (result.isEmpty()) {
+            throw new IllegalStateException("All devices were lost: " + devices);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the device that holds {@code file}: the device its action ran
+     * on, or the first available device if it isn't in a placed action's
+     * user dir.
+     */
+    private synchronized Target deviceFor(File file) {
+        for (File f = file; f != null; f = f.getParentFile()) {
+            Target device = placements.get(f);
+            if (device != null) {
+                return device;
+            }
+        }
+        return availableDevices().get(0);
+    }
+
+    /**
+     * Runs {@code operation} on each available device. A device that fails
+     * and can't be reached is dropped rather than failing the operation.
+     */
+    private void onEachDevice(DeviceOperation operation) {
+        for (Target device : availableDevices()) {
+            onDevice(device, operation);
+        }
+    }
+
+    /**
+     * Runs {@code operation} on {@code device} unless it was lost. A device
+     * that fails and can't be reached is dropped rather than failing the
+     * operation.
+     */
+    private void onDevice(Target device, DeviceOperation operation) {
+        synchronized (this) {
+            if (lost.contains(device)) {
+                return;
+            }
+        }
+        try {
+            operation.run(device);
+        } catch (RuntimeException e) {
+            if (device.isAvailable()) {
+                throw e;
+            }
+            markLost(device);
+            availableDevices(); // throws if every device was lost
+        }
+    }
+
+    private interface DeviceOperation {
+        void run(Target device);
+    }
+
+    @Override public File defaultDeviceDir() {
+        return devices.get(0).defaultDeviceDir();
+    }
+
+    @Override public List<String> targetProcessPrefix(File workingDirectory) {
+        return deviceFor(workingDirectory).targetProcessPrefix(workingDirectory);
+    }
+
+    @Override public String getDeviceUserName() {
+        return availableDevices().get(0).getDeviceUserName();
+    }
+
+    @Override public int defaultMaxConcurrentTransfers() {
+        int result = 0;
+        for (Target device : devices) {
+            result += device.defaultMaxConcurrentTransfers();
+        }
+        return result;
+    }
+
+    @Override public List<File> ls(File directory) throws FileNotFoundException {
+        return deviceFor(directory).ls(directory);
+    }
+
+    @Override public void await(final File nonEmptyDirectory) {
+        onEachDevice(new DeviceOperation() {
+            public void run(Target device) {
+                device.await(nonEmptyDirectory);
+            }
+        });
+    }
+
+    @Override public void rm(final File file) {
+        onEachDevice(new DeviceOperation() {
+            public void run(Target device) {
+                device.rm(file);
+            }
+        });
+    }
+
+    @Override public void mkdirs(final File file) {
+        onEachDevice(new DeviceOperation() {
+            public void run(Target device) {
+                device.mkdirs(file);
+            }
+        });
+    }
+
+    /**
+     * Forwards the port to the first device only: a host port can't be
+     * forwarded to several devices. Modes that need forwarded ports aren't
+     * sharded.
+     */
+    @Override public void forwardTcp(int port) {
+        availableDevices().get(0).forwardTcp(port);
+    }
+
+    @Override public void push(final File local, final File remote) {
+        onEachDevice(new DeviceOperation() {
+            public void run(Target device) {
+                device.push(local, remote);
+            }
+        });
+    }
+
+    @Override public Set<Task> pushTasks(final File local, final File remote) {
+        Set<Task> result = new LinkedHashSet<Task>();
+        for (final Target device : devices) {
+            final Lane lane = transferLanes.get(device);
+            result.add(new Task("push " + remote + " to " + device) {
+                @Override public Resource getResource() {
+                    return Resource.TRANSFER;
+                }
+
+                @Override public Lane getLane() {
+                    return lane;
+                }
+
+                @Override protected Result execute() throws Exception {
+                    onDevice(device, new DeviceOperation() {
+                        public void run(Target target) {
+                            target.push(local, remote);
+                        }
+                    });
+                    return Result.SUCCESS;
+                }
+            });
+        }
+        return result;
+    }
+
+    @Override public void pull(File remote, File local) {
+        deviceFor(remote).pull(remote, local);
+    }
+
+    @Override public String toString() {
+        return devices.toString();
+    }
+}
@@ -19,20 +19,33 @@ package vogar;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import vogar.android.DeviceFilesystem;
 import vogar.commands.Command;
+import vogar.commands.CommandFailedException;
 
 /**
  * Runs actions on a remote host using SSH.
+ *
+ * <p>Commands share a single connection to the host. The first ssh or scp
+ * command opens a master connection, and later commands run as sessions
+ * multiplexed over it, skipping the TCP and SSH handshakes.
  */
 public final class SshTarget extends Target {
+    /** How long the master connection stays open after its last session ends. */
+    private static final int CONTROL_PERSIST_SECONDS = 60;
+
+    /** How long to wait for an unreachable host before giving up on it. */
+    private static final int CONNECT_TIMEOUT_SECONDS = 10;
+
     private final Log log;
     private final String host;
     private final int port;
+    private final List<String> sshOptions;
     private final DeviceFilesystem deviceFilesystem;
 
     public SshTarget(String hostAndPort, Log log) {
@@ -45,7 +58,45 @@ public final class SshTarget extends Target {
             host = hostAndPort;
             port = 22;
         }
-        deviceFilesystem = new DeviceFilesystem(log, "ssh", "-p", Integer.toString(port), host, "-C");
+        // The socket's path is short since Unix domain socket paths are
+        // limited to about 100 bytes. ssh expands the tokens.
+        sshOptions = Arrays.asList(
+                "-o", "ControlMaster=auto",
+                "-o", "ControlPath=/tmp/vogar-ssh-%r@%h:%p",
+                "-o", "ControlPersist=" + CONTROL_PERSIST_SECONDS,
+                "-o", "ConnectTimeout=" + CONNECT_TIMEOUT_SECONDS);
+        List<String> ssh = ssh("-C");
+        deviceFilesystem = new DeviceFilesystem(log, ssh.toArray(new String[ssh.size()]));
+    }
+
+    /**
+     * Returns an ssh command line that runs {@code args} on the host.
+     */
+    private List<String> ssh(String... args) {
+        List<String> result = new ArrayList<String>();
+        result.add("ssh");
+        result.add("-p");
+        result.add(Integer.toString(port));
+        result.addAll(sshOptions);
+        result.add(host);
+        result.addAll(Arrays.asList(args));
+        return result;
+    }
+
+    /**
+     * Returns an scp command line that recursively copies {@code from} to
+     * {@code to}.
+     */
+    private List<String> scp(String from, String to) {
+        List<String> result = new ArrayList<String>();
+        result.add("scp");
+        result.add("-r");
+        result.add("-P");
+        result.add(Integer.toString(port));
+        result.addAll(sshOptions);
+        result.add(from);
+        result.add(to);
+        return result;
     }
 
     @Override public File defaultDeviceDir() {
@@ -54,8 +105,7 @@ public final class SshTarget extends Target {
 
     @Override public List<String> targetProcessPrefix(File workingDirectory) {
         // TODO: drop the LD_LIBRARY_PATH env value; it's needed for third-parth sshd servers
-        return Arrays.asList("ssh", "-p", Integer.toString(port), host, "-C",
-                "cd", workingDirectory.getAbsolutePath(), "&&",
+        return ssh("-C", "cd", workingDirectory.getAbsolutePath(), "&&",
                 "LD_LIBRARY_PATH=/vendor/lib:/system/lib");
     }
 
@@ -63,18 +113,14 @@ public final class SshTarget extends Target {
     }
 
     @Override public void rm(File file) {
-        new Command.Builder(log)
-                .args("ssh", "-p", Integer.toString(port), host, "-C", "rm", "-r", file.getPath())
-                .permitNonZeroExitStatus()
-                .execute();
+        deviceFilesystem.rm(file);
     }
 
     @Override public String getDeviceUserName() {
         // TODO: move this to device set up
         // The default environment doesn't include $USER, so dalvikvm doesn't set "user.name".
         // DeviceDalvikVm uses this to set "user.name" manually with -D.
-        String line = new Command(log, "ssh", "-p", Integer.toString(port), host, "-C", "id")
-                .execute().get(0);
+        String line = new Command(log, ssh("-C", "id")).execute().get(0);
         Matcher m = Pattern.compile("uid=\\d+\\((\\S+)\\) gid=\\d+\\(\\S+\\)").matcher(line);
         return m.matches() ? m.group(1) : "root";
     }
@@ -83,18 +129,16 @@ public final class SshTarget extends Target {
         deviceFilesystem.mkdirs(file);
     }
 
-    @Override public void forwardTcp(final int port) {
+    @Override public void forwardTcp(int port) {
         try {
-            new Command(log, "ssh", "-p", Integer.toString(port), host,
-                    "-L", port + ":" + host + ":" + port, "-N").start();
+            new Command(log, ssh("-L", port + ":" + host + ":" + port, "-N")).start();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
     @Override public void push(File local, File remote) {
-        new Command(log, "scp", "-r", "-P", Integer.toString(port),
-                local.getPath(), host + ":" + remote.getPath()).execute();
+        new Command(log, scp(local.getPath(), host + ":" + remote.getPath())).execute();
     }
 
     @Override public List<File> ls(File directory) throws FileNotFoundException {
@@ -102,7 +146,19 @@ public final class SshTarget extends Target {
     }
 
     @Override public void pull(File remote, File local) {
-        new Command(log, "scp", "-r", "-P", Integer.toString(port),
-                host + ":" + remote.getPath(), local.getPath()).execute();
+        new Command(log, scp(host + ":" + remote.getPath(), local.getPath())).execute();
+    }
+
+    @Override public boolean isAvailable() {
+        try {
+            new Command(log, ssh("true")).execute();
+            return true;
+        } catch (CommandFailedException e) {
+            return false;
+        }
+    }
+
+    @Override public String toString() {
+        return host + ":" + port;
     }
 }
@@ -18,7 +18,10 @@ package vogar;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import vogar.tasks.Resource;
 import vogar.tasks.Task;
 
 /**
@@ -37,13 +40,64 @@ public abstract class Target {
     public abstract void push(File local, File remote);
     public abstract void pull(File remote, File local);
 
-    public final Task pushTask(final File local, final File remote) {
-        return new Task("push " + remote) {
+    /**
+     * Returns how many pushes and pulls may run concurrently before they
+     * start contending for the link to the target.
+     */
+    public int defaultMaxConcurrentTransfers() {
+        return 1;
+    }
+
+    /**
+     * Returns true if the target can still be reached.
+     */
+    public boolean isAvailable() {
+        return true;
+    }
+
+    /**
+     * Reserves a place to run the action whose files are in {@code userDir},
+     * blocking until one is free. Targets with several devices use this to
+     * choose the device that runs the action.
+     *
+     * @param estimatedMillis how long the action took in previous runs, or 0
+     *     if that isn't known.
+     * @return false if there's nowhere left to run the action.
+     */
+    public boolean acquire(File userDir, long estimatedMillis) {
+        return true;
+    }
+
+    /**
+     * Releases the place reserved by {@link #acquire}.
+     */
+    public void release(File userDir) {
+    }
+
+    /**
+     * Called when the action in {@code userDir} didn't complete normally.
+     * Returns true if that's because its device was lost and the action has
+     * been moved to another device, where it should be retried.
+     */
+    public boolean reassign(File userDir) {
+        return false;
+    }
+
+    /**
+     * Returns the tasks that push {@code local} to {@code remote}. Targets
+     * with several devices return a task for each device.
+     */
+    public Set<Task> pushTasks(final File local, final File remote) {
+        return Collections.<Task>singleton(new Task("push " + remote) {
+            @Override public Resource getResource() {
+                return Resource.TRANSFER;
+            }
+
             @Override protected Result execute() throws Exception {
                 push(local, remote);
                 return Result.SUCCESS;
             }
-        };
+        });
     }
 
     public final Task rmTask(final File remote) {
@@ -25,6 +25,7 @@ import java.util.List;
 import java.util.Set;
 import vogar.android.AndroidSdk;
 import vogar.util.Strings;
+import vogar.util.Trace;
 
 /**
  * Command line interface for running benchmarks and tests on dalvik.
@@ -57,7 +58,10 @@ public final class Vogar {
     Variant variant = Variant.X32;
 
     @Option(names = { "--ssh" })
-    String sshHost;
+    List<String> sshHosts = new ArrayList<String>();
+
+    @Option(names = { "--device" })
+    List<String> devices = new ArrayList<String>();
 
     @Option(names = { "--timeout" })
     int timeoutSeconds = 1 * 60; // default is one minute;
@@ -65,6 +69,27 @@ public final class Vogar {
     @Option(names = { "--first-monitor-port" })
     int firstMonitorPort = -1;
 
+    @Option(names = { "--max-concurrent-actions" })
+    Integer maxConcurrentActions;
+
+    @Option(names = { "--max-concurrent-compiles" })
+    Integer maxConcurrentCompiles;
+
+    @Option(names = { "--actions-per-worker" })
+    int actionsPerWorker = 1;
+
+    @Option(names = { "--split-actions" })
+    boolean splitActions;
+
+    @Option(names = { "--methods-per-action" })
+    int methodsPerAction = 50;
+
+    @Option(names = { "--max-concurrent-dexes" })
+    Integer maxConcurrentDexes;
+
+    @Option(names = { "--max-concurrent-transfers" })
+    Integer maxConcurrentTransfers;
+
     @Option(names = { "--clean-before" })
     boolean cleanBefore = true;
 
@@ -77,6 +102,9 @@ public final class Vogar {
     @Option(names = { "--xml-reports-directory" })
     File xmlReportsDirectory;
 
+    @Option(names = { "--resource-report" })
+    File resourceReport;
+
     @Option(names = { "--indent" })
     String indent = "  ";
 
@@ -149,12 +177,36 @@ public final class Vogar {
     @Option(names = { "--vogar-dir" })
     File vogarDir = Vogar.dotFile(".vogar");
 
+    @Option(names = { "--host-cache-dir" })
+    File hostCacheDir = new File("/tmp/vogar-md5-cache");
+
+    @Option(names = { "--host-cache-size" })
+    int hostCacheSizeMegabytes = 2048;
+
+    @Option(names = { "--build-cache" })
+    boolean buildCache = true;
+
     @Option(names = { "--record-results" })
     boolean recordResults = false;
 
     @Option(names = { "--results-dir" })
     File resultsDir = null;
 
+    @Option(names = { "--slowest-tests" })
+    int slowestTests = 10;
+
+    @Option(names = { "--results-history-runs" })
+    int resultsHistoryRuns = 200;
+
+    @Option(names = { "--flaky-retries" })
+    int flakyRetries = 0;
+
+    @Option(names = { "--failed-first" })
+    boolean failedFirst = false;
+
+    @Option(names = { "--fail-fast" })
+    int failFast = 0;
+
     @Option(names = { "--suggest-classpaths" })
     boolean suggestClasspaths = false;
 
@@ -185,6 +237,9 @@ public final class Vogar {
     @Option(names = { "--profile-thread-group" })
     boolean profileThreadGroup = false;
 
+    @Option(names = { "--trace-file" })
+    File traceFile;
+
     private Vogar() {}
 
     private void printUsage() {
@@ -220,12 +275,21 @@ public final class Vogar {
         System.out.println("      x32: 32-bit");
         System.out.println("      Default is: " + variant);
         System.out.println();
-        System.out.println("  --ssh <host:port>: target a remote machine via SSH.");
+        System.out.println("  --ssh <host:port[,weight]>: target a remote machine via SSH. Repeat to");
+        System.out.println("      shard actions across several machines. Each machine runs up to");
+        System.out.println("      weight times --max-concurrent-actions actions, and gets work in");
+        System.out.println("      proportion to its weight. Default weight is 1.");
+        System.out.println();
+        System.out.println("  --device <serial|all>: run on the device with this serial. Repeat to");
+        System.out.println("      shard actions across several devices, or use \"all\" for every");
+        System.out.println("      attached device. Each device runs up to --max-concurrent-actions");
+        System.out.println("      actions. Default is $ANDROID_SERIAL or the only attached device.");
         System.out.println();
         System.out.println("  --clean: synonym for --clean-before and --clean-after (default).");
         System.out.println("      Disable with --no-clean if you want no files removed.");
         System.out.println();
-        System.out.println("  --stream: stream output as it is emitted.");
+        System.out.println("  --stream: stream output as it is emitted. When actions run");
+        System.out.println("      concurrently, each line is prefixed with the name of its outcome.");
         System.out.println();
         System.out.println("  --benchmark: for use with dalvikvm, this dexes all files together,");
         System.out.println("      and is mandatory for running Caliper benchmarks, and a good idea");
@@ -261,6 +325,10 @@ public final class Vogar {
         System.out.println("  --xml-reports-directory <path>: directory to emit JUnit-style");
         System.out.println("      XML test results.");
         System.out.println();
+        System.out.println("  --resource-report <file>: write the time, heap, garbage collection,");
+        System.out.println("      allocation and thread use of each test, and of each action, to");
+        System.out.println("      this JSON file.");
+        System.out.println();
         System.out.println("  --classpath <jar file>: add the .jar to both build and execute classpaths.");
         System.out.println();
         System.out.println("  --use-bootclasspath: use the classpath as search path for bootstrap classes.");
@@ -276,11 +344,45 @@ public final class Vogar {
         System.out.println("      unless they've been put explicitly elsewhere.");
         System.out.println("      Default is: " + vogarDir);
         System.out.println();
+        System.out.println("  --host-cache-dir <directory>: directory in which to cache dex files.");
+        System.out.println("      Default is: " + hostCacheDir);
+        System.out.println();
+        System.out.println("  --host-cache-size <megabytes>: the size of the dex file cache. When");
+        System.out.println("      the cache grows larger, the least recently used files are removed.");
+        System.out.println("      Default is: " + hostCacheSizeMegabytes);
+        System.out.println();
+        System.out.println("  --build-cache: reuse classes compiled by earlier runs for actions whose");
+        System.out.println("      sources and classpath haven't changed (default). The cache is kept");
+        System.out.println("      in the Vogar directory. Disable with --no-build-cache.");
+        System.out.println();
         System.out.println("  --record-results: record test results for future comparison.");
         System.out.println();
         System.out.println("  --results-dir <directory>: read and write (if --record-results used)");
         System.out.println("      results from and to this directory.");
         System.out.println();
+        System.out.println("  --slowest-tests <count>: list this many of the slowest tests after the");
+        System.out.println("      results, with their wall and CPU times. Use 0 to list none.");
+        System.out.println("      Default is: " + slowestTests);
+        System.out.println();
+        System.out.println("  --results-history-runs <count>: the number of runs whose results and");
+        System.out.println("      durations are kept in the results directory.");
+        System.out.println("      Default is: " + resultsHistoryRuns);
+        System.out.println();
+        System.out.println("  --flaky-retries <count>: run a failed test again on its own, in a new");
+        System.out.println("      process, up to this many times if it failed with an error or its");
+        System.out.println("      recorded results have changed from run to run. Only the last");
+        System.out.println("      attempt counts. Use 0 to never run tests again.");
+        System.out.println("      Default is: " + flakyRetries);
+        System.out.println();
+        System.out.println("  --failed-first: start actions whose tests failed or changed result in");
+        System.out.println("      the most recent recorded run ahead of all other actions.");
+        System.out.println("      Default is: " + failedFirst);
+        System.out.println();
+        System.out.println("  --fail-fast <count>: once this many tests have failed unexpectedly,");
+        System.out.println("      let the running actions finish but start no more. Use 0 to run");
+        System.out.println("      every action regardless of failures.");
+        System.out.println("      Default is: " + failFast);
+        System.out.println();
         System.out.println("  --verbose: turn on persistent verbose output.");
         System.out.println();
         System.out.println("TARGET OPTIONS");
@@ -355,7 +457,48 @@ public final class Vogar {
         System.out.println("      used to traffic control messages between vogar and forked processes.");
         System.out.println("      Use this to avoid port conflicts when running multiple vogar instances");
         System.out.println("      concurrently. Vogar will use up to N ports starting with this one,");
-        System.out.println("      where N is the number of processors on the host (" + NUM_PROCESSORS + "). ");
+        System.out.println("      where N is the maximum number of concurrent actions.");
+        System.out.println();
+        System.out.println("  --max-concurrent-actions <count>: the number of actions to execute on");
+        System.out.println("      the target at once. Activity mode requires 1.");
+        System.out.println("      Default is the number of processors on the host (" + NUM_PROCESSORS + ").");
+        System.out.println();
+        System.out.println("  --actions-per-worker <count>: the number of actions each target process");
+        System.out.println("      runs before it's replaced. Values above 1 keep processes running between");
+        System.out.println("      actions, loading each action's classes in a fresh class loader, to save");
+        System.out.println("      the cost of starting a VM. Actions share the process's working");
+        System.out.println("      directory, threads and other VM-wide state, so only use this for");
+        System.out.println("      actions that don't depend on them. A process is also replaced after");
+        System.out.println("      a crash or timeout.");
+        System.out.println("      Default is: " + actionsPerWorker);
+        System.out.println();
+        System.out.println("  --split-actions: run each class of a package action, and each group of");
+        System.out.println("      --methods-per-action test methods of a large class, as its own action so");
+        System.out.println("      they can run in parallel. Only actions whose classes are on the");
+        System.out.println("      classpath are split. Each split action starts its own process unless");
+        System.out.println("      --actions-per-worker is also given. Can't be used in activity mode or");
+        System.out.println("      with --benchmark.");
+        System.out.println("      Default is: " + splitActions);
+        System.out.println();
+        System.out.println("  --methods-per-action <count>: the most test methods of one class to run");
+        System.out.println("      in a single action when splitting actions.");
+        System.out.println("      Default is: " + methodsPerAction);
+        System.out.println();
+        System.out.println("  --max-concurrent-compiles <count>: the number of javac invocations to");
+        System.out.println("      run at once.");
+        System.out.println("      Default is the number of processors on the host (" + NUM_PROCESSORS + ").");
+        System.out.println();
+        System.out.println("  --max-concurrent-dexes <count>: the number of dx invocations to run at");
+        System.out.println("      once. Each may use more than a gigabyte of memory.");
+        System.out.println("      Default is based on the host's processors and physical memory.");
+        System.out.println();
+        System.out.println("  --max-concurrent-transfers <count>: the number of files to push to or");
+        System.out.println("      pull from the target at once.");
+        System.out.println("      Default is 1 for devices and remote hosts.");
+        System.out.println();
+        System.out.println("  --trace-file <file>: write a timeline of every task, command and");
+        System.out.println("      outcome to this file in Chrome's trace event format. Open it with");
+        System.out.println("      chrome://tracing to see where the time went.");
         System.out.println();
         System.out.println("  --open-bugs-command <command>: a command that will take bug IDs as parameters");
         System.out.println("      and return those bugs that are still open. For example, if bugs 123 and");
@@ -416,6 +559,31 @@ public final class Vogar {
             return false;
         }
 
+        if (!devices.isEmpty()) {
+            if (!sshHosts.isEmpty() || !(modeId.isDevice() || modeId == ModeId.ACTIVITY)) {
+                System.out.println("--device requires a device mode");
+                return false;
+            }
+            if (isSharded() && (modeId == ModeId.ACTIVITY || debugPort != null)) {
+                System.out.println("Actions can't be sharded across devices in mode "
+                        + modeId + (debugPort != null ? " with --debug" : ""));
+                return false;
+            }
+        }
+
+        for (String sshHost : sshHosts) {
+            int comma = sshHost.indexOf(',');
+            if (comma != -1 && !sshHost.substring(comma + 1).matches("[1-9][0-9]*")) {
+                System.out.println("Invalid SSH host weight: " + sshHost);
+                return false;
+            }
+        }
+
+        if (sshHosts.size() > 1 && debugPort != null) {
+            System.out.println("Actions can't be sharded across SSH hosts with --debug");
+            return false;
+        }
+
         if (!clean) {
             cleanBefore = false;
             cleanAfter = false;
@@ -438,6 +606,60 @@ public final class Vogar {
             firstMonitorPort = modeId.isLocal() ? 8788 : 8787;
         }
 
+        if (!isPositive(maxConcurrentActions) || !isPositive(maxConcurrentCompiles)
+                || !isPositive(maxConcurrentDexes) || !isPositive(maxConcurrentTransfers)) {
+            System.out.println("Concurrency limits must be at least 1");
+            return false;
+        }
+
+        boolean workersSupported = modeId != ModeId.ACTIVITY && !benchmark && !profile
+                && debugPort == null && !useBootClasspath && !isSharded();
+        if (actionsPerWorker < 1) {
+            System.out.println("Invalid actions per worker: " + actionsPerWorker);
+            return false;
+        } else if (actionsPerWorker > 1 && !workersSupported) {
+            System.out.println("--actions-per-worker can't be used in mode " + modeId
+                    + " or with --benchmark, --profile, --debug, --use-bootclasspath or"
+                    + " several devices");
+            return false;
+        }
+
+        if (splitActions && (modeId == ModeId.ACTIVITY || benchmark)) {
+            System.out.println("--split-actions can't be used in mode " + modeId
+                    + " or with --benchmark");
+            return false;
+        }
+
+        if (slowestTests < 0) {
+            System.out.println("Invalid slowest tests: " + slowestTests);
+            return false;
+        }
+
+        if (resultsHistoryRuns < 1) {
+            System.out.println("Invalid results history runs: " + resultsHistoryRuns);
+            return false;
+        }
+
+        if (flakyRetries < 0) {
+            System.out.println("Invalid flaky retries: " + flakyRetries);
+            return false;
+        }
+
+        if (failFast < 0) {
+            System.out.println("Invalid fail fast count: " + failFast);
+            return false;
+        }
+
+        if (methodsPerAction < 1) {
+            System.out.println("Invalid methods per action: " + methodsPerAction);
+            return false;
+        }
+
+        if (hostCacheSizeMegabytes < 1) {
+            System.out.println("Invalid host cache size: " + hostCacheSizeMegabytes);
+            return false;
+        }
+
         if (profileFile == null) {
             profileFile = new File(profileBinary ? "java.hprof" : "java.hprof.txt");
         }
@@ -480,13 +702,34 @@ public final class Vogar {
         return true;
     }
 
+    /**
+     * Returns true if actions may be spread across several devices.
+     */
+    boolean isSharded() {
+        return devices.size() > 1 || devices.contains("all") || sshHosts.size() > 1;
+    }
+
+    /**
+     * Returns true if {@code limit} is unset or at least 1.
+     */
+    private static boolean isPositive(Integer limit) {
+        return limit == null || limit > 0;
+    }
+
     private boolean run() throws IOException {
-        Run run = new Run(this);
-        if (configArgs.length > 0) {
-            run.console.verbose("loaded arguments from .vogarconfig: " +
-                                Strings.join(" ", configArgs));
+        if (traceFile != null) {
+            Trace.start(traceFile);
+        }
+        try {
+            Run run = new Run(this);
+            if (configArgs.length > 0) {
+                run.console.verbose("loaded arguments from .vogarconfig: " +
+                                    Strings.join(" ", configArgs));
+            }
+            return run.driver.buildAndRun(actionFiles, actionClassesAndPackages);
+        } finally {
+            Trace.stop();
         }
-        return run.driver.buildAndRun(actionFiles, actionClassesAndPackages);
     }
 
     public static void main(String[] args) throws IOException {
@@ -25,6 +25,7 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.TimeZone;
 import org.kxml2.io.KXmlSerializer;
@@ -34,9 +35,6 @@ import org.kxml2.io.KXmlSerializer;
  * Writes JUnit results to a series of XML files in a format consistent with
  * Ant's XMLJUnitResultFormatter.
  *
- * <p>Unlike Ant's formatter, this class does not report the execution time of
- * tests.
- *
  * TODO: unify this and com.google.coretests.XmlReportPrinter
  */
 public class XmlReportPrinter {
@@ -113,6 +111,13 @@ public class XmlReportPrinter {
         return result;
     }
 
+    /**
+     * Formats a duration like Ant does, as seconds with millisecond precision.
+     */
+    private static String formatSeconds(long millis) {
+        return String.format(Locale.US, "%.3f", millis / 1000.0);
+    }
+
     class Suite {
         private final String name;
         private final List<Outcome> outcomes = new ArrayList<Outcome>();
@@ -129,7 +134,11 @@ public class XmlReportPrinter {
             serializer.attribute(ns, XmlReportConstants.ATTR_TESTS, Integer.toString(outcomes.size()));
             serializer.attribute(ns, XmlReportConstants.ATTR_FAILURES, Integer.toString(failuresCount));
             serializer.attribute(ns, XmlReportConstants.ATTR_ERRORS, Integer.toString(errorsCount));
-            serializer.attribute(ns, XmlReportConstants.ATTR_TIME, "0");
+            long durationMillis = 0;
+            for (Outcome outcome : outcomes) {
+                durationMillis += Math.max(0, outcome.getDurationMillis());
+            }
+            serializer.attribute(ns, XmlReportConstants.ATTR_TIME, formatSeconds(durationMillis));
             serializer.attribute(ns, XmlReportConstants.TIMESTAMP, timestamp);
             serializer.attribute(ns, XmlReportConstants.HOSTNAME, "localhost");
             serializer.startTag(ns, XmlReportConstants.PROPERTIES);
@@ -146,7 +155,8 @@ public class XmlReportPrinter {
             serializer.startTag(ns, XmlReportConstants.TESTCASE);
             serializer.attribute(ns, XmlReportConstants.ATTR_NAME, outcome.getTestName());
             serializer.attribute(ns, XmlReportConstants.ATTR_CLASSNAME, outcome.getSuiteName());
-            serializer.attribute(ns, XmlReportConstants.ATTR_TIME, "0");
+            serializer.attribute(ns, XmlReportConstants.ATTR_TIME,
+                    formatSeconds(Math.max(0, outcome.getDurationMillis())));
 
             Expectation expectation = expectationStore.get(outcome);
             if (!expectation.matches(outcome)) {
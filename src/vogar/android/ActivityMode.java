@@ -65,4 +65,8 @@ public final class ActivityMode implements Mode {
     @Override public Classpath getRuntimeClasspath(Action action) {
         throw new UnsupportedOperationException();
     }
+
+    @Override public Classpath getActionClasspath(Action action) {
+        throw new UnsupportedOperationException();
+    }
 }
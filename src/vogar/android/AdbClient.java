@@ -0,0 +1,676 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vogar.android;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+import vogar.Log;
+import vogar.commands.Command;
+import vogar.commands.CommandFailedException;
+import vogar.util.IoUtils;
+
+/**
+ * Talks to the adb server over its TCP protocol, so that device operations
+ * don't each fork an adb client process.
+ *
+ * <p>Every request is a length-prefixed string answered by "OKAY" or "FAIL".
+ * Device services first select a device with a "host:transport" request, then
+ * name the service, like "shell:" or "sync:". Shell connections are used
+ * once, but sync connections for file transfers are pooled and reused.
+ *
+ * <p>Every socket has connect and read timeouts, so a server or device that
+ * stops answering fails the operation instead of hanging it.
+ */
+public final class AdbClient implements DeviceFilesystem.Shell {
+    public static final int DEFAULT_PORT = 5037;
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 10 * 1000;
+
+    /** The longest wait for a response, unless the caller sets its own. */
+    private static final int READ_TIMEOUT_MILLIS = 60 * 1000;
+
+    /** The largest payload the sync protocol allows in a DATA message. */
+    private static final int SYNC_DATA_MAX = 64 * 1024;
+
+    /** Appended to shell commands to recover their exit status. */
+    private static final String EXIT_STATUS_MARKER = "vogar-exit-status:";
+
+    private static final int S_IFMT = 0170000;
+    private static final int S_IFDIR = 0040000;
+    private static final int S_IFREG = 0100000;
+
+    private final Log log;
+    private final String host;
+    private final int port;
+    private final String serial;
+    private final LinkedList<SyncConnection> idleSyncConnections = new LinkedList<SyncConnection>();
+    private boolean serverStarted;
+
+    /**
+     * Creates a client for the device named by $ANDROID_SERIAL, or the only
+     * device if that's unset, using the local adb server.
+     */
+    public AdbClient(Log log) {
+        this(log, "127.0.0.1", defaultPort(), System.getenv("ANDROID_SERIAL"));
+    }
+
+    /**
+     * @param serial the device to use, or null to use the only device.
+     */
+    public AdbClient(Log log, String host, int port, String serial) {
+        this.log = log;
+        this.host = host;
+        this.port = port;
+        this.serial = serial;
+    }
+
+    /**
+     * Returns a client for the device with {@code serial} on the same adb
+     * server as this client.
+     */
+    public AdbClient forDevice(String serial) {
+        return new AdbClient(log, host, port, serial);
+    }
+
+    /**
+     * Returns the serial of this client's device, or null if it uses the only
+     * device.
+     */
+    public String getSerial() {
+        return serial;
+    }
+
+    /**
+     * Returns the serials of the devices that are attached and online.
+     */
+    public List<String> devices() {
+        log.verbose("executing adb host:devices");
+        try {
+            Socket socket = connect();
+            try {
+                request(socket, "host:devices");
+                InputStream in = socket.getInputStream();
+                String devices = readString(in, Integer.parseInt(readString(in, 4), 16));
+                List<String> result = new ArrayList<String>();
+                for (String line : lines(devices)) {
+                    String[] serialAndState = line.split("\t");
+                    if (serialAndState.length == 2 && serialAndState[1].equals("device")) {
+                        result.add(serialAndState[0]);
+                    }
+                }
+                return result;
+            } finally {
+                socket.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to list devices", e);
+        }
+    }
+
+    /**
+     * Returns true if the device is attached and online.
+     */
+    public boolean isOnline() {
+        try {
+            openTransport().close();
+            return true;
+        } catch (CommandFailedException e) {
+            return false;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static int defaultPort() {
+        String port = System.getenv("ANDROID_ADB_SERVER_PORT");
+        return port != null ? Integer.parseInt(port) : DEFAULT_PORT;
+    }
+
+    /**
+     * Runs {@code command} in the device's shell and returns its output.
+     *
+     * @throws CommandFailedException if the command exits with a non-zero
+     *     status.
+     */
+    public List<String> shell(String command) {
+        return execute(command, false);
+    }
+
+    public List<String> execute(String command, boolean permitNonZeroExitStatus) {
+        try {
+            return execute(command, permitNonZeroExitStatus, READ_TIMEOUT_MILLIS, 0);
+        } catch (TimeoutException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Runs {@code command} in the device's shell and returns its output.
+     *
+     * @param timeoutSeconds the longest to wait for the command to finish,
+     *     at least 1.
+     * @throws TimeoutException if the command doesn't finish in time.
+     */
+    public List<String> executeWithTimeout(String command, boolean permitNonZeroExitStatus,
+            int timeoutSeconds) throws TimeoutException {
+        if (timeoutSeconds < 1) {
+            throw new IllegalArgumentException("timeoutSeconds: " + timeoutSeconds);
+        }
+        int timeoutMillis = timeoutSeconds * 1000;
+        return execute(command, permitNonZeroExitStatus, timeoutMillis,
+                System.currentTimeMillis() + timeoutMillis);
+    }
+
+    /**
+     * @param deadline the time by which the command must finish, or 0 to
+     *     only limit the wait for each response.
+     */
+    private List<String> execute(String command, boolean permitNonZeroExitStatus,
+            int timeoutMillis, long deadline) throws TimeoutException {
+        List<String> args = Arrays.asList("adb", "shell", command);
+        log.verbose("executing " + args);
+        String output;
+        try {
+            Socket socket = openTransport(timeoutMillis);
+            try {
+                request(socket, "shell:" + command + "; echo " + EXIT_STATUS_MARKER + "$?");
+                output = new String(readFully(socket, deadline), "UTF-8");
+            } finally {
+                socket.close();
+            }
+        } catch (SocketTimeoutException e) {
+            TimeoutException timeout = new TimeoutException(
+                    "No response to " + args + " after " + timeoutMillis + "ms");
+            timeout.initCause(e);
+            throw timeout;
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to execute " + args, e);
+        }
+
+        // the marker may follow output that doesn't end with a newline
+        int marker = output.lastIndexOf(EXIT_STATUS_MARKER);
+        if (marker == -1) {
+            throw new CommandFailedException(args, lines(output));
+        }
+        int exitStatus = Integer.parseInt(
+                output.substring(marker + EXIT_STATUS_MARKER.length()).trim());
+        List<String> outputLines = lines(output.substring(0, marker));
+        if (exitStatus != 0 && !permitNonZeroExitStatus) {
+            throw new CommandFailedException(args, outputLines);
+        }
+        return outputLines;
+    }
+
+    /**
+     * Forwards connections to {@code port} on the host to the same port on
+     * the device.
+     */
+    public void forwardTcp(int port) {
+        String prefix = serial != null ? "host-serial:" + serial + ":" : "host:";
+        String request = prefix + "forward:tcp:" + port + ";tcp:" + port;
+        log.verbose("executing adb " + request);
+        try {
+            Socket socket = connect();
+            try {
+                request(socket, request);
+                readStatus(socket.getInputStream(), request); // the forward was installed
+            } finally {
+                socket.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to forward port " + port, e);
+        }
+    }
+
+    /**
+     * Blocks until the device is available.
+     */
+    public void waitForDevice() {
+        while (true) {
+            try {
+                openTransport().close();
+                return;
+            } catch (CommandFailedException e) {
+                log.verbose("waiting for device: " + e.getOutputLines());
+            } catch (SocketTimeoutException e) {
+                log.verbose("waiting for device: " + e.getMessage());
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to wait for device", e);
+            }
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Remounts the device's system partition read-write.
+     */
+    public List<String> remount() {
+        log.verbose("executing adb remount");
+        try {
+            Socket socket = openTransport();
+            try {
+                request(socket, "remount:");
+                return lines(new String(readFully(socket.getInputStream()), "UTF-8"));
+            } finally {
+                socket.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to remount", e);
+        }
+    }
+
+    /**
+     * Copies {@code local}, a file or directory, to {@code remote}. The
+     * device creates missing parent directories.
+     */
+    public void push(File local, File remote) {
+        log.verbose("pushing " + local + " to " + remote);
+        SyncConnection connection = takeSyncConnection();
+        boolean reusable = false;
+        try {
+            pushRecursive(connection, local, remote);
+            reusable = true;
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to push " + local + " to " + remote, e);
+        } finally {
+            releaseSyncConnection(connection, reusable);
+        }
+    }
+
+    private void pushRecursive(SyncConnection connection, File local, File remote)
+            throws IOException {
+        if (local.isDirectory()) {
+            File[] files = local.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    pushRecursive(connection, file, new File(remote, file.getName()));
+                }
+            }
+        } else {
+            int mode = S_IFREG | (local.canExecute() ? 0755 : 0644);
+            connection.send("SEND", remote.getPath() + "," + mode);
+            byte[] buffer = new byte[SYNC_DATA_MAX];
+            InputStream in = new FileInputStream(local);
+            try {
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    connection.send("DATA", buffer, count);
+                }
+            } finally {
+                in.close();
+            }
+            connection.send("DONE", (int) (local.lastModified() / 1000));
+            connection.flush();
+            connection.readOkay("push " + remote);
+        }
+    }
+
+    /**
+     * Copies {@code remote}, a file or directory, to {@code local}. If
+     * {@code local} is an existing directory, the copy is made inside it.
+     */
+    public void pull(File remote, File local) {
+        log.verbose("pulling " + remote + " to " + local);
+        if (local.isDirectory()) {
+            local = new File(local, remote.getName());
+        }
+        SyncConnection connection = takeSyncConnection();
+        boolean reusable = false;
+        try {
+            pullRecursive(connection, remote, local);
+            reusable = true;
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to pull " + remote + " to " + local, e);
+        } finally {
+            releaseSyncConnection(connection, reusable);
+        }
+    }
+
+    private void pullRecursive(SyncConnection connection, File remote, File local)
+            throws IOException {
+        int mode = connection.stat(remote);
+        if (mode == 0) {
+            throw new CommandFailedException(Arrays.asList("adb", "pull", remote.getPath()),
+                    Collections.singletonList(remote + ": No such file or directory"));
+        }
+
+        if ((mode & S_IFMT) == S_IFDIR) {
+            if (!local.isDirectory() && !local.mkdirs()) {
+                throw new IOException("Failed to make directory " + local);
+            }
+            for (String name : connection.list(remote)) {
+                pullRecursive(connection, new File(remote, name), new File(local, name));
+            }
+            return;
+        }
+
+        connection.send("RECV", remote.getPath());
+        connection.flush();
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(local));
+        try {
+            byte[] buffer = new byte[SYNC_DATA_MAX];
+            while (true) {
+                String id = connection.readId();
+                int length = connection.readInt();
+                if (id.equals("DATA")) {
+                    connection.in.readFully(buffer, 0, length);
+                    out.write(buffer, 0, length);
+                } else if (id.equals("DONE")) {
+                    break;
+                } else {
+                    throw connection.failure(id, length, "pull " + remote);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private synchronized SyncConnection takeSyncConnection() {
+        if (!idleSyncConnections.isEmpty()) {
+            return idleSyncConnections.removeFirst();
+        }
+        try {
+            Socket socket = openTransport();
+            request(socket, "sync:");
+            return new SyncConnection(socket);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to start a file transfer", e);
+        }
+    }
+
+    private synchronized void releaseSyncConnection(SyncConnection connection, boolean reusable) {
+        if (reusable) {
+            idleSyncConnections.addLast(connection);
+        } else {
+            connection.close();
+        }
+    }
+
+    /**
+     * Returns a connection to the adb server, starting the server if it isn't
+     * already running.
+     */
+    private Socket connect() throws IOException {
+        return connect(READ_TIMEOUT_MILLIS);
+    }
+
+    private Socket connect(int readTimeoutMillis) throws IOException {
+        try {
+            return newSocket(readTimeoutMillis);
+        } catch (ConnectException e) {
+            synchronized (this) {
+                if (serverStarted) {
+                    throw e;
+                }
+                serverStarted = true;
+            }
+            new Command(log, "adb", "start-server").execute();
+            return newSocket(readTimeoutMillis);
+        }
+    }
+
+    private Socket newSocket(int readTimeoutMillis) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setSoTimeout(readTimeoutMillis);
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a connection to the adb daemon on the device.
+     */
+    private Socket openTransport() throws IOException {
+        return openTransport(READ_TIMEOUT_MILLIS);
+    }
+
+    private Socket openTransport(int readTimeoutMillis) throws IOException {
+        Socket socket = connect(readTimeoutMillis);
+        try {
+            request(socket, serial != null ? "host:transport:" + serial : "host:transport-any");
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        } catch (RuntimeException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Sends {@code request} prefixed by its length in hex, and reads the
+     * server's status.
+     */
+    private void request(Socket socket, String request) throws IOException {
+        byte[] bytes = request.getBytes("UTF-8");
+        OutputStream out = socket.getOutputStream();
+        out.write(String.format("%04x", bytes.length).getBytes("UTF-8"));
+        out.write(bytes);
+        out.flush();
+        readStatus(socket.getInputStream(), request);
+    }
+
+    private void readStatus(InputStream in, String request) throws IOException {
+        String status = readString(in, 4);
+        if (status.equals("OKAY")) {
+            return;
+        }
+        String message = status.equals("FAIL")
+                ? readString(in, Integer.parseInt(readString(in, 4), 16))
+                : "unexpected response " + status;
+        throw new CommandFailedException(Arrays.asList("adb", request),
+                Collections.singletonList(message));
+    }
+
+    private static String readString(InputStream in, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        new DataInputStream(in).readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            bytes.write(buffer, 0, count);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads until the socket's stream ends, failing with a
+     * SocketTimeoutException once {@code deadline} passes. If it's 0, only
+     * the socket's read timeout applies.
+     */
+    private static byte[] readFully(Socket socket, long deadline) throws IOException {
+        InputStream in = socket.getInputStream();
+        if (deadline == 0) {
+            return readFully(in);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        while (true) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                throw new SocketTimeoutException("Read timed out");
+            }
+            socket.setSoTimeout((int) remaining);
+            int count = in.read(buffer);
+            if (count == -1) {
+                return bytes.toByteArray();
+            }
+            bytes.write(buffer, 0, count);
+        }
+    }
+
+    /**
+     * Splits shell output into lines, dropping the carriage returns that
+     * some devices' terminals add.
+     */
+    private static List<String> lines(String output) {
+        List<String> result = new ArrayList<String>();
+        if (output.length() == 0) {
+            return result;
+        }
+        for (String line : output.split("\n", -1)) {
+            result.add(line.endsWith("\r") ? line.substring(0, line.length() - 1) : line);
+        }
+        if (result.get(result.size() - 1).length() == 0) {
+            result.remove(result.size() - 1);
+        }
+        return result;
+    }
+
+    /**
+     * A connection in sync mode. Sync messages are a four character ID and a
+     * little-endian length or value, followed by that many bytes of payload.
+     */
+    private static final class SyncConnection {
+        private final Socket socket;
+        private final DataInputStream in;
+        private final OutputStream out;
+        private final byte[] header = new byte[8];
+
+        SyncConnection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.out = new BufferedOutputStream(socket.getOutputStream(), SYNC_DATA_MAX + 8);
+        }
+
+        void send(String id, String payload) throws IOException {
+            byte[] bytes = payload.getBytes("UTF-8");
+            send(id, bytes, bytes.length);
+        }
+
+        void send(String id, byte[] payload, int length) throws IOException {
+            send(id, length);
+            out.write(payload, 0, length);
+        }
+
+        void send(String id, int value) throws IOException {
+            for (int i = 0; i < 4; i++) {
+                header[i] = (byte) id.charAt(i);
+                header[4 + i] = (byte) (value >>> (8 * i));
+            }
+            out.write(header);
+        }
+
+        void flush() throws IOException {
+            out.flush();
+        }
+
+        String readId() throws IOException {
+            return readString(in, 4);
+        }
+
+        int readInt() throws IOException {
+            int result = 0;
+            for (int i = 0; i < 4; i++) {
+                result |= in.readUnsignedByte() << (8 * i);
+            }
+            return result;
+        }
+
+        void readOkay(String operation) throws IOException {
+            String id = readId();
+            int length = readInt();
+            if (!id.equals("OKAY")) {
+                throw failure(id, length, operation);
+            }
+        }
+
+        CommandFailedException failure(String id, int length, String operation)
+                throws IOException {
+            String message = id.equals("FAIL")
+                    ? readString(in, length)
+                    : "unexpected response " + id;
+            return new CommandFailedException(Arrays.asList("adb", operation),
+                    Collections.singletonList(message));
+        }
+
+        /**
+         * Returns the mode of {@code remote}, or 0 if it doesn't exist.
+         */
+        int stat(File remote) throws IOException {
+            send("STAT", remote.getPath());
+            flush();
+            String id = readId();
+            if (!id.equals("STAT")) {
+                throw failure(id, readInt(), "stat " + remote);
+            }
+            int mode = readInt();
+            readInt(); // size
+            readInt(); // modification time
+            return mode;
+        }
+
+        List<String> list(File remote) throws IOException {
+            send("LIST", remote.getPath());
+            flush();
+            List<String> result = new ArrayList<String>();
+            while (true) {
+                String id = readId();
+                if (id.equals("DONE")) {
+                    in.readFully(new byte[16]); // an empty entry
+                    return result;
+                } else if (!id.equals("DENT")) {
+                    throw failure(id, readInt(), "list " + remote);
+                }
+                readInt(); // mode
+                readInt(); // size
+                readInt(); // modification time
+                String name = readString(in, readInt());
+                if (!name.equals(".") && !name.equals("..")) {
+                    result.add(name);
+                }
+            }
+        }
+
+        void close() {
+            IoUtils.closeQuietly(socket);
+        }
+    }
+}
@@ -16,7 +16,6 @@
 
 package vogar.android;
 
-import com.google.common.collect.ImmutableList;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.util.List;
@@ -24,13 +23,21 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import vogar.Run;
 import vogar.Target;
-import vogar.commands.Command;
 
 public final class AdbTarget extends Target {
     private final Run run;
+    private final String serial;
 
-    public AdbTarget(Run run) {
+    /**
+     * @param serial the device to target, or null for the default device.
+     */
+    public AdbTarget(Run run, String serial) {
         this.run = run;
+        this.serial = serial;
+    }
+
+    private AndroidSdk androidSdk() {
+        return run.androidSdk.forDevice(serial);
     }
 
     @Override public File defaultDeviceDir() {
@@ -38,47 +45,55 @@ public final class AdbTarget extends Target {
     }
 
     @Override public List<String> targetProcessPrefix(File workingDirectory) {
-        return ImmutableList.of("adb", "shell", "cd", workingDirectory.getAbsolutePath(), "&&");
+        return androidSdk().adbCommand("shell", "cd", workingDirectory.getAbsolutePath(), "&&");
     }
 
     // TODO: pull the methods from androidsdk into here
 
     @Override public void await(File nonEmptyDirectory) {
-        run.androidSdk.waitForDevice();
-        run.androidSdk.waitForNonEmptyDirectory(nonEmptyDirectory, 5 * 60);
-        run.androidSdk.remount();
+        androidSdk().waitForDevice();
+        androidSdk().waitForNonEmptyDirectory(nonEmptyDirectory, 5 * 60);
+        androidSdk().remount();
     }
 
     @Override public List<File> ls(File directory) throws FileNotFoundException {
-        return run.androidSdk.deviceFilesystem.ls(directory);
+        return androidSdk().deviceFilesystem.ls(directory);
     }
 
     @Override public String getDeviceUserName() {
         // TODO: move this to device set up
         // The default environment doesn't include $USER, so dalvikvm doesn't set "user.name".
         // DeviceDalvikVm uses this to set "user.name" manually with -D.
-        String line = new Command(run.log, "adb", "shell", "id").execute().get(0);
+        String line = androidSdk().adb.shell("id").get(0);
         Matcher m = Pattern.compile("uid=\\d+\\((\\S+)\\) gid=\\d+\\(\\S+\\)").matcher(line);
         return m.matches() ? m.group(1) : "root";
     }
 
     @Override public void rm(File file) {
-        run.androidSdk.rm(file);
+        androidSdk().rm(file);
     }
 
     @Override public void mkdirs(File file) {
-        run.androidSdk.deviceFilesystem.mkdirs(file);
+        androidSdk().deviceFilesystem.mkdirs(file);
     }
 
     @Override public void forwardTcp(int port) {
-        run.androidSdk.forwardTcp(port);
+        androidSdk().forwardTcp(port);
     }
 
     @Override public void push(File local, File remote) {
-        run.androidSdk.push(local, remote);
+        androidSdk().push(local, remote);
     }
 
     @Override public void pull(File remote, File local) {
-        run.androidSdk.pull(remote, local);
+        androidSdk().pull(remote, local);
+    }
+
+    @Override public boolean isAvailable() {
+        return androidSdk().adb.isOnline();
+    }
+
+    @Override public String toString() {
+        return serial != null ? serial : "device";
     }
 }
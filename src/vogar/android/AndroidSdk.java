@@ -22,14 +22,19 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeoutException;
 import vogar.Classpath;
+import vogar.FileHasher;
 import vogar.HostFileCache;
 import vogar.Log;
 import vogar.Md5Cache;
 import vogar.ModeId;
 import vogar.commands.Command;
+import vogar.commands.CommandFailedException;
 import vogar.commands.Mkdir;
 import vogar.util.Strings;
 
@@ -65,10 +70,16 @@ public class AndroidSdk {
     private final Log log;
     private final Mkdir mkdir;
     private final File[] compilationClasspath;
+    public final AdbClient adb;
     public final DeviceFilesystem deviceFilesystem;
 
+    private FileHasher fileHasher;
     private Md5Cache dexCache;
     private Md5Cache pushCache;
+    private DeviceFileCache deviceCache;
+
+    /** the SDK for each device other than the default; guarded by this */
+    private final Map<String, AndroidSdk> devices = new HashMap<String, AndroidSdk>();
 
     public static Collection<File> defaultExpectations() {
         File[] files = new File("libcore/expectations").listFiles(new FilenameFilter() {
@@ -80,10 +91,15 @@ public class AndroidSdk {
         return (files != null) ? Arrays.asList(files) : Collections.<File>emptyList();
     }
 
-    public AndroidSdk(Log log, Mkdir mkdir, ModeId modeId) {
+    /**
+     * @param serial the device to run device commands on, or null to use
+     *     $ANDROID_SERIAL or the only attached device.
+     */
+    public AndroidSdk(Log log, Mkdir mkdir, ModeId modeId, String serial) {
         this.log = log;
         this.mkdir = mkdir;
-        this.deviceFilesystem = new DeviceFilesystem(log, "adb", "shell");
+        this.adb = serial != null ? new AdbClient(log).forDevice(serial) : new AdbClient(log);
+        this.deviceFilesystem = new DeviceFilesystem(adb);
 
         List<String> path = new Command(log, "which", "adb").execute();
         if (path.isEmpty()) {
@@ -137,6 +153,40 @@ public class AndroidSdk {
         }
     }
 
+    /**
+     * Creates an SDK that shares {@code base}'s tools and host caches, but
+     * runs device commands on {@code adb}'s device.
+     */
+    private AndroidSdk(AndroidSdk base, AdbClient adb) {
+        this.log = base.log;
+        this.mkdir = base.mkdir;
+        this.compilationClasspath = base.compilationClasspath;
+        this.adb = adb;
+        this.deviceFilesystem = new DeviceFilesystem(adb);
+        this.fileHasher = base.fileHasher;
+        this.dexCache = base.dexCache;
+        if (base.deviceCache != null) {
+            this.deviceCache = base.deviceCache.forDevice(deviceFilesystem);
+            this.pushCache = new Md5Cache(log, "pushed", deviceCache, fileHasher);
+        }
+    }
+
+    /**
+     * Returns an SDK whose device commands run on the device with
+     * {@code serial}. Each device has its own device cache.
+     */
+    public synchronized AndroidSdk forDevice(String serial) {
+        if (serial == null || serial.equals(adb.getSerial())) {
+            return this;
+        }
+        AndroidSdk result = devices.get(serial);
+        if (result == null) {
+            result = new AndroidSdk(this, adb.forDevice(serial));
+            devices.put(serial, result);
+        }
+        return result;
+    }
+
     /**
      * Returns the platform directory that has the highest API version. API
      * platform directories are named like "android-9" or "android-11".
@@ -187,9 +237,12 @@ public class AndroidSdk {
         return compilationClasspath;
     }
 
-    public void setCaches(HostFileCache hostFileCache, DeviceFileCache deviceCache) {
-        this.dexCache = new Md5Cache(log, "dex", hostFileCache);
-        this.pushCache = new Md5Cache(log, "pushed", deviceCache);
+    public void setCaches(HostFileCache hostFileCache, DeviceFileCache deviceCache,
+            FileHasher fileHasher) {
+        this.fileHasher = fileHasher;
+        this.dexCache = new Md5Cache(log, "dex", hostFileCache, fileHasher);
+        this.pushCache = new Md5Cache(log, "pushed", deviceCache, fileHasher);
+        this.deviceCache = deviceCache;
     }
 
     /**
@@ -217,7 +270,11 @@ public class AndroidSdk {
          *
          * Memory options pulled from build/core/definitions.mk to
          * handle large dx input when building dex for APK.
+         *
+         * Delete the output first: it may be a hard link into the host cache,
+         * which dx would otherwise overwrite in place.
          */
+        output.delete();
         new Command.Builder(log)
                 .args("dx")
                 .args("-JXms16M")
@@ -242,60 +299,123 @@ public class AndroidSdk {
         new Command(log, "aapt", "add", "-k", apk.getPath(), dex.getPath()).execute();
     }
 
-    public void mv(File source, File destination) {
-        new Command(log, "adb", "shell", "mv", source.getPath(), destination.getPath()).execute();
-    }
-
     public void rm(File name) {
-        new Command(log, "adb", "shell", "rm", "-r", name.getPath()).execute();
-    }
-
-    public void cp(File source, File destination) {
-        // adb doesn't support "cp" command directly
-        new Command(log, "adb", "shell", "cat", source.getPath(), ">", destination.getPath())
-                .execute();
+        deviceFilesystem.rm(name);
     }
 
     public void pull(File remote, File local) {
-        new Command(log, "adb", "pull", remote.getPath(), local.getPath()).execute();
+        adb.pull(remote, local);
     }
 
     public void push(File local, File remote) {
-        Command fallback = new Command(log, "adb", "push", local.getPath(), remote.getPath());
         deviceFilesystem.mkdirs(remote.getParentFile());
-        // don't yet cache directories (only used by jtreg tests)
         if (pushCache != null && local.isFile()) {
             String key = pushCache.makeKey(local);
-            boolean cacheHit = pushCache.getFromCache(remote, key);
-            if (cacheHit) {
-                log.verbose("device cache hit for " + local);
-                return;
+            try {
+                if (pushCache.getFromCache(remote, key)) {
+                    log.verbose("device cache hit for " + local);
+                    return;
+                }
+            } catch (CommandFailedException e) {
+                log.verbose("device cache failed to restore " + local + ": " + e.getMessage());
             }
-            fallback.execute();
+            adb.push(local, remote);
             pushCache.insert(key, remote);
+        } else if (pushCache != null && local.isDirectory()) {
+            pushDirectory(local, remote);
         } else {
-            fallback.execute();
+            adb.push(local, remote);
+        }
+    }
+
+    /**
+     * Pushes a directory through the device cache. The directory is described
+     * by a manifest of the key of each file within it. If every file is
+     * cached, the whole directory is copied into place with a single shell
+     * invocation. Otherwise it's pushed and its files are added to the cache.
+     */
+    private void pushDirectory(File local, File remote) {
+        Map<File, String> manifest = new LinkedHashMap<File, String>();
+        List<File> directories = new ArrayList<File>();
+        directories.add(remote);
+        addToManifest(manifest, directories, local, remote);
+
+        boolean allCached = true;
+        for (String key : manifest.values()) {
+            allCached &= deviceCache.existsInCache(key);
+        }
+        if (allCached) {
+            try {
+                deviceCache.copyFromCache(manifest, directories);
+                log.verbose("device cache hit for " + local);
+                return;
+            } catch (CommandFailedException e) {
+                log.verbose("device cache failed to restore " + local + ": " + e.getMessage());
+            }
+        }
+
+        adb.push(local, remote);
+        Map<String, File> sourcesByKey = new LinkedHashMap<String, File>();
+        for (Map.Entry<File, String> entry : manifest.entrySet()) {
+            if (!deviceCache.existsInCache(entry.getValue())) {
+                sourcesByKey.put(entry.getValue(), entry.getKey());
+            }
+        }
+        if (!sourcesByKey.isEmpty()) {
+            deviceCache.copyToCache(sourcesByKey);
+        }
+    }
+
+    private void addToManifest(Map<File, String> manifest, List<File> directories,
+            File local, File remote) {
+        File[] files = local.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            File remoteFile = new File(remote, file.getName());
+            if (file.isDirectory()) {
+                directories.add(remoteFile);
+                addToManifest(manifest, directories, file, remoteFile);
+            } else {
+                manifest.put(remoteFile, pushCache.makeKey(file));
+            }
         }
     }
 
     public void install(File apk) {
-        new Command(log, "adb", "install", "-r", apk.getPath()).execute();
+        new Command(log, adbCommand("install", "-r", apk.getPath())).execute();
     }
 
     public void uninstall(String packageName) {
-        new Command(log, "adb", "uninstall", packageName).execute();
+        new Command(log, adbCommand("uninstall", packageName)).execute();
+    }
+
+    /**
+     * Returns an adb command line that runs on this SDK's device.
+     */
+    public List<String> adbCommand(String... args) {
+        List<String> result = new ArrayList<String>();
+        result.add("adb");
+        if (adb.getSerial() != null) {
+            result.add("-s");
+            result.add(adb.getSerial());
+        }
+        result.addAll(Arrays.asList(args));
+        return result;
     }
 
     public void forwardTcp(int port) {
-        new Command(log, "adb", "forward", "tcp:" + port, "tcp:" + port).execute();
+        adb.forwardTcp(port);
     }
 
     public void remount() {
-        new Command(log, "adb", "remount").execute();
+        adb.remount();
     }
 
     public void waitForDevice() {
-        new Command(log, "adb", "wait-for-device").execute();
+        adb.waitForDevice();
     }
 
     /**
@@ -318,13 +438,16 @@ public class AndroidSdk {
             if (!file) {
                 pathArgument += "/";
             }
-            Command command = new Command(log, "adb", "shell", "ls", pathArgument);
+            String timedOut = "Timed out after " + timeoutSeconds
+                    + " seconds waiting for file " + path;
+            if (remainingSeconds <= 0) {
+                throw new RuntimeException(timedOut);
+            }
             List<String> output;
             try {
-                output = command.executeWithTimeout(remainingSeconds);
+                output = adb.executeWithTimeout("ls " + pathArgument, true, remainingSeconds);
             } catch (TimeoutException e) {
-                throw new RuntimeException("Timed out after " + timeoutSeconds
-                                           + " seconds waiting for file " + path, e);
+                throw new RuntimeException(timedOut, e);
             }
             try {
                 Thread.sleep(millisPerSecond);
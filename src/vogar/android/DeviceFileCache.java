@@ -17,53 +17,134 @@
 package vogar.android;
 
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import vogar.FileCache;
 import vogar.Log;
+import vogar.commands.CommandFailedException;
 
+/**
+ * Caches files on the device by content. Each cached file is stored once as a
+ * blob named by its key, and the keys of all blobs are listed in an index
+ * file. A cache hit copies the blob to its destination on the device, so it
+ * transfers no file data over adb.
+ *
+ * <p>Blobs are always copies, never links: a test that writes to its files in
+ * place must not change the cache, and a link would dangle once the cache is
+ * removed.
+ */
 public class DeviceFileCache implements FileCache {
+    private static final String INDEX = "index";
+
     private final Log log;
+    private final File deviceDir;
     private final File cacheRoot;
-    private AndroidSdk androidSdk;
+    private final File index;
+    private final DeviceFilesystem deviceFilesystem;
 
     /** filled lazily */
-    private Set<File> cachedFiles;
+    private Set<String> cachedKeys;
 
-    public DeviceFileCache(Log log, File deviceDir, AndroidSdk androidSdk) {
+    public DeviceFileCache(Log log, File deviceDir, DeviceFilesystem deviceFilesystem) {
         this.log = log;
+        this.deviceDir = deviceDir;
         this.cacheRoot = new File(deviceDir, "md5-cache");
-        this.androidSdk = androidSdk;
+        this.index = new File(cacheRoot, INDEX);
+        this.deviceFilesystem = deviceFilesystem;
     }
 
-    public boolean existsInCache(String key) {
-        if (cachedFiles == null) {
-            try {
-                cachedFiles = new HashSet<File>();
-                cachedFiles.addAll(androidSdk.deviceFilesystem.ls(cacheRoot));
-                log.verbose("indexed on-device cache: " + cachedFiles.size() + " entries.");
-            } catch (FileNotFoundException e) {
-                // cacheRoot probably just hasn't been created yet.
-                cachedFiles = new HashSet<File>();
-            }
+    /**
+     * Returns a cache in the same directory on the device of {@code
+     * deviceFilesystem}.
+     */
+    public DeviceFileCache forDevice(DeviceFilesystem deviceFilesystem) {
+        return new DeviceFileCache(log, deviceDir, deviceFilesystem);
+    }
+
+    public synchronized boolean existsInCache(String key) {
+        if (cachedKeys == null) {
+            cachedKeys = new HashSet<String>();
+            List<String> lines = deviceFilesystem.shell(
+                    Collections.singletonList("cat " + index + " 2>/dev/null"));
+            cachedKeys.addAll(lines);
+            log.verbose("indexed on-device cache: " + cachedKeys.size() + " entries.");
         }
-        File cachedFile = new File(cacheRoot, key);
-        return cachedFiles.contains(cachedFile);
+        return cachedKeys.contains(key);
     }
 
     public void copyFromCache(String key, File destination) {
-        File cachedFile = new File(cacheRoot, key);
-        androidSdk.cp(cachedFile, destination);
+        copyFromCache(Collections.singletonMap(destination, key), Collections.<File>emptyList());
+    }
+
+    /**
+     * Materializes many cached files with a single shell invocation.
+     *
+     * @param keysByDestination the key of the blob to place at each path.
+     * @param directories directories to create before copying, parents first.
+     * @throws CommandFailedException if a blob couldn't be copied, like one
+     *     that's indexed but was deleted. Its key is no longer considered
+     *     cached, so the file will be stored again.
+     */
+    public void copyFromCache(Map<File, String> keysByDestination, List<File> directories) {
+        List<String> commands = new ArrayList<String>();
+        for (File directory : directories) {
+            commands.add("mkdir " + directory + " 2>/dev/null");
+        }
+        for (Map.Entry<File, String> entry : keysByDestination.entrySet()) {
+            File blob = new File(cacheRoot, entry.getValue());
+            File destination = entry.getKey();
+            // Remove the destination first so that the copy doesn't write through a
+            // link into a blob, like one left by an earlier version of this cache.
+            commands.add("rm -f " + destination + "; cat " + blob + " > " + destination);
+        }
+        List<String> output = deviceFilesystem.shell(commands);
+        // A successful copy prints nothing.
+        if (!output.isEmpty()) {
+            synchronized (this) {
+                if (cachedKeys != null) {
+                    cachedKeys.removeAll(keysByDestination.values());
+                }
+            }
+            throw new CommandFailedException(commands, output);
+        }
     }
 
     public void copyToCache(File source, String key) {
-        File cachedFile = new File(cacheRoot, key);
-        androidSdk.deviceFilesystem.mkdirs(cacheRoot);
-        // Copy it onto the same file system first, then atomically move it into place.
-        // That way, if we fail, we don't leave anything dangerous lying around.
-        File temporary = new File(cachedFile + ".tmp");
-        androidSdk.cp(source, temporary);
-        androidSdk.mv(temporary, cachedFile);
+        copyToCache(Collections.singletonMap(key, source));
+    }
+
+    /**
+     * Stores many files that are already on the device with a single shell
+     * invocation.
+     *
+     * @param sourcesByKey the on-device file to store under each key.
+     */
+    public void copyToCache(Map<String, File> sourcesByKey) {
+        deviceFilesystem.mkdirs(cacheRoot);
+        List<String> commands = new ArrayList<String>();
+        for (Map.Entry<String, File> entry : sourcesByKey.entrySet()) {
+            File cachedFile = new File(cacheRoot, entry.getKey());
+            // Copy it into a temporary file first, then atomically move it into place.
+            // That way, if we fail, we don't leave anything dangerous lying around. The key is
+            // only indexed once its blob is complete.
+            File temporary = new File(cachedFile + ".tmp");
+            commands.add("rm -f " + temporary + "; "
+                    + "cat " + entry.getValue() + " > " + temporary + " && "
+                    + "mv " + temporary + " " + cachedFile + " && "
+                    + "echo " + entry.getKey() + " >> " + index);
+        }
+        List<String> output = deviceFilesystem.shell(commands);
+        if (!output.isEmpty()) {
+            throw new CommandFailedException(commands, output);
+        }
+        synchronized (this) {
+            if (cachedKeys != null) {
+                cachedKeys.addAll(sourcesByKey.keySet());
+            }
+        }
     }
 }
@@ -20,7 +20,9 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
@@ -30,15 +32,65 @@ import vogar.commands.CommandFailedException;
 
 /**
  * Make directories on a remote filesystem.
+ *
+ * <p>Calls to {@link #mkdirs}, {@link #rm} and {@link #mv} from concurrent
+ * tasks are group committed: while one script is running on the device, the
+ * operations requested in the meantime queue up, and the next script runs
+ * them all. Each operation's output and exit status is reported back to its
+ * caller.
  */
 public final class DeviceFilesystem {
-    private final Set<File> mkdirCache = new HashSet<File>();
-    private final List<String> targetProcessPrefix;
-    private final Log log;
+    /**
+     * Old versions of adb truncate shell commands longer than 1024 bytes, so
+     * scripts are split into invocations no longer than this.
+     */
+    private static final int MAX_SCRIPT_LENGTH = 1000;
+
+    /** Printed with each batched operation's exit status. */
+    private static final String STATUS_MARKER = ":vogar-status:";
+
+    private final Set<File> mkdirCache = Collections.synchronizedSet(new HashSet<File>());
+    private final Shell shell;
+
+    private final Object batchLock = new Object();
+    /** operations waiting for the next script; guarded by batchLock */
+    private List<Operation> pending = new ArrayList<Operation>();
+    /** true while a thread is running a script; guarded by batchLock */
+    private boolean running;
+
+    /**
+     * Runs shell commands on the device.
+     */
+    public interface Shell {
+        /**
+         * Runs {@code command} and returns its output.
+         *
+         * @throws CommandFailedException if the command exits with a non-zero
+         *     status and that isn't permitted.
+         */
+        List<String> execute(String command, boolean permitNonZeroExitStatus);
+    }
+
+    public DeviceFilesystem(Shell shell) {
+        this.shell = shell;
+    }
 
-    public DeviceFilesystem(Log log, String... targetProcessPrefix) {
-        this.log = log;
-        this.targetProcessPrefix = Arrays.asList(targetProcessPrefix);
+    /**
+     * Creates a file system whose commands are run by forking a process,
+     * like {@code ssh host}, that runs its last argument in the device's
+     * shell.
+     */
+    public DeviceFilesystem(final Log log, String... targetProcessPrefix) {
+        final List<String> prefix = Arrays.asList(targetProcessPrefix);
+        this.shell = new Shell() {
+            public List<String> execute(String command, boolean permitNonZeroExitStatus) {
+                Command.Builder builder = new Command.Builder(log).args(prefix).args(command);
+                if (permitNonZeroExitStatus) {
+                    builder.permitNonZeroExitStatus();
+                }
+                return builder.execute();
+            }
+        };
     }
 
     public void mkdirs(File name) {
@@ -53,39 +105,219 @@ public final class DeviceFilesystem {
         }
         // would love to do "adb shell mkdir DIR1 DIR2 DIR3 ..." but unfortunately this will stop
         // if any of the directories fail to be created (even for a reason like "file exists"), so
-        // they have to be created one by one.
+        // they have to be created one by one. They still share a single round trip.
+        List<Operation> operations = new ArrayList<Operation>();
         for (File createDir : directoryStack) {
             // to reduce adb traffic, only try to make a directory if we haven't tried before.
             if (!mkdirCache.contains(createDir)) {
-                mkdir(createDir);
-                mkdirCache.add(createDir);
+                operations.add(new Operation("mkdir " + createDir.getPath()));
+            }
+        }
+        execute(operations);
+        for (Operation operation : operations) {
+            // fail if this failed for any reason other than the file existing.
+            if (operation.exitStatus != 0
+                    && (operation.output.isEmpty()
+                            || !operation.output.get(0).contains("File exists"))) {
+                throw operation.failure();
             }
         }
+        for (File createDir : directoryStack) {
+            mkdirCache.add(createDir);
+        }
     }
 
-    private void mkdir(File name) {
-        List<String> args = new ArrayList<String>();
-        args.addAll(targetProcessPrefix);
-        args.add("mkdir");
-        args.add(name.getPath());
+    /**
+     * Recursively deletes {@code file}. It is not an error if it doesn't exist.
+     */
+    public void rm(File file) {
+        execute(Collections.singletonList(new Operation("rm -r " + file.getPath())));
+        // forget directories that may have been deleted
+        synchronized (mkdirCache) {
+            for (Iterator<File> i = mkdirCache.iterator(); i.hasNext(); ) {
+                File dir = i.next();
+                if (dir.equals(file) || dir.getPath().startsWith(file.getPath() + "/")) {
+                    i.remove();
+                }
+            }
+        }
+    }
 
-        List<String> rawResult = new Command.Builder(log)
-                .args(args)
-                .permitNonZeroExitStatus()
-                .execute();
-        // fail if this failed for any reason other than the file existing.
-        if (!rawResult.isEmpty() && !rawResult.get(0).contains("File exists")) {
-            throw new CommandFailedException(args, rawResult);
+    public void mv(File source, File destination) {
+        Operation operation = new Operation("mv " + source.getPath() + " " + destination.getPath());
+        execute(Collections.singletonList(operation));
+        if (operation.exitStatus != 0) {
+            throw operation.failure();
         }
     }
 
-    public List<File> ls(File dir) throws FileNotFoundException {
-        List<String> args = new ArrayList<String>();
-        args.addAll(targetProcessPrefix);
-        args.add("ls");
-        args.add(dir.getPath());
+    /**
+     * Runs {@code operations} in order, batched with any operations that
+     * other threads request concurrently. This returns once all of them have
+     * run.
+     */
+    private void execute(List<Operation> operations) {
+        if (operations.isEmpty()) {
+            return;
+        }
+
+        List<Operation> batch;
+        synchronized (batchLock) {
+            pending.addAll(operations);
+            while (true) {
+                if (operations.get(operations.size() - 1).done) {
+                    return;
+                }
+                // If no script is running, this thread runs everything that's pending.
+                if (!running) {
+                    running = true;
+                    batch = pending;
+                    pending = new ArrayList<Operation>();
+                    break;
+                }
+                try {
+                    batchLock.wait();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
 
-        List<String> rawResult = new Command(log, args).execute();
+        try {
+            runBatch(batch);
+        } finally {
+            synchronized (batchLock) {
+                running = false;
+                for (Operation operation : batch) {
+                    operation.done = true;
+                }
+                batchLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Runs {@code batch} as few shell scripts as possible. Each operation is
+     * followed by a line with its exit status, which separates its output
+     * from the next operation's.
+     */
+    private void runBatch(List<Operation> batch) {
+        List<Operation> chunk = new ArrayList<Operation>();
+        StringBuilder script = new StringBuilder();
+        for (int i = 0; i < batch.size(); i++) {
+            Operation operation = batch.get(i);
+            String command = "{ " + operation.command + "; } 2>&1; echo " + STATUS_MARKER + "$?";
+            if (script.length() > 0
+                    && script.length() + command.length() + 2 > MAX_SCRIPT_LENGTH) {
+                runScript(script.toString(), chunk);
+                chunk.clear();
+                script.setLength(0);
+            }
+            if (script.length() > 0) {
+                script.append("; ");
+            }
+            script.append(command);
+            chunk.add(operation);
+        }
+        runScript(script.toString(), chunk);
+    }
+
+    private void runScript(String script, List<Operation> operations) {
+        List<String> output;
+        try {
+            output = shell.execute(script, true);
+        } catch (RuntimeException e) {
+            for (Operation operation : operations) {
+                operation.output = Collections.singletonList(e.getMessage());
+            }
+            return;
+        }
+
+        Iterator<Operation> operationIterator = operations.iterator();
+        List<String> operationOutput = new ArrayList<String>();
+        for (String line : output) {
+            int marker = line.indexOf(STATUS_MARKER);
+            if (marker == -1) {
+                operationOutput.add(line);
+                continue;
+            }
+            // output that doesn't end with a newline shares a line with the marker
+            if (marker > 0) {
+                operationOutput.add(line.substring(0, marker));
+            }
+            if (!operationIterator.hasNext()) {
+                break;
+            }
+            Operation operation = operationIterator.next();
+            operation.output = operationOutput;
+            operation.exitStatus = Integer.parseInt(
+                    line.substring(marker + STATUS_MARKER.length()).trim());
+            operationOutput = new ArrayList<String>();
+        }
+        // operations whose status never arrived failed with whatever output is left
+        while (operationIterator.hasNext()) {
+            operationIterator.next().output = operationOutput;
+        }
+    }
+
+    /**
+     * A shell command run as part of a batch.
+     */
+    private static final class Operation {
+        private final String command;
+        /** the command's output; written before done is set */
+        private List<String> output = Collections.emptyList();
+        /** the command's exit status, or -1 if it didn't finish */
+        private int exitStatus = -1;
+        /** guarded by batchLock */
+        private boolean done;
+
+        Operation(String command) {
+            this.command = command;
+        }
+
+        CommandFailedException failure() {
+            return new CommandFailedException(Collections.singletonList(command), output);
+        }
+    }
+
+    /**
+     * Runs {@code commands} in as few shell invocations as possible and
+     * returns their combined output. Commands are separated by ';' so each
+     * runs regardless of whether the previous one failed.
+     */
+    public List<String> shell(List<String> commands) {
+        List<String> output = new ArrayList<String>();
+        StringBuilder script = new StringBuilder();
+        for (String command : commands) {
+            if (script.length() > 0
+                    && script.length() + command.length() + 2 > MAX_SCRIPT_LENGTH) {
+                output.addAll(shell.execute(script.toString(), true));
+                script.setLength(0);
+            }
+            if (script.length() > 0) {
+                script.append("; ");
+            }
+            script.append(command);
+        }
+        if (script.length() > 0) {
+            output.addAll(shell.execute(script.toString(), true));
+        }
+        return output;
+    }
+
+    public List<File> ls(File dir) throws FileNotFoundException {
+        List<String> rawResult;
+        try {
+            rawResult = shell.execute("ls " + dir.getPath(), false);
+        } catch (CommandFailedException e) {
+            for (String line : e.getOutputLines()) {
+                if (line.contains("No such file or directory")) {
+                    throw new FileNotFoundException(dir + " not found.");
+                }
+            }
+            throw e;
+        }
         List<File> files = new ArrayList<File>();
         for (String fileString : rawResult) {
             if (fileString.equals(dir.getPath() + ": No such file or directory")) {
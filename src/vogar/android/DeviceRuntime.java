@@ -75,7 +75,9 @@ public final class DeviceRuntime implements Mode {
         Task dex = new DexTask(run.androidSdk, run.classpath, run.benchmark, name, jar, action,
                 localDex);
         tasks.add(dex);
-        tasks.add(run.target.pushTask(localDex, deviceDex).afterSuccess(dex));
+        for (Task push : run.target.pushTasks(localDex, deviceDex)) {
+            tasks.add(push.afterSuccess(dex));
+        }
     }
 
     @Override public VmCommandBuilder newVmCommandBuilder(Action action, File workingDirectory) {
@@ -131,4 +133,8 @@ public final class DeviceRuntime implements Mode {
         // the device since it contains host path names.
         return result;
     }
+
+    @Override public Classpath getActionClasspath(Action action) {
+        return Classpath.of(run.targetDexFile(action.getName()));
+    }
 }
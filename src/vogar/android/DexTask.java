@@ -20,6 +20,7 @@ import java.io.File;
 import vogar.Action;
 import vogar.Classpath;
 import vogar.Result;
+import vogar.tasks.Resource;
 import vogar.tasks.Task;
 
 public final class DexTask extends Task {
@@ -41,6 +42,10 @@ public final class DexTask extends Task {
         this.localDex = localDex;
     }
 
+    @Override public Resource getResource() {
+        return Resource.DEX;
+    }
+
     @Override protected Result execute() throws Exception {
         // make the local dex (inside a jar)
         Classpath cp = Classpath.of(jar);
@@ -140,4 +140,8 @@ public final class HostRuntime implements Mode {
         result.addAll(run.resourceClasspath);
         return result;
     }
+
+    @Override public Classpath getActionClasspath(Action action) {
+        return Classpath.of(run.localDexFile(action.getName()));
+    }
 }
@@ -25,6 +25,7 @@ import vogar.Result;
 import vogar.Run;
 import vogar.TestProperties;
 import vogar.commands.Command;
+import vogar.tasks.Resource;
 import vogar.tasks.Task;
 
 public final class InstallApkTask extends Task {
@@ -41,6 +42,10 @@ public final class InstallApkTask extends Task {
         this.run = run;
     }
 
+    @Override public Resource getResource() {
+        return Resource.DEX;
+    }
+
     @Override protected Result execute() throws Exception {
         // We can't put multiple dex files in one apk.
         // We can't just give dex multiple jars with conflicting class names
@@ -31,10 +31,9 @@ public final class RunActivityTask extends RunActionTask {
             throw new IllegalArgumentException("ActivityMode doesn't support runtime monitor ports!");
         }
 
-        return new Command(run.log,
-                "adb", "shell", "am", "start", "-W",
+        return new Command(run.log, run.androidSdk.adbCommand("shell", "am", "start", "-W",
                 "-a", "android.intent.action.MAIN",
-                "-n", (InstallApkTask.packageName(action) + "/" + InstallApkTask.ACTIVITY_CLASS));
+                "-n", (InstallApkTask.packageName(action) + "/" + InstallApkTask.ACTIVITY_CLASS)));
     }
 
     @Override public boolean useSocketMonitor() {
@@ -36,6 +36,7 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import vogar.Log;
 import vogar.util.Strings;
+import vogar.util.Trace;
 
 /**
  * An out of process executable.
@@ -53,6 +54,9 @@ public final class Command {
     private volatile Process process;
     private volatile boolean destroyed;
     private volatile long timeoutNanoTime;
+    private Thread startThread;
+    private long startNanoTime;
+    private boolean traced;
 
     public Command(Log log, String... args) {
         this(log, Arrays.asList(args));
@@ -99,6 +103,8 @@ public final class Command {
 
         processBuilder.environment().putAll(env);
 
+        startThread = Thread.currentThread();
+        startNanoTime = System.nanoTime();
         process = processBuilder.start();
     }
 
@@ -106,6 +112,28 @@ public final class Command {
         return process != null;
     }
 
+    /**
+     * Returns the exit value of the process, or null if it's still running.
+     */
+    public Integer getExitValue() {
+        if (!isStarted()) {
+            throw new IllegalStateException("Not started!");
+        }
+
+        try {
+            return process.exitValue();
+        } catch (IllegalThreadStateException stillRunning) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns true if the process has been destroyed, as by its timeout.
+     */
+    public boolean isDestroyed() {
+        return destroyed;
+    }
+
     public InputStream getInputStream() {
         if (!isStarted()) {
             throw new IllegalStateException("Not started!");
@@ -133,6 +161,7 @@ public final class Command {
 
         int exitValue = process.waitFor();
         destroyed = true;
+        traceExit(exitValue, false);
         if (exitValue != 0 && !permitNonZeroExitStatus) {
             StringBuilder message = new StringBuilder();
             for (String line : outputLines) {
@@ -188,6 +217,7 @@ public final class Command {
         try {
             process.waitFor();
             int exitValue = process.exitValue();
+            traceExit(exitValue, true);
             log.verbose("received exit value " + exitValue + " from destroyed command " + this);
         } catch (IllegalThreadStateException destroyUnsuccessful) {
             log.warn("couldn't destroy " + this);
@@ -196,6 +226,18 @@ public final class Command {
         }
     }
 
+    /**
+     * Records this command's lifetime in the trace, if tracing is enabled.
+     */
+    private synchronized void traceExit(int exitValue, boolean destroyed) {
+        if (traced || !Trace.isEnabled()) {
+            return;
+        }
+        traced = true;
+        Trace.complete("command", new File(args.get(0)).getName(), startThread, startNanoTime,
+                "command", this, "exitValue", exitValue, "destroyed", destroyed);
+    }
+
     @Override public String toString() {
         String envString = !env.isEmpty() ? (Strings.join(env.entrySet(), " ") + " ") : "";
         return envString + Strings.join(args, " ");
@@ -245,6 +287,14 @@ public final class Command {
         }
     }
 
+    /**
+     * Cancels the scheduled timeout, if any. For processes that outlive the
+     * work they were timed for.
+     */
+    public void cancelTimeout() {
+        timeoutNanoTime = Long.MAX_VALUE;
+    }
+
     public boolean timedOut() {
         return System.nanoTime() >= timeoutNanoTime;
     }
@@ -322,7 +372,7 @@ public final class Command {
      */
     private abstract class TimeoutTask implements Runnable {
         public final void schedule() {
-            timer.schedule(this, System.nanoTime() - timeoutNanoTime, TimeUnit.NANOSECONDS);
+            timer.schedule(this, timeoutNanoTime - System.nanoTime(), TimeUnit.NANOSECONDS);
         }
 
         protected abstract void onTimeout(Process process);
@@ -330,7 +380,7 @@ public final class Command {
         @Override public final void run() {
             // don't destroy commands that have already been destroyed
             Process process = Command.this.process;
-            if (destroyed) {
+            if (destroyed || timeoutNanoTime == Long.MAX_VALUE) {
                 return;
             }
 
@@ -338,7 +388,7 @@ public final class Command {
                 onTimeout(process);
             } else {
                 // if the kill time has been pushed back, reschedule
-                timer.schedule(this, System.nanoTime() - timeoutNanoTime, TimeUnit.NANOSECONDS);
+                timer.schedule(this, timeoutNanoTime - System.nanoTime(), TimeUnit.NANOSECONDS);
             }
         }
     }
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vogar.commands;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import vogar.Classpath;
+import vogar.Log;
+import vogar.util.Strings;
+
+/**
+ * A javac invocation that runs in this process using the system Java
+ * compiler. Unlike {@link Javac}, this doesn't pay for a JVM startup per
+ * invocation, and jar files on the classpath stay open between invocations
+ * on the same thread.
+ */
+public final class InProcessJavac {
+    private static final JavaCompiler COMPILER = ToolProvider.getSystemJavaCompiler();
+
+    /**
+     * File managers cache the contents of the jars they've read. They're
+     * reconfigured by each compile so they can't be shared across threads.
+     */
+    private static final ThreadLocal<StandardJavaFileManager> FILE_MANAGERS
+            = new ThreadLocal<StandardJavaFileManager>() {
+        @Override protected StandardJavaFileManager initialValue() {
+            return COMPILER.getStandardFileManager(null, null, null);
+        }
+    };
+
+    private final Log log;
+    private final List<String> options = new ArrayList<String>();
+    private final Map<String, File> sourceFilesByClassName = new HashMap<String, File>();
+    /** the files that the last compile reported errors in, or null if an error had no file */
+    private Set<File> sourceFilesWithErrors = new HashSet<File>();
+
+    public InProcessJavac(Log log) {
+        this.log = log;
+    }
+
+    /**
+     * Returns true if javac can run in this process with {@code extraArgs}.
+     * This requires a JDK rather than a JRE, and no JVM flags for javac.
+     */
+    public static boolean isAvailable(List<String> extraArgs) {
+        if (COMPILER == null) {
+            return false;
+        }
+        for (String arg : extraArgs) {
+            if (arg.startsWith("-J")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public InProcessJavac bootClasspath(Classpath classpath) {
+        options.add("-bootclasspath");
+        options.add(classpath.toString());
+        return this;
+    }
+
+    public InProcessJavac classpath(Classpath classpath) {
+        options.add("-classpath");
+        options.add(classpath.toString());
+        return this;
+    }
+
+    public InProcessJavac sourcepath(Collection<File> path) {
+        options.add("-sourcepath");
+        options.add(Classpath.of(path).toString());
+        return this;
+    }
+
+    public InProcessJavac destination(File directory) {
+        options.add("-d");
+        options.add(directory.toString());
+        return this;
+    }
+
+    public InProcessJavac debug() {
+        options.add("-g");
+        return this;
+    }
+
+    public InProcessJavac extra(List<String> extra) {
+        options.addAll(extra);
+        return this;
+    }
+
+    /**
+     * Compiles {@code files}.
+     *
+     * @throws CommandFailedException if compilation fails. Its output lines
+     *     are javac's diagnostics.
+     */
+    public void compile(Collection<File> files) {
+        List<String> args = new ArrayList<String>();
+        args.add("javac");
+        args.addAll(options);
+        args.addAll(Arrays.asList(Strings.objectsToStrings(files)));
+        log.verbose("compiling in process " + Strings.join(args, " "));
+
+        StandardJavaFileManager fileManager = FILE_MANAGERS.get();
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+        boolean success;
+        try {
+            success = COMPILER.getTask(null, new SourceRecordingFileManager(fileManager),
+                    diagnostics, options, null, fileManager.getJavaFileObjectsFromFiles(files))
+                    .call();
+        } catch (IllegalArgumentException e) {
+            // an invalid option, like one that the forked javac would have rejected
+            sourceFilesWithErrors = null;
+            throw new CommandFailedException(args, Collections.singletonList(e.getMessage()));
+        }
+
+        if (!success) {
+            List<String> outputLines = new ArrayList<String>();
+            for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+                outputLines.addAll(Arrays.asList(diagnostic.toString().split("\n")));
+                if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+                    recordError(diagnostic.getSource());
+                }
+            }
+            throw new CommandFailedException(args, outputLines);
+        }
+    }
+
+    private void recordError(JavaFileObject source) {
+        if (sourceFilesWithErrors == null) {
+            return;
+        }
+        if (source == null || !"file".equals(source.toUri().getScheme())) {
+            sourceFilesWithErrors = null;
+            return;
+        }
+        try {
+            sourceFilesWithErrors.add(new File(source.toUri()).getCanonicalFile());
+        } catch (IOException e) {
+            sourceFilesWithErrors = null;
+        }
+    }
+
+    /**
+     * Returns the canonical source files that the last compile reported
+     * errors in, or null if it reported an error that isn't in a source
+     * file, like an invalid option.
+     */
+    public Set<File> getSourceFilesWithErrors() {
+        return sourceFilesWithErrors != null
+                ? Collections.unmodifiableSet(sourceFilesWithErrors)
+                : null;
+    }
+
+    /**
+     * Returns the source file of each class generated by the last compile,
+     * keyed by the class's binary name like "java.util.Map$Entry".
+     */
+    public Map<String, File> getSourceFilesByClassName() {
+        return Collections.unmodifiableMap(sourceFilesByClassName);
+    }
+
+    /**
+     * Notes which source file each class file was generated from.
+     */
+    private class SourceRecordingFileManager
+            extends ForwardingJavaFileManager<StandardJavaFileManager> {
+        SourceRecordingFileManager(StandardJavaFileManager fileManager) {
+            super(fileManager);
+        }
+
+        @Override public JavaFileObject getJavaFileForOutput(Location location, String className,
+                JavaFileObject.Kind kind, FileObject sibling) throws IOException {
+            if (kind == JavaFileObject.Kind.CLASS && sibling != null
+                    && "file".equals(sibling.toUri().getScheme())) {
+                sourceFilesByClassName.put(className, new File(sibling.toUri()));
+            }
+            return super.getJavaFileForOutput(location, className, kind, sibling);
+        }
+    }
+}
@@ -17,31 +17,46 @@
 package vogar.monitor;
 
 import com.google.caliper.InterleavedReader;
+import com.google.caliper.internal.gson.Gson;
 import com.google.caliper.internal.gson.JsonElement;
 import com.google.caliper.internal.gson.JsonObject;
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.net.ConnectException;
 import java.net.Socket;
 import java.net.SocketException;
-import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import vogar.Log;
 import vogar.Outcome;
 import vogar.Result;
+import vogar.commands.Command;
 import vogar.util.IoUtils;
+import vogar.util.Trace;
 
 /**
- * Connects to a target process to monitor its action using XML over raw
- * sockets.
+ * Connects to a target process to monitor its action, using one of the wire
+ * formats of {@link MonitorProtocol}.
  */
 public final class HostMonitor {
-    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int FIRST_RETRY_MILLIS = 5;
+    private static final int MAX_RETRY_MILLIS = 250;
 
     private Log log;
     private Handler handler;
-    private final String marker = "//00xx";
+
+    private String currentOutcome;
+    private long currentOutcomeStartNanos;
+    private final StringBuilder output = new StringBuilder();
+    private final Map<String, Long> currentMetrics = new LinkedHashMap<String, Long>();
+    private boolean completedNormally;
 
     public HostMonitor(Log log, Handler handler) {
         this.log = log;
@@ -52,13 +67,33 @@ public final class HostMonitor {
      * Returns true if the target process completed normally.
      */
     public boolean attach(int port) throws IOException {
+        return attach(port, null);
+    }
+
+    /**
+     * Connects to the target listening on {@code port} and follows its
+     * action. Returns true if the target process completed normally.
+     *
+     * <p>Connections are retried until the target sends its first event,
+     * waiting a little longer after each attempt. This gives up when {@code
+     * command}, which starts the target, fails or is destroyed.
+     *
+     * @param command the command that starts the target, or null to retry
+     *     until the target accepts a connection.
+     */
+    public boolean attach(int port, Command command) throws IOException {
+        int retryMillis = FIRST_RETRY_MILLIS;
         for (int attempt = 0; true; attempt++) {
             Socket socket = null;
             try {
                 socket = new Socket("localhost", port);
                 InputStream in = new BufferedInputStream(socket.getInputStream());
                 if (checkStream(in)) {
-                    log.verbose("action monitor connected to " + socket.getRemoteSocketAddress());
+                    log.verbose("action monitor connected to " + socket.getRemoteSocketAddress()
+                            + " after " + attempt + " failed connections");
+                    if (acceptOffer(in, socket.getOutputStream())) {
+                        return followFrames(new DataInputStream(in), false);
+                    }
                     return followStream(in);
                 }
             } catch (ConnectException ignored) {
@@ -67,15 +102,32 @@ public final class HostMonitor {
                 IoUtils.closeQuietly(socket);
             }
 
+            if (command != null && hasFailed(command)) {
+                log.verbose("giving up on localhost:" + port + " after " + (attempt + 1)
+                        + " connections; " + command + " exited with "
+                        + command.getExitValue());
+                return false;
+            }
             log.verbose("connection " + attempt + " to localhost:"
-                    + port + " failed; retrying in 1s");
+                    + port + " failed; retrying in " + retryMillis + "ms");
             try {
-                Thread.sleep(1000);
+                Thread.sleep(retryMillis);
             } catch (InterruptedException ignored) {
             }
+            retryMillis = Math.min(retryMillis * 2, MAX_RETRY_MILLIS);
         }
     }
 
+    /**
+     * Returns true if {@code command} won't bring up a target to connect to.
+     * Commands that exit normally may have started the target elsewhere, like
+     * {@code am start} does.
+     */
+    private boolean hasFailed(Command command) {
+        Integer exitValue = command.getExitValue();
+        return command.isDestroyed() || (exitValue != null && exitValue != 0);
+    }
+
     /**
      * Somewhere between the host and client process, broken socket connections
      * are being accepted. Before we try to do any work on such a connection,
@@ -93,58 +145,184 @@ public final class HostMonitor {
         }
     }
 
+    /**
+     * Reads the protocol offered by the target at the start of {@code in}
+     * and answers it on {@code out}. Returns true if the rest of the stream
+     * is binary frames. If the target didn't make an offer, this leaves
+     * {@code in} at its start.
+     */
+    private boolean acceptOffer(InputStream in, OutputStream out) throws IOException {
+        in.mark(MonitorProtocol.MAX_OFFER_LENGTH);
+        JsonObject offer = MonitorProtocol.parseEvent(
+                MonitorProtocol.readLine(in, MonitorProtocol.MAX_OFFER_LENGTH));
+        if (offer == null || offer.get("protocol") == null) {
+            in.reset();
+            return false;
+        }
+        return answerOffer(offer, out) == MonitorProtocol.BINARY;
+    }
+
+    /**
+     * Answers the target's offer with the newest protocol both sides speak,
+     * and returns it.
+     */
+    static int answerOffer(JsonObject offer, OutputStream out) throws IOException {
+        int version = Math.min(MonitorProtocol.getVersion(offer), MonitorProtocol.LATEST);
+        out.write((new Gson().toJson(MonitorProtocol.versionEvent(version)) + "\n")
+                .getBytes(MonitorProtocol.UTF8));
+        out.flush();
+        return version;
+    }
+
     public boolean followStream(InputStream in) throws IOException {
-        return followProcess(new InterleavedReader(marker, new InputStreamReader(in, UTF8)));
+        return followProcess(new InterleavedReader(MonitorProtocol.MARKER,
+                new InputStreamReader(in, MonitorProtocol.UTF8)), false);
+    }
+
+    /**
+     * Follows a single action on a stream shared by several actions, like the
+     * connection to a worker process. Returns true if the action completed
+     * normally, leaving {@code reader} at the start of the next action.
+     */
+    boolean followAction(InterleavedReader reader) throws IOException {
+        return followProcess(reader, true);
     }
 
     /**
-     * Our wire format is a mix of strings and the JSON values like the following:
+     * Like {@link #followAction(InterleavedReader)}, for a stream of binary
+     * frames.
+     */
+    boolean followAction(DataInputStream in) throws IOException {
+        return followFrames(in, true);
+    }
+
+    /**
+     * Our text wire format is a mix of strings and the JSON values like the following:
      *
      * {"outcome"="java.util.FormatterMain"}
      * {"result"="SUCCESS"}
      * {"outcome"="java.util.FormatterTest#testBar" runner="vogar.target.junit.JUnitRunner"}
-     * {"result"="SUCCESS"}
+     * {"result"="SUCCESS" metrics={"wallNanos"=1250000 "cpuNanos"=1100000}}
      * {"completedNormally"=true}
+     *
+     * @param untilCompleted true to return as soon as the action completes
+     *     normally, rather than reading until the end of the stream.
      */
-    private boolean followProcess(InterleavedReader reader) throws IOException {
-        String currentOutcome = null;
-        StringBuilder output = new StringBuilder();
-        boolean completedNormally = false;
-
+    private boolean followProcess(InterleavedReader reader, boolean untilCompleted)
+            throws IOException {
         Object o;
         while ((o = reader.read()) != null) {
             if (o instanceof String) {
-                String text = (String) o;
-                if (currentOutcome != null) {
-                    output.append(text);
-                    handler.output(currentOutcome, text);
-                } else {
-                    handler.print(text);
-                }
+                output((String) o);
             } else if (o instanceof JsonObject) {
                 JsonObject jsonObject = (JsonObject) o;
                 if (jsonObject.get("outcome") != null) {
-                    currentOutcome = jsonObject.get("outcome").getAsString();
-                    handler.output(currentOutcome, "");
                     JsonElement runner = jsonObject.get("runner");
-                    String runnerClass = runner != null ? runner.getAsString() : null;
-                    handler.start(currentOutcome, runnerClass);
+                    outcomeStarted(jsonObject.get("outcome").getAsString(),
+                            runner != null ? runner.getAsString() : null);
                 } else if (jsonObject.get("result") != null) {
-                    Result currentResult = Result.valueOf(jsonObject.get("result").getAsString());
-                    handler.finish(new Outcome(currentOutcome, currentResult, output.toString()));
-                    output.delete(0, output.length());
-                    currentOutcome = null;
+                    JsonElement metrics = jsonObject.get("metrics");
+                    if (metrics != null) {
+                        for (Map.Entry<String, JsonElement> entry
+                                : metrics.getAsJsonObject().entrySet()) {
+                            currentMetrics.put(entry.getKey(), entry.getValue().getAsLong());
+                        }
+                    }
+                    outcomeFinished(Result.valueOf(jsonObject.get("result").getAsString()));
                 } else if (jsonObject.get("completedNormally") != null) {
                     completedNormally = jsonObject.get("completedNormally").getAsBoolean();
+                    if (untilCompleted && completedNormally) {
+                        return true;
+                    }
                 }
             } else {
                 throw new IllegalStateException("Unexpected object: " + o);
             }
         }
+        return streamEnded();
+    }
 
-        return completedNormally;
+    /**
+     * Follows binary frames. A frame that's cut short by the end of the
+     * stream is ignored, as the target process died while writing it.
+     */
+    private boolean followFrames(DataInputStream in, boolean untilCompleted) throws IOException {
+        try {
+            int type;
+            while ((type = in.read()) != -1) {
+                byte[] payload = new byte[in.readInt()];
+                in.readFully(payload);
+                DataInputStream frame = new DataInputStream(new ByteArrayInputStream(payload));
+                switch (type) {
+                case MonitorProtocol.OUTPUT:
+                    output(new String(payload, MonitorProtocol.UTF8));
+                    break;
+                case MonitorProtocol.OUTCOME_STARTED:
+                    String outcomeName = frame.readUTF();
+                    outcomeStarted(outcomeName, frame.readBoolean() ? frame.readUTF() : null);
+                    break;
+                case MonitorProtocol.METRICS:
+                    for (int i = frame.readInt(); i > 0; i--) {
+                        String name = frame.readUTF();
+                        currentMetrics.put(name, frame.readLong());
+                    }
+                    break;
+                case MonitorProtocol.OUTCOME_FINISHED:
+                    outcomeFinished(Result.valueOf(frame.readUTF()));
+                    break;
+                case MonitorProtocol.COMPLETED:
+                    completedNormally = frame.readBoolean();
+                    if (untilCompleted && completedNormally) {
+                        return true;
+                    }
+                    break;
+                default:
+                    break; // newer targets may send frames that we don't understand
+                }
+            }
+        } catch (EOFException ignored) {
+        }
+        return streamEnded();
     }
 
+    private void output(String text) {
+        if (currentOutcome != null) {
+            output.append(text);
+            handler.output(currentOutcome, text);
+        } else {
+            handler.print(text);
+        }
+    }
+
+    private void outcomeStarted(String outcomeName, String runnerClass) {
+        currentOutcome = outcomeName;
+        currentOutcomeStartNanos = System.nanoTime();
+        currentMetrics.clear();
+        handler.output(currentOutcome, "");
+        handler.start(currentOutcome, runnerClass);
+    }
+
+    private void outcomeFinished(Result result) {
+        // prefer the target's measurement, which leaves out the time to report the outcome
+        Long wallNanos = currentMetrics.get(Outcome.WALL_NANOS);
+        long durationNanos = wallNanos != null
+                ? wallNanos
+                : System.nanoTime() - currentOutcomeStartNanos;
+        handler.finish(new Outcome(currentOutcome, result, output.toString(),
+                TimeUnit.NANOSECONDS.toMillis(durationNanos), currentMetrics));
+        currentMetrics.clear();
+        Trace.complete("outcome", currentOutcome, currentOutcomeStartNanos, "result", result);
+        output.delete(0, output.length());
+        currentOutcome = null;
+    }
+
+    private boolean streamEnded() {
+        if (currentOutcome != null) {
+            Trace.complete("outcome", currentOutcome, currentOutcomeStartNanos,
+                    "result", "incomplete");
+        }
+        return completedNormally;
+    }
 
     /**
      * Handles updates on the outcomes of a target process.
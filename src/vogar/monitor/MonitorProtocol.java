@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vogar.monitor;
+
+import com.google.caliper.internal.gson.JsonElement;
+import com.google.caliper.internal.gson.JsonObject;
+import com.google.caliper.internal.gson.JsonParseException;
+import com.google.caliper.internal.gson.JsonParser;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * The wire formats between the host and target monitors.
+ *
+ * <p>Version 1 is text: the action's output, interleaved with JSON events
+ * that each start with a marker. See {@link HostMonitor}.
+ *
+ * <p>Version 2 is binary. Each frame is a type byte, a 4-byte big-endian
+ * payload length and the payload. Strings in payloads are in the format of
+ * {@link java.io.DataOutput#writeUTF}, except for output, whose payload is
+ * the UTF-8 encoded text. Readers skip frames of unknown types.
+ *
+ * <p>The text protocol is used until the two sides agree on another. Once
+ * the target accepts a connection it sends a ready event, which offers the
+ * newest version it speaks: {"protocol":2,"ready":true}. The host answers
+ * with a line holding the version to use, like {"protocol":2}. Targets that
+ * don't offer, and hosts that don't answer, get the text protocol. Process
+ * output streams have no way to answer, so they always carry text.
+ */
+final class MonitorProtocol {
+    static final Charset UTF8 = Charset.forName("UTF-8");
+    static final String MARKER = "//00xx";
+
+    static final int TEXT = 1;
+    static final int BINARY = 2;
+    /** the newest protocol this version of vogar speaks */
+    static final int LATEST = BINARY;
+
+    /** payload: the outcome name, a boolean, and the runner class if the boolean is true */
+    static final int OUTCOME_STARTED = 1;
+    /** payload: UTF-8 text printed by the current outcome, or outside of any outcome */
+    static final int OUTPUT = 2;
+    /** payload: the name of the outcome's {@code Result} */
+    static final int OUTCOME_FINISHED = 3;
+    /**
+     * payload: a count, then that many names and long values measured for the
+     * current outcome. Sent just before its OUTCOME_FINISHED frame.
+     */
+    static final int METRICS = 4;
+    /** payload: a boolean, true if the action completed normally */
+    static final int COMPLETED = 5;
+
+    /** the longest line that's read while looking for an offer */
+    static final int MAX_OFFER_LENGTH = 256;
+
+    private MonitorProtocol() {}
+
+    /**
+     * Returns the protocol version in {@code event}, or {@link #TEXT} if it
+     * doesn't have one.
+     */
+    static int getVersion(JsonObject event) {
+        JsonElement version = event.get("protocol");
+        return version != null ? version.getAsInt() : TEXT;
+    }
+
+    /**
+     * Returns a JSON object holding {@code version}.
+     */
+    static JsonObject versionEvent(int version) {
+        JsonObject jsonObject = new JsonObject();
+        jsonObject.addProperty("protocol", version);
+        return jsonObject;
+    }
+
+    /**
+     * Reads a line of up to {@code limit} bytes, including its newline.
+     * Returns the line without its newline, or null if the line is longer
+     * than {@code limit} or the stream ends first.
+     */
+    static String readLine(InputStream in, int limit) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        for (int i = 0; i < limit; i++) {
+            int b = in.read();
+            if (b == -1) {
+                return null;
+            } else if (b == '\n') {
+                return new String(line.toByteArray(), UTF8);
+            }
+            line.write(b);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the JSON event on {@code line}, or null if it isn't an event.
+     */
+    static JsonObject parseEvent(String line) {
+        return line != null && line.startsWith(MARKER)
+                ? parseJson(line.substring(MARKER.length()))
+                : null;
+    }
+
+    /**
+     * Returns the JSON object in {@code json}, or null if it isn't one.
+     */
+    static JsonObject parseJson(String json) {
+        if (json == null) {
+            return null;
+        }
+        try {
+            JsonElement element = new JsonParser().parse(json);
+            return element.isJsonObject() ? element.getAsJsonObject() : null;
+        } catch (JsonParseException e) {
+            return null;
+        }
+    }
+}
@@ -18,25 +18,34 @@ package vogar.monitor;
 
 import com.google.caliper.internal.gson.Gson;
 import com.google.caliper.internal.gson.JsonObject;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+import java.util.Map;
 import vogar.Result;
 import vogar.target.Runner;
 
 /**
- * Accepts a connection from the host process. Once connected, XML is sent over
- * raw sockets.
+ * Accepts a connection from the host process. Once connected, events are sent
+ * over raw sockets, as text or as binary frames. See {@link MonitorProtocol}.
  */
 public class TargetMonitor {
 
     private static final int ACCEPT_TIMEOUT_MILLIS = 10 * 1000;
+    /** how long to wait for the host to answer an offered protocol */
+    private static final int NEGOTIATE_TIMEOUT_MILLIS = 5 * 1000;
 
     private final Gson gson = new Gson();
-    private final String marker = "//00xx";
+    private final String marker = MonitorProtocol.MARKER;
 
     private final PrintStream writer;
+    /** true once the host has agreed to binary frames; guarded by this */
+    private boolean binary;
 
     private TargetMonitor(PrintStream writer) {
         this.writer = writer;
@@ -52,19 +61,61 @@ public class TargetMonitor {
             serverSocket.setSoTimeout(ACCEPT_TIMEOUT_MILLIS);
             serverSocket.setReuseAddress(true);
             final Socket socket = serverSocket.accept();
-            return new TargetMonitor(new PrintStream(socket.getOutputStream())) {
+            TargetMonitor result = new TargetMonitor(new PrintStream(socket.getOutputStream())) {
                 @Override public void close() throws IOException {
                     socket.close();
                     serverSocket.close();
                 }
             };
+            result.negotiate(socket);
+            return result;
 
         } catch (IOException e) {
             throw new RuntimeException("Failed to accept a monitor on localhost:" + port, e);
         }
     }
 
-    public void outcomeStarted(Runner runner, String outcomeName, String actionName) {
+    /**
+     * Tells the host that this process is ready, offering it the newest
+     * protocol, and switches to the protocol it answers with. Hosts that
+     * don't answer get the text protocol.
+     */
+    private void negotiate(Socket socket) throws IOException {
+        ready();
+        writer.flush();
+        socket.setSoTimeout(NEGOTIATE_TIMEOUT_MILLIS);
+        try {
+            String answer = MonitorProtocol.readLine(
+                    socket.getInputStream(), MonitorProtocol.MAX_OFFER_LENGTH);
+            JsonObject event = MonitorProtocol.parseJson(answer);
+            if (event != null) {
+                useProtocol(MonitorProtocol.getVersion(event));
+            }
+        } catch (SocketTimeoutException ignored) {
+        } finally {
+            socket.setSoTimeout(0);
+        }
+    }
+
+    /**
+     * Sends all further events using {@code version} of the wire format,
+     * which the host has agreed to.
+     */
+    public synchronized void useProtocol(int version) {
+        binary = version >= MonitorProtocol.BINARY;
+    }
+
+    public synchronized void outcomeStarted(Runner runner, String outcomeName, String actionName) {
+        if (binary) {
+            Frame frame = new Frame(MonitorProtocol.OUTCOME_STARTED);
+            frame.writeUTF(outcomeName);
+            frame.writeBoolean(runner != null);
+            if (runner != null) {
+                frame.writeUTF(runner.getClass().getName());
+            }
+            frame.send();
+            return;
+        }
         JsonObject jsonObject = new JsonObject();
         jsonObject.addProperty("outcome", outcomeName);
         if (runner != null) {
@@ -73,13 +124,49 @@ public class TargetMonitor {
         writer.print(marker + gson.toJson(jsonObject) + "\n");
     }
 
-    public void output(String text) {
+    public synchronized void output(String text) {
+        if (binary) {
+            Frame frame = new Frame(MonitorProtocol.OUTPUT);
+            frame.write(text.getBytes(MonitorProtocol.UTF8));
+            frame.send();
+            return;
+        }
         writer.print(text);
     }
 
-    public void outcomeFinished(Result result) {
+    public synchronized void outcomeFinished(Result result) {
+        outcomeFinished(result, Collections.<String, Long>emptyMap());
+    }
+
+    /**
+     * @param metrics values measured while the outcome ran, like its CPU
+     *     time. The names are those of {@link vogar.Outcome#getMetrics}.
+     */
+    public synchronized void outcomeFinished(Result result, Map<String, Long> metrics) {
+        if (binary) {
+            if (!metrics.isEmpty()) {
+                Frame metricsFrame = new Frame(MonitorProtocol.METRICS);
+                metricsFrame.writeInt(metrics.size());
+                for (Map.Entry<String, Long> entry : metrics.entrySet()) {
+                    metricsFrame.writeUTF(entry.getKey());
+                    metricsFrame.writeLong(entry.getValue());
+                }
+                metricsFrame.send();
+            }
+            Frame frame = new Frame(MonitorProtocol.OUTCOME_FINISHED);
+            frame.writeUTF(result.name());
+            frame.send();
+            return;
+        }
         JsonObject jsonObject = new JsonObject();
         jsonObject.addProperty("result", result.name());
+        if (!metrics.isEmpty()) {
+            JsonObject metricsObject = new JsonObject();
+            for (Map.Entry<String, Long> entry : metrics.entrySet()) {
+                metricsObject.addProperty(entry.getKey(), entry.getValue());
+            }
+            jsonObject.add("metrics", metricsObject);
+        }
         writer.print(marker + gson.toJson(jsonObject) + "\n");
     }
 
@@ -87,9 +174,90 @@ public class TargetMonitor {
         writer.close();
     }
 
-    public void completedNormally(boolean completedNormally) {
+    /**
+     * Tells the host that this process is ready to run actions, and offers it
+     * the newest protocol. The host's answer is passed to {@link #useProtocol}.
+     */
+    public synchronized void ready() {
+        JsonObject jsonObject = MonitorProtocol.versionEvent(MonitorProtocol.LATEST);
+        jsonObject.addProperty("ready", true);
+        writer.print(marker + gson.toJson(jsonObject) + "\n");
+    }
+
+    public synchronized void completedNormally(boolean completedNormally) {
+        if (binary) {
+            Frame frame = new Frame(MonitorProtocol.COMPLETED);
+            frame.writeBoolean(completedNormally);
+            frame.send();
+            return;
+        }
         JsonObject jsonObject = new JsonObject();
         jsonObject.addProperty("completedNormally", completedNormally);
         writer.print(marker + gson.toJson(jsonObject) + "\n");
     }
+
+    /**
+     * A binary frame being written. The frame is sent in a single write so
+     * that a process that dies mid-event leaves a truncated frame at most.
+     */
+    private class Frame {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+
+        Frame(int type) {
+            try {
+                out.writeByte(type);
+                out.writeInt(0); // the payload length, filled in by send()
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        void writeUTF(String s) {
+            try {
+                out.writeUTF(s);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        void writeInt(int i) {
+            try {
+                out.writeInt(i);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        void writeLong(long l) {
+            try {
+                out.writeLong(l);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        void writeBoolean(boolean b) {
+            try {
+                out.writeBoolean(b);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        void write(byte[] b) {
+            bytes.write(b, 0, b.length);
+        }
+
+        void send() {
+            byte[] frame = bytes.toByteArray();
+            int length = frame.length - 5;
+            frame[1] = (byte) (length >>> 24);
+            frame[2] = (byte) (length >>> 16);
+            frame[3] = (byte) (length >>> 8);
+            frame[4] = (byte) length;
+            writer.write(frame, 0, frame.length);
+            writer.flush();
+        }
+    }
 }
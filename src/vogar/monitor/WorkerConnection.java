@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vogar.monitor;
+
+import com.google.caliper.InterleavedReader;
+import com.google.caliper.internal.gson.Gson;
+import com.google.caliper.internal.gson.JsonObject;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.net.SocketException;
+import vogar.util.IoUtils;
+
+/**
+ * A connection to a worker process on the target, which runs one action for
+ * each request sent to it. See {@code vogar.target.TestWorker}.
+ */
+public final class WorkerConnection {
+    private final Gson gson = new Gson();
+    private final Socket socket;
+    private final Writer writer;
+    /** the worker's events if it speaks the text protocol, or null */
+    private final InterleavedReader reader;
+    /** the worker's events if it speaks the binary protocol, or null */
+    private final DataInputStream frames;
+
+    private WorkerConnection(Socket socket, InputStream in, boolean binary) throws IOException {
+        this.socket = socket;
+        this.writer = new OutputStreamWriter(socket.getOutputStream(), MonitorProtocol.UTF8);
+        this.reader = binary
+                ? null
+                : new InterleavedReader(MonitorProtocol.MARKER,
+                        new InputStreamReader(in, MonitorProtocol.UTF8));
+        this.frames = binary ? new DataInputStream(in) : null;
+    }
+
+    /**
+     * Connects to the worker listening on {@code port}. Returns null if the
+     * worker isn't ready for connections yet.
+     */
+    public static WorkerConnection connect(int port) throws IOException {
+        Socket socket = null;
+        try {
+            socket = new Socket("localhost", port);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            // broken connections may be accepted before the worker listens; see HostMonitor
+            JsonObject ready = MonitorProtocol.parseEvent(MonitorProtocol.readLine(
+                    in, MonitorProtocol.MAX_OFFER_LENGTH));
+            if (ready != null && ready.get("ready") != null) {
+                // workers that offer a protocol wait for an answer before their first request
+                boolean binary = ready.get("protocol") != null
+                        && HostMonitor.answerOffer(ready, socket.getOutputStream())
+                                == MonitorProtocol.BINARY;
+                WorkerConnection result = new WorkerConnection(socket, in, binary);
+                socket = null;
+                return result;
+            }
+        } catch (ConnectException ignored) {
+        } catch (SocketException ignored) {
+        } finally {
+            IoUtils.closeQuietly(socket);
+        }
+        return null;
+    }
+
+    /**
+     * Asks the worker to run an action and reports its outcomes to {@code
+     * hostMonitor}'s handler. Returns true if the action completed normally;
+     * otherwise the worker has exited.
+     *
+     * @param classpath the files holding the action's classes, on the target.
+     * @param tmpDir the action's temporary directory, on the target.
+     * @param userDir the action's working directory, on the target.
+     * @param skipPast the last outcome to skip, or null to run all outcomes.
+     */
+    public boolean run(HostMonitor hostMonitor, String classpath, String tmpDir,
+            String userDir, String skipPast) throws IOException {
+        JsonObject request = new JsonObject();
+        request.addProperty("classpath", classpath);
+        request.addProperty("tmpdir", tmpDir);
+        request.addProperty("userdir", userDir);
+        if (skipPast != null) {
+            request.addProperty("skipPast", skipPast);
+        }
+        try {
+            writer.write(gson.toJson(request) + "\n");
+            writer.flush();
+        } catch (SocketException e) {
+            return false; // the worker has gone away
+        }
+        return frames != null
+                ? hostMonitor.followAction(frames)
+                : hostMonitor.followAction(reader);
+    }
+
+    public void close() {
+        IoUtils.closeQuietly(socket);
+    }
+}
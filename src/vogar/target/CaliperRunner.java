@@ -47,19 +47,22 @@ public final class CaliperRunner implements vogar.target.Runner {
         if (profile) {
             arguments = ObjectArrays.concat("--debug", arguments);
         }
+        OutcomeMetrics metrics = new OutcomeMetrics();
         try {
             if (profiler != null) {
                 profiler.start();
             }
+            metrics.start();
             new Runner().run(arguments);
         } catch (Exception ex) {
             ex.printStackTrace();
         } finally {
+            metrics.stop();
             if (profiler != null) {
                 profiler.stop();
             }
         }
-        monitor.outcomeFinished(Result.SUCCESS);
+        monitor.outcomeFinished(Result.SUCCESS, metrics.getMetrics());
         return true;
     }
 
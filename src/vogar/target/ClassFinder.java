@@ -22,6 +22,17 @@ import java.util.Collections;
 import java.util.Set;
 
 class ClassFinder {
+    private final ClassLoader classLoader;
+    private final String[] classPath;
+
+    /**
+     * @param classPath the files to search for the classes of a package.
+     */
+    ClassFinder(ClassLoader classLoader, String[] classPath) {
+        this.classLoader = classLoader;
+        this.classPath = classPath;
+    }
+
     /**
      * Returns either a Set with the class represented by classOrPackageName as its only element, if
      * classOrPackageName represents a class, or a Set containing all of the classes contained
@@ -32,16 +43,17 @@ class ClassFinder {
     public Set<Class<?>> find(String classOrPackageName) {
         try {
             // if no exception thrown, classOrPackageName must represent a class
-            return Collections.<Class<?>>singleton(Class.forName(classOrPackageName));
+            return Collections.<Class<?>>singleton(
+                    Class.forName(classOrPackageName, true, classLoader));
         } catch (ClassNotFoundException e) {
         }
         // classOrPackageName might represent a package
         try {
-            Package aPackage = new ClassPathScanner().scan(classOrPackageName);
+            Package aPackage = new ClassPathScanner(classLoader, classPath).scan(classOrPackageName);
             Set<Class<?>> classes = aPackage.getTopLevelClassesRecursive();
             if (classes.isEmpty()) {
                 throw new IllegalArgumentException("No classes in package: " + classOrPackageName +
-                        "; classpath is " + Arrays.toString(ClassPathScanner.getClassPath()));
+                        "; classpath is " + Arrays.toString(classPath));
             }
             return classes;
         } catch (IOException eIO) {
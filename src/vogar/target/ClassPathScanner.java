@@ -44,11 +44,13 @@ final class ClassPathScanner {
     };
     private static final String DOT_CLASS = ".class";
 
+    private final ClassLoader classLoader;
     private final String[] classPath;
     private final ClassFinder classFinder;
 
-    ClassPathScanner() {
-        classPath = getClassPath();
+    ClassPathScanner(ClassLoader classLoader, String[] classPath) {
+        this.classLoader = classLoader;
+        this.classPath = classPath;
         classFinder = "Dalvik".equals(System.getProperty("java.vm.name"))
                 ? new ApkClassFinder()
                 : new JarClassFinder();
@@ -65,7 +67,7 @@ final class ClassPathScanner {
         findClasses(packageName, classNames, subpackageNames);
         for (String className : classNames) {
             try {
-                topLevelClasses.add(Class.forName(className, false, getClass().getClassLoader()));
+                topLevelClasses.add(Class.forName(className, false, classLoader));
             } catch (ClassNotFoundException e) {
                 throw new RuntimeException(e);
             }
@@ -46,15 +46,19 @@ public final class MainRunner implements Runner {
 
     public boolean run(String actionName, Profiler profiler, String[] args) {
         monitor.outcomeStarted(this, mainClass.getName(), actionName);
+        OutcomeMetrics metrics = new OutcomeMetrics();
         try {
             if (profiler != null) {
                 profiler.start();
             }
+            metrics.start();
             main.invoke(null, new Object[] { args });
-            monitor.outcomeFinished(Result.SUCCESS);
+            metrics.stop();
+            monitor.outcomeFinished(Result.SUCCESS, metrics.getMetrics());
         } catch (Throwable ex) {
+            metrics.stop();
             ex.printStackTrace();
-            monitor.outcomeFinished(Result.EXEC_FAILED);
+            monitor.outcomeFinished(Result.EXEC_FAILED, metrics.getMetrics());
         } finally {
             if (profiler != null) {
                 profiler.stop();
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vogar.target;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import vogar.Outcome;
+
+/**
+ * Measures the time and resources an outcome takes: its wall time, the CPU
+ * time and allocations of the thread that runs it, and the heap, garbage
+ * collections and live threads of the whole VM. Measurements the VM doesn't
+ * expose are left out. Start and stop on the thread that runs the outcome;
+ * the metrics may be read from any thread.
+ */
+public final class OutcomeMetrics {
+    private volatile Sample start;
+    private volatile Sample end;
+
+    public void start() {
+        start = new Sample();
+    }
+
+    public void stop() {
+        end = new Sample();
+    }
+
+    /**
+     * Returns the outcome's metrics for {@link vogar.monitor.TargetMonitor},
+     * keyed by the names in {@link Outcome}. If this hasn't been stopped, as
+     * when the outcome timed out, this has only the wall time so far.
+     */
+    public Map<String, Long> getMetrics() {
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        Sample start = this.start;
+        Sample end = this.end;
+        if (start == null) {
+            return result;
+        } else if (end == null) {
+            result.put(Outcome.WALL_NANOS, System.nanoTime() - start.nanos);
+            return result;
+        }
+
+        result.put(Outcome.WALL_NANOS, end.nanos - start.nanos);
+        putDifference(result, Outcome.CPU_NANOS, start.cpuNanos, end.cpuNanos);
+        putDifference(result, Outcome.ALLOCATED_BYTES, start.allocatedBytes, end.allocatedBytes);
+        putDifference(result, Outcome.GC_COUNT, start.gcCount, end.gcCount);
+        putDifference(result, Outcome.GC_MILLIS, start.gcMillis, end.gcMillis);
+        result.put(Outcome.HEAP_USED_BYTES, end.heapUsedBytes);
+        result.put(Outcome.HEAP_GROWTH_BYTES, end.heapUsedBytes - start.heapUsedBytes);
+        result.put(Outcome.LIVE_THREADS, (long) end.liveThreads);
+        result.put(Outcome.THREAD_GROWTH, (long) (end.liveThreads - start.liveThreads));
+        return result;
+    }
+
+    private static void putDifference(Map<String, Long> metrics, String name,
+            long start, long end) {
+        if (start != -1 && end != -1) {
+            metrics.put(name, end - start);
+        }
+    }
+
+    /**
+     * The VM's counters at one moment. Values that can't be measured are -1.
+     */
+    private static class Sample {
+        final long nanos = System.nanoTime();
+        final long cpuNanos;
+        final long allocatedBytes;
+        final long gcCount;
+        final long gcMillis;
+        final long heapUsedBytes;
+        final int liveThreads;
+
+        Sample() {
+            long cpuNanos = -1;
+            long allocatedBytes = -1;
+            long[] gc = { -1, -1 };
+            try {
+                if ("Dalvik".equals(System.getProperty("java.vm.name"))) {
+                    cpuNanos = DalvikMetrics.threadCpuNanos();
+                } else {
+                    cpuNanos = JvmMetrics.threadCpuNanos();
+                    allocatedBytes = JvmMetrics.threadAllocatedBytes();
+                    gc = JvmMetrics.gcCountAndMillis();
+                }
+            } catch (LinkageError e) {
+                // this VM doesn't have the classes we expected
+            }
+            this.cpuNanos = cpuNanos;
+            this.allocatedBytes = allocatedBytes;
+            gcCount = gc[0];
+            gcMillis = gc[1];
+            Runtime runtime = Runtime.getRuntime();
+            heapUsedBytes = runtime.totalMemory() - runtime.freeMemory();
+            liveThreads = rootThreadGroup().activeCount();
+        }
+
+        private static ThreadGroup rootThreadGroup() {
+            ThreadGroup result = Thread.currentThread().getThreadGroup();
+            while (result.getParent() != null) {
+                result = result.getParent();
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Measures the current thread on Java VMs. java.lang.management is
+     * missing on Android, so this will fail to load there.
+     */
+    static class JvmMetrics {
+        /** HotSpot's ThreadMXBean.getThreadAllocatedBytes(long), or null */
+        private static final Method GET_THREAD_ALLOCATED_BYTES = getThreadAllocatedBytesMethod();
+
+        static long threadCpuNanos() {
+            ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+            return threadMXBean.isCurrentThreadCpuTimeSupported()
+                    ? threadMXBean.getCurrentThreadCpuTime()
+                    : -1;
+        }
+
+        static long threadAllocatedBytes() {
+            if (GET_THREAD_ALLOCATED_BYTES == null) {
+                return -1;
+            }
+            try {
+                return (Long) GET_THREAD_ALLOCATED_BYTES.invoke(
+                        ManagementFactory.getThreadMXBean(), Thread.currentThread().getId());
+            } catch (Exception e) {
+                return -1;
+            }
+        }
+
+        private static Method getThreadAllocatedBytesMethod() {
+            try {
+                Class<?> hotSpotThreadMXBean = Class.forName("com.sun.management.ThreadMXBean");
+                if (!hotSpotThreadMXBean.isInstance(ManagementFactory.getThreadMXBean())) {
+                    return null;
+                }
+                return hotSpotThreadMXBean.getMethod("getThreadAllocatedBytes", long.class);
+            } catch (Exception e) {
+                return null;
+            }
+        }
+
+        /**
+         * Returns the number of collections and the milliseconds spent in
+         * them by all of the VM's collectors.
+         */
+        static long[] gcCountAndMillis() {
+            long count = 0;
+            long millis = 0;
+            for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+                count += Math.max(0, collector.getCollectionCount());
+                millis += Math.max(0, collector.getCollectionTime());
+            }
+            return new long[] { count, millis };
+        }
+    }
+
+    /**
+     * Measures the current thread on Android. This uses Android-only classes
+     * and will fail to load on non-Android VMs.
+     */
+    static class DalvikMetrics {
+        static long threadCpuNanos() {
+            return android.os.Debug.threadCpuTimeNanos();
+        }
+    }
+}
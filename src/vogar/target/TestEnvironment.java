@@ -50,7 +50,8 @@ public final class TestEnvironment {
     private static final String JAVA_VM_VENDOR = System.getProperty("java.vm.vendor"); 
     private static final String JAVA_VM_NAME = System.getProperty("java.vm.name");
 
-    private final String tmpDir;
+    private String tmpDir;
+    private String userDir;
 
     public TestEnvironment() {
         this.tmpDir = System.getProperty("java.io.tmpdir");
@@ -64,7 +65,7 @@ public final class TestEnvironment {
         System.setProperty("java.io.tmpdir", tmpDir);
 
         String userHome = System.getProperty("user.home");
-        String userDir = System.getProperty("user.dir");
+        userDir = System.getProperty("user.dir");
         if (userHome == null || userDir == null) {
             throw new NullPointerException("user.home=" + userHome + ", user.dir=" + userDir);
         }
@@ -75,6 +76,22 @@ public final class TestEnvironment {
         disableSecurity();
     }
 
+    /**
+     * Sets the temporary directory restored by {@link #reset}. Processes that
+     * run several actions give each its own.
+     */
+    public void setTmpDir(String tmpDir) {
+        this.tmpDir = tmpDir;
+    }
+
+    /**
+     * Sets the working directory restored by {@link #reset}. Processes that
+     * run several actions give each its own.
+     */
+    public void setUserDir(String userDir) {
+        this.userDir = userDir;
+    }
+
     public void reset() {
         // Reset system properties.
         System.setProperties(null);
@@ -82,6 +99,7 @@ public final class TestEnvironment {
         // From "L" release onwards, calling System.setProperties(null) clears the java.io.tmpdir,
         // so we set it again. No-op on earlier releases.
         System.setProperty("java.io.tmpdir", tmpDir);
+        System.setProperty("user.dir", userDir);
 
         if (JAVA_RUNTIME_VERSION != null) {
             System.setProperty("java.runtime.version", JAVA_RUNTIME_VERSION);
@@ -56,12 +56,32 @@ public final class TestRunner {
     private final File profileFile;
     private final boolean profileThreadGroup;
     protected final String[] args;
+    private final ClassLoader classLoader;
+    private final String[] classPath;
+    private final TestEnvironment testEnvironment;
     private boolean useSocketMonitor;
 
     public TestRunner(List<String> argsList) {
-        properties = loadProperties();
+        this(loadProperties(), argsList, TestRunner.class.getClassLoader(),
+                ClassPathScanner.getClassPath(), new TestEnvironment());
+    }
+
+    /**
+     * @param classLoader the class loader of the action's classes.
+     * @param classPath the files to search for the classes of a package
+     *     action. These must be loadable by {@code classLoader}.
+     * @param testEnvironment the environment to reset before running the
+     *     action. This may be shared by actions run in the same process.
+     */
+    TestRunner(Properties properties, List<String> argsList, ClassLoader classLoader,
+            String[] classPath, TestEnvironment testEnvironment) {
+        this.properties = properties;
+        this.classLoader = classLoader;
+        this.classPath = classPath;
+        this.testEnvironment = testEnvironment;
         qualifiedName = properties.getProperty(TestProperties.QUALIFIED_NAME);
-        qualifiedClassOrPackageName = properties.getProperty(TestProperties.TEST_CLASS_OR_PACKAGE);
+        String qualifiedClassOrPackageName
+                = properties.getProperty(TestProperties.TEST_CLASS_OR_PACKAGE);
         timeoutSeconds = Integer.parseInt(properties.getProperty(TestProperties.TIMEOUT));
         runners = Arrays.asList(new JUnitRunner(),
                                 new CaliperRunner(),
@@ -89,8 +109,14 @@ public final class TestRunner {
                 skipPast = i.next();
                 i.remove();
             }
+            if (arg.equals("--testClass")) {
+                i.remove();
+                qualifiedClassOrPackageName = i.next();
+                i.remove();
+            }
         }
 
+        this.qualifiedClassOrPackageName = qualifiedClassOrPackageName;
         this.monitorPort = monitorPort;
         this.skipPastReference = new AtomicReference<String>(skipPast);
         this.profile = profile;
@@ -101,7 +127,7 @@ public final class TestRunner {
         this.args = argsList.toArray(new String[argsList.size()]);
     }
 
-    private Properties loadProperties() {
+    private static Properties loadProperties() {
         try {
             InputStream in = getPropertiesStream();
             Properties properties = new Properties();
@@ -126,7 +152,7 @@ public final class TestRunner {
      * Attempt to load the test properties file from both the application and system classloader.
      * This is necessary because sometimes we run tests from the boot classpath.
      */
-    private InputStream getPropertiesStream() throws IOException {
+    private static InputStream getPropertiesStream() throws IOException {
         for (Class<?> classToLoadFrom : new Class<?>[] { TestRunner.class, Object.class }) {
             InputStream propertiesStream = classToLoadFrom.getResourceAsStream(
                     "/" + TestProperties.FILE);
@@ -154,17 +180,10 @@ public final class TestRunner {
     }
 
     public void run() throws IOException {
-        final TargetMonitor monitor = useSocketMonitor
+        TargetMonitor monitor = useSocketMonitor
                 ? TargetMonitor.await(monitorPort)
                 : TargetMonitor.forPrintStream(System.out);
-
-        PrintStream monitorPrintStream = new PrintStreamDecorator(System.out) {
-            @Override public void print(String str) {
-                monitor.output(str != null ? str : "null");
-            }
-        };
-        System.setOut(monitorPrintStream);
-        System.setErr(monitorPrintStream);
+        PrintStream monitorPrintStream = redirectOutput(monitor);
 
         try {
             run(monitor);
@@ -175,8 +194,27 @@ public final class TestRunner {
         }
     }
 
-    public void run(final TargetMonitor monitor) {
-        TestEnvironment testEnvironment = new TestEnvironment();
+    /**
+     * Sends everything printed to System.out and System.err to {@code monitor}
+     * as output of the current outcome. Returns the new output stream.
+     */
+    static PrintStream redirectOutput(final TargetMonitor monitor) {
+        PrintStream monitorPrintStream = new PrintStreamDecorator(System.out) {
+            @Override public void print(String str) {
+                monitor.output(str != null ? str : "null");
+            }
+        };
+        System.setOut(monitorPrintStream);
+        System.setErr(monitorPrintStream);
+        return monitorPrintStream;
+    }
+
+    /**
+     * Runs the action, reporting its outcomes to {@code monitor}. Returns
+     * false if the action didn't complete normally, in which case this
+     * process should exit so the caller can start another.
+     */
+    public boolean run(final TargetMonitor monitor) {
         testEnvironment.reset();
 
         String classOrPackageName;
@@ -184,7 +222,8 @@ public final class TestRunner {
 
         // Check whether the class or package is qualified and, if so, strip it off and pass it
         // separately to the runners. For instance, may qualify a junit class by appending
-        // #method_name, where method_name is the name of a single test of the class to run.
+        // #method_name, where method_name is the name of a single test of the class to run, or
+        // by #method1,method2 to run several tests.
         int hash_position = qualifiedClassOrPackageName.indexOf("#");
         if (hash_position != -1) {
             classOrPackageName = qualifiedClassOrPackageName.substring(0, hash_position);
@@ -194,7 +233,7 @@ public final class TestRunner {
             qualification = null;
         }
 
-        Set<Class<?>> classes = new ClassFinder().find(classOrPackageName);
+        Set<Class<?>> classes = new ClassFinder(classLoader, classPath).find(classOrPackageName);
 
         // if there is more than one class in the set, this must be a package. Since we're
         // running everything in the package already, remove any class called AllTests.
@@ -239,11 +278,11 @@ public final class TestRunner {
                 monitor.outcomeStarted(null, qualifiedName, qualifiedName);
                 e.printStackTrace();
                 monitor.outcomeFinished(Result.ERROR);
-                return;
+                return false;
             }
             boolean completedNormally = runner.run(qualifiedName, profiler, args);
             if (!completedNormally) {
-                return; // let the caller start another process
+                return false; // let the caller start another process
             }
         }
         if (profiler != null) {
@@ -251,6 +290,7 @@ public final class TestRunner {
         }
 
         monitor.completedNormally(true);
+        return true;
     }
 
     public static void main(String[] args) throws IOException {
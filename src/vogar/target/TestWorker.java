@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vogar.target;
+
+import com.google.caliper.internal.gson.JsonObject;
+import com.google.caliper.internal.gson.JsonParser;
+import dalvik.system.PathClassLoader;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.MalformedURLException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.regex.Pattern;
+import vogar.TestProperties;
+import vogar.monitor.TargetMonitor;
+
+/**
+ * Runs many actions in one process, saving the cost of starting a VM for
+ * each. Vogar connects to the worker's monitor port and sends a request for
+ * each action, as a line of JSON:
+ *
+ * {"classpath"="/vogar/run/java.util.FooTest.dex.jar", "tmpdir"="/vogar/run/java.util.FooTest",
+ *  "userdir"="/vogar/run/java.util.FooTest"}
+ *
+ * <p>Before the first request, the host may answer the protocol offered in
+ * the worker's ready event with {"protocol"=2}.
+ *
+ * <p>The worker loads the action's classes in a fresh class loader, runs it
+ * and reports its outcomes on the same connection. It exits when the
+ * connection is closed, or after an action that doesn't complete normally,
+ * since that action may have left threads or other state behind.
+ */
+public final class TestWorker {
+
+    private static final int ACCEPT_TIMEOUT_MILLIS = 10 * 1000;
+
+    private final List<String> args;
+    private final PrintStream out;
+    /** shared by every action; its defaults are expensive to compute */
+    private final TestEnvironment testEnvironment = new TestEnvironment();
+
+    private TestWorker(List<String> args, PrintStream out) {
+        this.args = args;
+        this.out = out;
+    }
+
+    /**
+     * Runs the action requested by {@code request}. Returns false if it
+     * didn't complete normally.
+     */
+    private boolean run(TargetMonitor monitor, JsonObject request) {
+        try {
+            String classPath = request.get("classpath").getAsString();
+            String[] classPathElements = classPath.split(Pattern.quote(File.pathSeparator));
+            ClassLoader classLoader = newClassLoader(classPath, classPathElements);
+            testEnvironment.setTmpDir(request.get("tmpdir").getAsString());
+            testEnvironment.setUserDir(request.get("userdir").getAsString());
+
+            List<String> runnerArgs = new ArrayList<String>(args);
+            if (request.get("skipPast") != null) {
+                runnerArgs.add("--skipPast");
+                runnerArgs.add(request.get("skipPast").getAsString());
+            }
+
+            // search the action's classes first, then everything else on the class path
+            List<String> searchPath = new ArrayList<String>(Arrays.asList(classPathElements));
+            searchPath.addAll(Arrays.asList(ClassPathScanner.getClassPath()));
+
+            Thread thread = Thread.currentThread();
+            ClassLoader contextClassLoader = thread.getContextClassLoader();
+            thread.setContextClassLoader(classLoader);
+            try {
+                return new TestRunner(loadProperties(classLoader), runnerArgs, classLoader,
+                        searchPath.toArray(new String[searchPath.size()]), testEnvironment)
+                        .run(monitor);
+            } finally {
+                thread.setContextClassLoader(contextClassLoader);
+                // release the action's jar files; URLClassLoader is Closeable on Java 7+
+                if (classLoader instanceof Closeable) {
+                    ((Closeable) classLoader).close();
+                }
+            }
+        } catch (Throwable internalError) {
+            internalError.printStackTrace(out);
+            return false;
+        }
+    }
+
+    private static ClassLoader newClassLoader(String classPath, String[] classPathElements)
+            throws MalformedURLException {
+        ClassLoader parent = TestWorker.class.getClassLoader();
+        if ("Dalvik".equals(System.getProperty("java.vm.name"))) {
+            return DexClassLoaders.create(classPath, parent);
+        }
+        URL[] urls = new URL[classPathElements.length];
+        for (int i = 0; i < classPathElements.length; i++) {
+            urls[i] = new File(classPathElements[i]).toURI().toURL();
+        }
+        return new URLClassLoader(urls, parent);
+    }
+
+    private static Properties loadProperties(ClassLoader classLoader) throws IOException {
+        InputStream in = classLoader.getResourceAsStream(TestProperties.FILE);
+        if (in == null) {
+            throw new IOException(TestProperties.FILE + " missing!");
+        }
+        try {
+            Properties properties = new Properties();
+            properties.load(in);
+            return properties;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Creates class loaders for dex files. This uses Android-only classes and
+     * will fail to load on non-Android VMs.
+     */
+    static class DexClassLoaders {
+        static ClassLoader create(String classPath, ClassLoader parent) {
+            return new PathClassLoader(classPath, parent);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        List<String> argsList = new ArrayList<String>(Arrays.asList(args));
+        int monitorPort = -1;
+        for (Iterator<String> i = argsList.iterator(); i.hasNext(); ) {
+            if (i.next().equals("--monitorPort")) {
+                i.remove();
+                monitorPort = Integer.parseInt(i.next());
+                i.remove();
+            }
+        }
+
+        ServerSocket serverSocket = new ServerSocket(monitorPort);
+        serverSocket.setSoTimeout(ACCEPT_TIMEOUT_MILLIS);
+        serverSocket.setReuseAddress(true);
+        Socket socket = serverSocket.accept();
+        serverSocket.close();
+
+        TargetMonitor monitor = TargetMonitor.forPrintStream(
+                new PrintStream(socket.getOutputStream()));
+        TestWorker worker = new TestWorker(argsList, TestRunner.redirectOutput(monitor));
+        BufferedReader in = new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), "UTF-8"));
+        try {
+            monitor.ready();
+            JsonParser parser = new JsonParser();
+            String request;
+            while ((request = in.readLine()) != null) {
+                JsonObject requestObject = parser.parse(request).getAsJsonObject();
+                if (requestObject.get("protocol") != null) {
+                    // the host's answer to the protocol offered by ready()
+                    monitor.useProtocol(requestObject.get("protocol").getAsInt());
+                } else if (!worker.run(monitor, requestObject)) {
+                    break;
+                }
+            }
+        } finally {
+            monitor.close();
+            socket.close();
+        }
+        System.exit(0);
+    }
+}
@@ -28,6 +28,7 @@ import java.util.concurrent.atomic.AtomicReference;
 import junit.framework.AssertionFailedError;
 import vogar.Result;
 import vogar.monitor.TargetMonitor;
+import vogar.target.OutcomeMetrics;
 import vogar.target.Profiler;
 import vogar.target.Runner;
 import vogar.target.TestEnvironment;
@@ -63,15 +64,16 @@ public final class JUnitRunner implements Runner {
     }
 
     public boolean run(String actionName, Profiler profiler, String[] args) {
+        // the qualification may name several test methods, like "testFoo,testBar"
         final List<VogarTest> tests;
         if (Junit3.isJunit3Test(testClass)) {
             tests = qualification != null
-                    ? Junit3.classToVogarTests(testClass, qualification)
+                    ? Junit3.classToVogarTests(testClass, qualification.split(","))
                     : Junit3.classToVogarTests(testClass, args);
         } else if (Junit4.isJunit4Test(testClass)) {
             tests = qualification != null
-                    ? Junit4.classToVogarTests(testClass, qualification)
-                    : Junit4.classToVogarTests(testClass, args); 
+                    ? Junit4.classToVogarTests(testClass, qualification.split(","))
+                    : Junit4.classToVogarTests(testClass, args);
         } else {
             throw new AssertionFailedError("Unknown JUnit type: " + testClass.getName());
         }
@@ -107,6 +109,7 @@ public final class JUnitRunner implements Runner {
 
         // Start the test on a background thread.
         final AtomicReference<Thread> executingThreadReference = new AtomicReference<Thread>();
+        final OutcomeMetrics metrics = new OutcomeMetrics();
         Future<Throwable> result = executor.submit(new Callable<Throwable>() {
             public Throwable call() throws Exception {
                 executingThreadReference.set(Thread.currentThread());
@@ -114,11 +117,13 @@ public final class JUnitRunner implements Runner {
                     if (profiler != null) {
                         profiler.start();
                     }
+                    metrics.start();
                     test.run();
                     return null;
                 } catch (Throwable throwable) {
                     return throwable;
                 } finally {
+                    metrics.stop();
                     if (profiler != null) {
                         profiler.stop();
                     }
@@ -147,9 +152,9 @@ public final class JUnitRunner implements Runner {
         if (thrown != null) {
             prepareForDisplay(thrown);
             thrown.printStackTrace(System.out);
-            monitor.outcomeFinished(Result.EXEC_FAILED);
+            monitor.outcomeFinished(Result.EXEC_FAILED, metrics.getMetrics());
         } else {
-            monitor.outcomeFinished(Result.SUCCESS);
+            monitor.outcomeFinished(Result.SUCCESS, metrics.getMetrics());
         }
     }
 
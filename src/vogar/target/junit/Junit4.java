@@ -75,6 +75,7 @@ public final class Junit4 {
                 }
             }
         } else {
+            isJunit4TestClass = true;
             for (String arg : args) {
                 try {
                     addAllParameterizedTests(out, testClass, testClass.getMethod(arg),
@@ -205,7 +206,7 @@ public final class Junit4 {
             Throwable failure = null;
 
             try {
-                Class.forName("org.mockito.MockitoAnnotations")
+                Class.forName("org.mockito.MockitoAnnotations", true, testClass.getClassLoader())
                         .getMethod("initMocks", Object.class)
                         .invoke(null, testCase);
             } catch (Exception ignored) {
@@ -22,20 +22,20 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Properties;
 import java.util.Set;
 import java.util.regex.Pattern;
 import vogar.Action;
 import vogar.Classpath;
 import vogar.Driver;
-import vogar.Mode;
 import vogar.Outcome;
 import vogar.Result;
 import vogar.Run;
 import vogar.TestProperties;
-import vogar.commands.Command;
 import vogar.commands.CommandFailedException;
 import vogar.commands.Javac;
+import vogar.util.DeterministicJar;
 
 /**
  * Compiles classes for the given action and makes them ready for execution.
@@ -47,13 +47,36 @@ public final class BuildActionTask extends Task {
     private final Run run;
     private final Driver driver;
     private final File jar;
+    private final CompileBatchTask compileBatch;
 
-    public BuildActionTask(Run run, Action action, Driver driver, File jar) {
+    /**
+     * @param compileBatch the task that compiles this action's sources, or
+     *     null to fork javac to compile them.
+     */
+    public BuildActionTask(Run run, Action action, Driver driver, File jar,
+            CompileBatchTask compileBatch) {
         super("build " + action.getName());
         this.run = run;
         this.action = action;
         this.driver = driver;
         this.jar = jar;
+        this.compileBatch = compileBatch;
+        if (compileBatch != null) {
+            afterSuccess(compileBatch);
+        }
+    }
+
+    /**
+     * Returns true if {@code action} can be compiled by a {@link
+     * CompileBatchTask}.
+     */
+    public static boolean canCompileInBatch(Action action) {
+        File javaFile = action.getJavaFile();
+        return javaFile != null && JAVA_SOURCE_PATTERN.matcher(javaFile.toString()).find();
+    }
+
+    @Override public Resource getResource() {
+        return compileBatch != null ? Resource.GENERAL : Resource.COMPILE;
     }
 
     @Override protected Result execute() throws Exception {
@@ -78,8 +101,19 @@ public final class BuildActionTask extends Task {
     private void compile(Action action, File jar) throws IOException {
         File classesDir = run.localFile(action, "classes");
         run.mkdir.mkdirs(classesDir);
+
+        if (run.buildCache == null || !run.buildCache.restore(action, classesDir)) {
+            compileClasses(action, classesDir);
+            if (run.buildCache != null && action.getJavaFile() != null) {
+                run.buildCache.insert(action, classesDir);
+            }
+        }
+
         createJarMetadataFiles(action, classesDir);
+        DeterministicJar.create(jar, classesDir);
+    }
 
+    private void compileClasses(Action action, File classesDir) {
         Set<File> sourceFiles = new HashSet<File>();
         File javaFile = action.getJavaFile();
         Javac javac = new Javac(run.log, run.javaPath("javac"));
@@ -91,7 +125,14 @@ public final class BuildActionTask extends Task {
                 throw new CommandFailedException(Collections.<String>emptyList(),
                         Collections.singletonList("Cannot compile: " + javaFile));
             }
-            sourceFiles.add(javaFile);
+            if (compileBatch != null) {
+                List<String> failure = compileBatch.getFailure(action);
+                if (failure != null) {
+                    throw new CommandFailedException(Collections.<String>emptyList(), failure);
+                }
+            } else {
+                sourceFiles.add(javaFile);
+            }
             Classpath sourceDirs = Classpath.of(action.getSourcePath());
             sourceDirs.addAll(run.sourcepath);
             javac.sourcepath(sourceDirs.getElements());
@@ -105,9 +146,6 @@ public final class BuildActionTask extends Task {
                     .extra(run.javacArgs)
                     .compile(sourceFiles);
         }
-
-        new Command(run.log, run.javaPath("jar"), "cvfM", jar.getPath(),
-                "-C", classesDir.getPath(), "./").execute();
     }
 
     /**
@@ -119,8 +157,11 @@ public final class BuildActionTask extends Task {
                 = new FileOutputStream(new File(classesDir, TestProperties.FILE));
         Properties properties = new Properties();
         fillInProperties(properties, action);
-        properties.store(propertiesOut, "generated by " + Mode.class.getName());
-        propertiesOut.close();
+        try {
+            DeterministicJar.storeProperties(properties, propertiesOut);
+        } finally {
+            propertiesOut.close();
+        }
     }
 
     /**
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vogar.tasks;
+
+import com.google.common.base.Supplier;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import vogar.Action;
+import vogar.Classpath;
+import vogar.Log;
+import vogar.Result;
+import vogar.Run;
+import vogar.commands.CommandFailedException;
+import vogar.commands.InProcessJavac;
+import vogar.util.ClassReferences;
+import vogar.util.IoUtils;
+
+/**
+ * Compiles the sources of several actions with a single in-process javac.
+ * Each action's classes, plus the classes they depend on, are then copied to
+ * that action's classes directory so that {@link BuildActionTask} can package
+ * them exactly as if the action had been compiled alone.
+ *
+ * <p>If the batch fails to compile, the actions whose sources javac reported
+ * errors in are recompiled on their own and the rest are compiled together
+ * again. Otherwise one broken action, or two actions that declare the same
+ * class, would fail the entire batch. If an error can't be traced to an
+ * action's source, every action is recompiled on its own. The diagnostics
+ * for actions that still fail are reported by their {@link BuildActionTask}.
+ */
+public final class CompileBatchTask extends Task {
+    private final Run run;
+    private final List<Action> actions;
+    private final File classesDir;
+
+    /** Compiler output for the actions that failed to compile. */
+    private final Map<Action, List<String>> failures
+            = Collections.synchronizedMap(new HashMap<Action, List<String>>());
+
+    /**
+     * @param actions actions with the same source path.
+     */
+    public CompileBatchTask(Run run, String name, List<Action> actions) {
+        super("compile " + name);
+        this.run = run;
+        this.actions = actions;
+        this.classesDir = run.localFile(name, "classes");
+    }
+
+    @Override public Resource getResource() {
+        return Resource.COMPILE;
+    }
+
+    /**
+     * Returns the compiler output for {@code action} if it failed to compile,
+     * or null if it compiled successfully.
+     */
+    public List<String> getFailure(Action action) {
+        return failures.get(action);
+    }
+
+    @Override protected Result execute() throws Exception {
+        List<Action> batch = new ArrayList<Action>(actions);
+        if (actions.size() > 1) {
+            run.mkdir.mkdirs(classesDir);
+            InProcessJavac javac = compileTogether(run.log, batch, new Supplier<InProcessJavac>() {
+                public InProcessJavac get() {
+                    return newJavac(actions.get(0), classesDir);
+                }
+            });
+            if (javac != null) {
+                distributeClasses(batch, javac.getSourceFilesByClassName());
+            } else {
+                batch.clear();
+            }
+        } else {
+            batch.clear();
+        }
+
+        for (Action action : actions) {
+            if (batch.contains(action)) {
+                continue;
+            }
+            File actionClassesDir = run.localFile(action, "classes");
+            run.mkdir.mkdirs(actionClassesDir);
+            try {
+                newJavac(action, actionClassesDir)
+                        .compile(Collections.singletonList(action.getJavaFile()));
+            } catch (CommandFailedException e) {
+                failures.put(action, e.getOutputLines());
+            }
+        }
+        return Result.SUCCESS;
+    }
+
+    /**
+     * Compiles {@code batch} with javacs from {@code javacs}, removing the
+     * actions whose sources have errors until the rest compile. Returns the
+     * javac that compiled the remaining actions, or null if none remain or
+     * an error couldn't be traced to an action's source.
+     */
+    static InProcessJavac compileTogether(Log log, List<Action> batch,
+            Supplier<InProcessJavac> javacs) throws IOException {
+        while (batch.size() > 1) {
+            InProcessJavac javac = javacs.get();
+            List<File> javaFiles = new ArrayList<File>();
+            for (Action action : batch) {
+                javaFiles.add(action.getJavaFile());
+            }
+            try {
+                javac.compile(javaFiles);
+                return javac;
+            } catch (CommandFailedException e) {
+                Set<File> sourceFilesWithErrors = javac.getSourceFilesWithErrors();
+                List<Action> failed = new ArrayList<Action>();
+                if (sourceFilesWithErrors != null) {
+                    for (Action action : batch) {
+                        if (sourceFilesWithErrors.contains(
+                                action.getJavaFile().getCanonicalFile())) {
+                            failed.add(action);
+                        }
+                    }
+                }
+                if (failed.isEmpty() || failed.size() < sourceFilesWithErrors.size()) {
+                    log.verbose("failed to compile " + batch + " together");
+                    return null;
+                }
+                log.verbose("failed to compile " + failed + "; compiling the rest together");
+                batch.removeAll(failed);
+            }
+        }
+        return null;
+    }
+
+    private InProcessJavac newJavac(Action action, File destination) {
+        InProcessJavac javac = new InProcessJavac(run.log);
+        if (run.debugPort != null) {
+            javac.debug();
+        }
+        Classpath sourceDirs = Classpath.of(action.getSourcePath());
+        sourceDirs.addAll(run.sourcepath);
+        javac.sourcepath(sourceDirs.getElements());
+        if (!run.buildClasspath.isEmpty()) {
+            javac.bootClasspath(run.buildClasspath);
+        }
+        return javac.classpath(run.classpath)
+                .destination(destination)
+                .extra(run.javacArgs);
+    }
+
+    /**
+     * Copies the classes generated from each batched action's source file, and all
+     * generated classes they refer to, to the action's classes directory.
+     */
+    private void distributeClasses(List<Action> batch, Map<String, File> sourceFilesByClassName)
+            throws IOException {
+        Map<File, List<String>> classNamesBySourceFile = new HashMap<File, List<String>>();
+        Set<String> generated = new HashSet<String>();
+        for (Map.Entry<String, File> entry : sourceFilesByClassName.entrySet()) {
+            String internalName = entry.getKey().replace('.', '/');
+            generated.add(internalName);
+            File sourceFile = entry.getValue().getCanonicalFile();
+            List<String> classNames = classNamesBySourceFile.get(sourceFile);
+            if (classNames == null) {
+                classNames = new ArrayList<String>();
+                classNamesBySourceFile.put(sourceFile, classNames);
+            }
+            classNames.add(internalName);
+        }
+
+        Map<String, Set<String>> referencesCache = new HashMap<String, Set<String>>();
+        for (Action action : batch) {
+            List<String> roots = classNamesBySourceFile.get(
+                    action.getJavaFile().getCanonicalFile());
+            if (roots == null) {
+                continue; // the source file has no classes, like package-info.java
+            }
+
+            Set<String> needed = new HashSet<String>(roots);
+            LinkedList<String> toVisit = new LinkedList<String>(roots);
+            while (!toVisit.isEmpty()) {
+                String className = toVisit.removeFirst();
+                Set<String> references = referencesCache.get(className);
+                if (references == null) {
+                    references = ClassReferences.read(classFile(classesDir, className));
+                    references.retainAll(generated);
+                    referencesCache.put(className, references);
+                }
+                for (String reference : references) {
+                    if (needed.add(reference)) {
+                        toVisit.add(reference);
+                    }
+                }
+            }
+
+            File actionClassesDir = run.localFile(action, "classes");
+            for (String className : needed) {
+                File destination = classFile(actionClassesDir, className);
+                IoUtils.safeMkdirs(destination.getParentFile());
+                Files.copy(classFile(classesDir, className), destination);
+            }
+        }
+    }
+
+    private File classFile(File dir, String internalName) {
+        return new File(dir, internalName + ".class");
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vogar.tasks;
+
+/**
+ * A share of a resource with its own limit, like the transfers to one of
+ * several devices. A task in a lane counts against both its resource's limit
+ * and the lane's, so a busy lane doesn't hold up tasks in other lanes. Every
+ * task in a lane should consume the same resource.
+ */
+public final class Lane {
+    private final String name;
+    private final int limit;
+
+    /**
+     * @param limit the most tasks in this lane that may run at once, at
+     *     least 1.
+     */
+    public Lane(String name, int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("Bad limit for " + name + ": " + limit);
+        }
+        this.name = name;
+        this.limit = limit;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    @Override public String toString() {
+        return name;
+    }
+}
@@ -17,6 +17,8 @@
 package vogar.tasks;
 
 import java.io.File;
+import java.util.Collections;
+import java.util.Set;
 import vogar.Action;
 import vogar.Result;
 import vogar.Target;
@@ -32,12 +34,23 @@ public final class PrepareUserDirTask extends Task {
     }
 
     @Override protected Result execute() throws Exception {
-        File userDir = action.getUserDir();
-        target.mkdirs(userDir);
+        target.mkdirs(action.getUserDir());
+        return Result.SUCCESS;
+    }
+
+    /**
+     * Returns the tasks that push the action's resources into its user dir,
+     * to be run after this task.
+     */
+    public Set<Task> pushResourcesTasks() {
         File resourcesDirectory = action.getResourcesDirectory();
-        if (resourcesDirectory != null) {
-            target.push(resourcesDirectory, userDir);
+        if (resourcesDirectory == null) {
+            return Collections.emptySet();
         }
-        return Result.SUCCESS;
+        Set<Task> result = target.pushTasks(resourcesDirectory, action.getUserDir());
+        for (Task push : result) {
+            push.afterSuccess(this);
+        }
+        return result;
     }
 }
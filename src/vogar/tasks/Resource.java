@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vogar.tasks;
+
+/**
+ * The scarce resource a task consumes while it runs. The task queue limits
+ * how many tasks of each resource run concurrently.
+ */
+public enum Resource {
+
+    /**
+     * CPU-heavy work on the host, like javac.
+     */
+    COMPILE,
+
+    /**
+     * Memory-heavy work on the host, like dx. Each dx process may use more
+     * than a gigabyte of heap.
+     */
+    DEX,
+
+    /**
+     * File transfers to and from the target, like adb push and pull. These
+     * share the link to the target, typically one USB cable.
+     */
+    TRANSFER,
+
+    /**
+     * Executing an action on the target.
+     */
+    TARGET,
+
+    /**
+     * Lightweight tasks that don't need a limit beyond the host's processor
+     * count.
+     */
+    GENERAL
+}
@@ -18,16 +18,23 @@ package vogar.tasks;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 import vogar.Action;
 import vogar.Classpath;
 import vogar.Outcome;
 import vogar.Result;
+import vogar.RetryPolicy;
 import vogar.Run;
 import vogar.commands.Command;
 import vogar.commands.VmCommandBuilder;
 import vogar.monitor.HostMonitor;
 import vogar.target.CaliperRunner;
 import vogar.target.TestRunner;
+import vogar.target.TestWorker;
+import vogar.util.Trace;
 
 /**
  * Executes a single action and then prints the result.
@@ -51,6 +58,14 @@ public class RunActionTask extends Task implements HostMonitor.Handler {
     private Command currentCommand;
     private String lastStartedOutcome;
     private String lastFinishedOutcome;
+    /** when the target was asked to run the action, or 0 once it has started an outcome */
+    private long targetStartNanos;
+    /** failed outcomes to run again, each in a new process, once the action completes */
+    private final List<Outcome> outcomesToRetry = new ArrayList<Outcome>();
+    /** the outcome being run again, or null if this is running the whole action */
+    private String retryingOutcome;
+    /** the result of running {@code retryingOutcome} again, or null until it finishes */
+    private Outcome retryResult;
 
     public RunActionTask(Run run, Action action, boolean useLargeTimeout) {
         super("run " + action.getName());
@@ -60,13 +75,35 @@ public class RunActionTask extends Task implements HostMonitor.Handler {
         this.useLargeTimeout = useLargeTimeout;
     }
 
-    @Override public boolean isAction() {
-        return true;
+    @Override public Resource getResource() {
+        return Resource.TARGET;
     }
 
     @Override protected Result execute() throws Exception {
         run.console.action(actionName);
 
+        File userDir = action.getUserDir();
+        if (!run.target.acquire(userDir, run.taskDurationStore.estimateMillis(this))) {
+            run.driver.addEarlyResult(new Outcome(actionName, Result.ERROR,
+                    "No devices left to run " + action + " on"));
+            return Result.ERROR;
+        }
+        try {
+            return executeOnTarget();
+        } finally {
+            run.target.release(userDir);
+        }
+    }
+
+    private Result executeOnTarget() throws Exception {
+        try {
+            return executeOutcomes();
+        } finally {
+            retryFailedOutcomes();
+        }
+    }
+
+    private Result executeOutcomes() throws Exception {
         while (true) {
             /*
              * If the target process failed midway through a set of
@@ -76,9 +113,19 @@ public class RunActionTask extends Task implements HostMonitor.Handler {
             String skipPast = lastStartedOutcome;
             lastStartedOutcome = null;
 
-            currentCommand = createActionCommand(action, skipPast, monitorPort(-1));
+            TargetWorker worker = run.workerPool != null ? run.workerPool.take() : null;
+            boolean completedNormally = false;
             try {
-                currentCommand.start();
+                targetStartNanos = System.nanoTime();
+                if (worker == null) {
+                    currentCommand = createActionCommand(action, skipPast, monitorPort(-1));
+                    currentCommand.start();
+                } else {
+                    if (!worker.isStarted()) {
+                        worker.start(createWorkerCommand(action, worker.getMonitorPort()));
+                    }
+                    currentCommand = worker.getCommand();
+                }
 
                 int timeoutSeconds = useLargeTimeout
                         ? run.largeTimeoutSeconds
@@ -88,14 +135,29 @@ public class RunActionTask extends Task implements HostMonitor.Handler {
                 }
 
                 HostMonitor hostMonitor = new HostMonitor(run.console, this);
-                boolean completedNormally = useSocketMonitor()
-                        ? hostMonitor.attach(monitorPort(run.firstMonitorPort))
-                        : hostMonitor.followStream(currentCommand.getInputStream());
+                if (worker != null) {
+                    // the same directories a process of the action's own would have
+                    String userDir = action.getUserDir().getPath();
+                    completedNormally = worker.run(hostMonitor,
+                            run.mode.getActionClasspath(action).toString(),
+                            userDir, userDir, skipPast);
+                } else if (useSocketMonitor()) {
+                    completedNormally = hostMonitor.attach(monitorPort(run.firstMonitorPort),
+                            currentCommand);
+                } else {
+                    completedNormally = hostMonitor.followStream(currentCommand.getInputStream());
+                }
 
                 if (completedNormally) {
                     return Result.SUCCESS;
                 }
 
+                // if the device went away, rerun the unfinished outcomes on another device
+                if (run.target.reassign(action.getUserDir())) {
+                    lastStartedOutcome = lastFinishedOutcome;
+                    continue;
+                }
+
                 String earlyResultOutcome;
                 boolean giveUp;
 
@@ -109,12 +171,20 @@ public class RunActionTask extends Task implements HostMonitor.Handler {
                     continue;
                 }
 
-                run.driver.addEarlyResult(new Outcome(earlyResultOutcome, Result.ERROR,
+                Outcome earlyResult = new Outcome(earlyResultOutcome, Result.ERROR,
                         "Action " + action + " did not complete normally.\n"
                                 + "timedOut=" + currentCommand.timedOut() + "\n"
                                 + "lastStartedOutcome=" + lastStartedOutcome + "\n"
                                 + "lastFinishedOutcome=" + lastFinishedOutcome + "\n"
-                                + "command=" + currentCommand));
+                                + "command=" + currentCommand);
+                if (!giveUp && shouldRetry(earlyResult)) {
+                    for (String line : earlyResult.getOutputLines()) {
+                        run.console.streamOutput(earlyResultOutcome, line + "\n");
+                    }
+                    outcomesToRetry.add(earlyResult);
+                } else {
+                    run.driver.addEarlyResult(earlyResult);
+                }
 
                 if (giveUp) {
                     return Result.ERROR;
@@ -124,9 +194,99 @@ public class RunActionTask extends Task implements HostMonitor.Handler {
                 run.driver.addEarlyResult(new Outcome(actionName, Result.ERROR, e));
                 return Result.ERROR;
             } finally {
+                if (worker != null) {
+                    run.workerPool.release(worker, completedNormally);
+                } else {
+                    currentCommand.destroy();
+                }
+                currentCommand = null;
+            }
+        }
+    }
+
+    /**
+     * Returns true if {@code outcome} is a failed test that should be run
+     * again on its own before its result is recorded. Only test methods that
+     * the target started can be run on their own; the action's own outcome,
+     * like an early result for an action that didn't start, can't.
+     */
+    private boolean shouldRetry(Outcome outcome) {
+        return retryingOutcome == null
+                && !outcome.getName().equals(actionName)
+                && outcome.getName().contains("#")
+                && run.retryPolicy.shouldRetry(outcome);
+    }
+
+    /**
+     * Runs each failed test that may be flaky again, each time in a new
+     * process, until it passes or runs out of retries. Records the last
+     * attempt of each.
+     */
+    private void retryFailedOutcomes() {
+        RetryPolicy.Attempt attempt = new RetryPolicy.Attempt() {
+            public Outcome run(String outcomeName) {
+                return executeAgain(outcomeName);
+            }
+        };
+        for (Outcome failed : outcomesToRetry) {
+            List<Outcome> attempts = run.retryPolicy.retry(failed, attempt);
+            Outcome outcome = run.retryPolicy.summarize(attempts);
+            addToResourceReport(outcome);
+            run.driver.recordOutcome(outcome);
+            int retries = attempts.size() - 1;
+            run.console.info(String.format("%s: %s after %d %s; flakiness %d%%",
+                    outcome.getName(), outcome.getResult(), retries,
+                    retries == 1 ? "retry" : "retries",
+                    outcome.getMetrics().get(Outcome.FLAKINESS_PERCENT)));
+        }
+        outcomesToRetry.clear();
+    }
+
+    private void addToResourceReport(Outcome outcome) {
+        if (run.resourceReport != null) {
+            run.resourceReport.add(actionName, outcome);
+        }
+    }
+
+    /**
+     * Runs the test named {@code outcomeName} on its own in a new process
+     * and returns its outcome.
+     */
+    private Outcome executeAgain(String outcomeName) {
+        run.console.verbose("running " + outcomeName + " again");
+        retryingOutcome = outcomeName;
+        retryResult = null;
+        try {
+            currentCommand = createCommand(action, null, outcomeName, monitorPort(-1));
+            currentCommand.start();
+            int timeoutSeconds = useLargeTimeout
+                    ? run.largeTimeoutSeconds
+                    : run.smallTimeoutSeconds;
+            if (timeoutSeconds != 0) {
+                currentCommand.scheduleTimeout(timeoutSeconds);
+            }
+
+            HostMonitor hostMonitor = new HostMonitor(run.console, this);
+            if (useSocketMonitor()) {
+                hostMonitor.attach(monitorPort(run.firstMonitorPort), currentCommand);
+            } else {
+                hostMonitor.followStream(currentCommand.getInputStream());
+            }
+            if (retryResult != null) {
+                return retryResult;
+            }
+            return new Outcome(outcomeName, Result.ERROR,
+                    "Running " + outcomeName + " again did not complete normally.\n"
+                            + "timedOut=" + currentCommand.timedOut() + "\n"
+                            + "command=" + currentCommand);
+        } catch (IOException e) {
+            return new Outcome(outcomeName, Result.ERROR, e);
+        } finally {
+            if (currentCommand != null) {
                 currentCommand.destroy();
                 currentCommand = null;
             }
+            retryingOutcome = null;
         }
     }
 
@@ -137,6 +297,16 @@ public class RunActionTask extends Task implements HostMonitor.Handler {
      * @param monitorPort the port to accept connections on, or -1 for the
      */
     public Command createActionCommand(Action action, String skipPast, int monitorPort) {
+        return createCommand(action, skipPast, null, monitorPort);
+    }
+
+    /**
+     * @param testClass the class to run, qualified with the test methods to
+     *     run like {@code java.util.FooTest#testFoo}, or null to run the
+     *     action's own class or package.
+     */
+    private Command createCommand(Action action, String skipPast, String testClass,
+            int monitorPort) {
         File workingDirectory = action.getUserDir();
         VmCommandBuilder vmCommandBuilder = run.mode.newVmCommandBuilder(action, workingDirectory);
         Classpath runtimeClasspath = run.mode.getRuntimeClasspath(action);
@@ -151,6 +321,9 @@ public class RunActionTask extends Task implements HostMonitor.Handler {
         if (skipPast != null) {
             vmCommandBuilder.args("--skipPast", skipPast);
         }
+        if (testClass != null) {
+            vmCommandBuilder.args("--testClass", testClass);
+        }
         return vmCommandBuilder
                 .temp(workingDirectory)
                 .debugPort(run.debugPort)
@@ -160,6 +333,32 @@ public class RunActionTask extends Task implements HostMonitor.Handler {
                 .build();
     }
 
+    /**
+     * Create the command that starts a worker process, which runs many
+     * actions in turn. The worker's classpath has everything but the actions'
+     * own classes.
+     *
+     * @param action the first action the worker will run.
+     */
+    private Command createWorkerCommand(Action action, int monitorPort) {
+        VmCommandBuilder vmCommandBuilder = run.mode.newVmCommandBuilder(action, run.runnerDir);
+        Collection<File> actionClasspath = run.mode.getActionClasspath(action).getElements();
+        Classpath workerClasspath = new Classpath();
+        for (File element : run.mode.getRuntimeClasspath(action).getElements()) {
+            if (!actionClasspath.contains(element)) {
+                workerClasspath.addAll(element);
+            }
+        }
+        return vmCommandBuilder
+                .classpath(workerClasspath)
+                .args("--monitorPort", Integer.toString(monitorPort))
+                .temp(run.vogarTemp())
+                .vmArgs(run.additionalVmArgs)
+                .mainClass(TestWorker.class.getName())
+                .args(run.targetArgs)
+                .build();
+    }
+
     /**
      * Returns true if this mode requires a socket connection for reading test
      * results. Otherwise all communication happens over the output stream of
@@ -178,6 +377,12 @@ public class RunActionTask extends Task implements HostMonitor.Handler {
     @Override public void start(String outcomeName, String runnerClass) {
         outcomeName = toQualifiedOutcomeName(outcomeName);
         lastStartedOutcome = outcomeName;
+        if (targetStartNanos != 0) {
+            run.console.verbose("first outcome of " + actionName + " started after "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - targetStartNanos) + "ms");
+            Trace.complete("startup", actionName, targetStartNanos);
+            targetStartNanos = 0;
+        }
         // TODO add to Outcome knowledge about what class was used to run it
         if (CaliperRunner.class.getName().equals(runnerClass)) {
             if (!run.benchmark) {
@@ -208,8 +413,16 @@ public class RunActionTask extends Task implements HostMonitor.Handler {
         }
         lastFinishedOutcome = toQualifiedOutcomeName(outcome.getName());
         // TODO: support flexible timeouts for JUnit tests
-        run.driver.recordOutcome(new Outcome(lastFinishedOutcome, outcome.getResult(),
-                outcome.getOutputLines()));
+        Outcome qualified = new Outcome(lastFinishedOutcome, outcome.getResult(),
+                outcome.getOutput(), outcome.getDurationMillis(), outcome.getMetrics());
+        if (retryingOutcome != null) {
+            retryResult = qualified;
+        } else if (shouldRetry(qualified)) {
+            outcomesToRetry.add(qualified);
+        } else {
+            addToResourceReport(qualified);
+            run.driver.recordOutcome(qualified);
+        }
     }
 
     /**
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vogar.tasks;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import vogar.Log;
+import vogar.commands.Command;
+import vogar.monitor.HostMonitor;
+import vogar.monitor.WorkerConnection;
+import vogar.util.Strings;
+
+/**
+ * A process on the target that runs many actions in turn, each in its own
+ * class loader.
+ */
+final class TargetWorker {
+    private static final int FIRST_RETRY_MILLIS = 5;
+    private static final int MAX_RETRY_MILLIS = 100;
+    private static final int MAX_OUTPUT_LINES = 100;
+
+    private final Log log;
+    private final int monitorPort;
+    private Command command;
+    private WorkerConnection connection;
+    private int actionsRun;
+    private volatile boolean exited;
+
+    /** output printed outside of any action, like VM errors; guarded by itself */
+    private final List<String> output = new ArrayList<String>();
+
+    TargetWorker(Log log, int monitorPort) {
+        this.log = log;
+        this.monitorPort = monitorPort;
+    }
+
+    public int getMonitorPort() {
+        return monitorPort;
+    }
+
+    public Command getCommand() {
+        return command;
+    }
+
+    public boolean isStarted() {
+        return command != null;
+    }
+
+    public boolean hasExited() {
+        return exited;
+    }
+
+    public int getActionsRun() {
+        return actionsRun;
+    }
+
+    /**
+     * Starts {@code command}, which runs the worker on the target.
+     */
+    public void start(Command command) throws IOException {
+        command.start();
+        this.command = command;
+        final BufferedReader in = new BufferedReader(
+                new InputStreamReader(command.getInputStream(), "UTF-8"));
+        Thread outputThread = new Thread("worker output " + monitorPort) {
+            @Override public void run() {
+                try {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        log.verbose("worker " + monitorPort + ": " + line);
+                        synchronized (output) {
+                            if (output.size() < MAX_OUTPUT_LINES) {
+                                output.add(line);
+                            }
+                        }
+                    }
+                } catch (IOException ignored) {
+                } finally {
+                    exited = true;
+                }
+            }
+        };
+        outputThread.setDaemon(true);
+        outputThread.start();
+    }
+
+    /**
+     * Runs an action on this worker. Returns true if it completed normally;
+     * otherwise the worker must not be used again.
+     */
+    public boolean run(HostMonitor hostMonitor, String classpath, String tmpDir,
+            String userDir, String skipPast) throws IOException {
+        if (connection == null) {
+            connect();
+        }
+        actionsRun++;
+        return connection.run(hostMonitor, classpath, tmpDir, userDir, skipPast);
+    }
+
+    private void connect() throws IOException {
+        int retryMillis = FIRST_RETRY_MILLIS;
+        for (int attempt = 0; true; attempt++) {
+            if (exited) {
+                synchronized (output) {
+                    throw new IOException("Worker exited before accepting a connection: "
+                            + command + "\n" + Strings.join(output, "\n"));
+                }
+            }
+            connection = WorkerConnection.connect(monitorPort);
+            if (connection != null) {
+                log.verbose("connected to worker on localhost:" + monitorPort);
+                return;
+            }
+            log.verbose("connection " + attempt + " to worker on localhost:" + monitorPort
+                    + " failed; retrying in " + retryMillis + "ms");
+            try {
+                Thread.sleep(retryMillis);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            retryMillis = Math.min(retryMillis * 2, MAX_RETRY_MILLIS);
+        }
+    }
+
+    /**
+     * Closes the connection to this worker and destroys its process.
+     */
+    public void destroy() {
+        if (connection != null) {
+            connection.close();
+        }
+        if (command != null) {
+            command.destroy();
+        }
+    }
+}
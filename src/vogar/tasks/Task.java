@@ -19,8 +19,10 @@ package vogar.tasks;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import vogar.Console;
 import vogar.Result;
+import vogar.util.Trace;
 
 /**
  * A task necessary to accomplish the user's requested actions. Tasks have
@@ -34,50 +36,143 @@ public abstract class Task {
     volatile Result result;
     Exception thrown;
 
+    /**
+     * Tasks that list this task as a prerequisite. These are the only tasks
+     * that may become runnable when this task finishes. Guarded by this.
+     */
+    final List<Task> dependents = new ArrayList<Task>();
+    final List<Task> successDependents = new ArrayList<Task>();
+
+    /**
+     * The number of prerequisites that haven't been satisfied. A task whose
+     * prerequisite fails to finish successfully never reaches zero.
+     */
+    private final AtomicInteger unsatisfiedPrerequisites = new AtomicInteger();
+
+    /** The order in which this task was enqueued; used to break ties. */
+    long sequence;
+
+    /**
+     * The expected time to finish this task and everything that depends on
+     * it, or -1 if that hasn't been computed.
+     */
+    long criticalPathMillis = -1;
+
+    /**
+     * True if this task should be started ahead of tasks that aren't. The
+     * queue also sets this on the prerequisites of such tasks.
+     */
+    boolean first;
+
+    /** True if the queue finished this task without running it. */
+    private boolean skipped;
+
     protected Task(String name) {
         this.name = name;
     }
 
     /**
-     * Returns true if this task is an action task. The queue imposes limits
-     * on how many actions may be run concurrently.
+     * Returns the resource this task consumes while it runs. The queue imposes
+     * limits on how many tasks of each resource may be run concurrently.
+     */
+    public Resource getResource() {
+        return Resource.GENERAL;
+    }
+
+    /**
+     * Returns the lane of this task's resource, or null if the task is only
+     * limited by its resource.
      */
-    public boolean isAction() {
-        return false;
+    public Lane getLane() {
+        return null;
     }
 
     public Task after(Task prerequisite) {
         tasksThatMustFinishFirst.add(prerequisite);
+        prerequisite.addDependent(this, false);
         return this;
     }
 
     public Task after(Collection<Task> prerequisites) {
-        tasksThatMustFinishFirst.addAll(prerequisites);
+        for (Task prerequisite : prerequisites) {
+            after(prerequisite);
+        }
         return this;
     }
 
     public Task afterSuccess(Task prerequisite) {
         tasksThatMustFinishSuccessfullyFirst.add(prerequisite);
+        prerequisite.addDependent(this, true);
         return this;
     }
 
     public Task afterSuccess(Collection<Task> prerequisitess) {
-        tasksThatMustFinishSuccessfullyFirst.addAll(prerequisitess);
+        for (Task prerequisite : prerequisitess) {
+            afterSuccess(prerequisite);
+        }
+        return this;
+    }
+
+    private synchronized void addDependent(Task dependent, boolean requiresSuccess) {
+        if (result == null) {
+            (requiresSuccess ? successDependents : dependents).add(dependent);
+            dependent.unsatisfiedPrerequisites.incrementAndGet();
+        } else if (requiresSuccess && result != Result.SUCCESS) {
+            dependent.unsatisfiedPrerequisites.incrementAndGet(); // blocked forever
+        }
+    }
+
+    /**
+     * Asks the queue to start this task, and the tasks it depends on, ahead
+     * of tasks that weren't asked to run first.
+     */
+    public Task runFirst() {
+        first = true;
         return this;
     }
 
     public final boolean isRunnable() {
-        for (Task task : tasksThatMustFinishFirst) {
-            if (task.result == null) {
-                return false;
+        return unsatisfiedPrerequisites.get() == 0;
+    }
+
+    /**
+     * Releases this finished task's dependents and returns those that have no
+     * remaining unsatisfied prerequisites.
+     */
+    synchronized List<Task> releaseDependents() {
+        List<Task> unblocked = new ArrayList<Task>();
+        if (result == null) {
+            return unblocked; // execute() threw an Error; dependents stay blocked
+        }
+        for (Task dependent : dependents) {
+            if (dependent.unsatisfiedPrerequisites.decrementAndGet() == 0) {
+                unblocked.add(dependent);
             }
         }
-        for (Task task : tasksThatMustFinishSuccessfullyFirst) {
-            if (task.result != Result.SUCCESS) {
-                return false;
+        if (result == Result.SUCCESS || skipped) {
+            for (Task dependent : successDependents) {
+                if (dependent.unsatisfiedPrerequisites.decrementAndGet() == 0) {
+                    unblocked.add(dependent);
+                }
             }
         }
-        return true;
+        dependents.clear();
+        successDependents.clear();
+        return unblocked;
+    }
+
+    /**
+     * Finishes this task without running it. Unlike a failed task, a skipped
+     * task releases all of its dependents, so that they can be skipped too.
+     * Returns the dependents that have no remaining unsatisfied prerequisites.
+     */
+    synchronized List<Task> skip() {
+        if (result != null) {
+            throw new IllegalStateException();
+        }
+        result = Result.UNSUPPORTED;
+        skipped = true;
+        return releaseDependents();
     }
 
     protected abstract Result execute() throws Exception;
@@ -86,12 +181,15 @@ public abstract class Task {
         if (result != null) {
             throw new IllegalStateException();
         }
+        long start = System.nanoTime();
         try {
             console.verbose("running " + this);
             result = execute();
         } catch (Exception e) {
             thrown = e;
             result = Result.ERROR;
+        } finally {
+            Trace.complete("task", name, start, "resource", getResource(), "result", result);
         }
 
         if (result != Result.SUCCESS) {
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vogar.tasks;
+
+import com.google.caliper.internal.gson.stream.JsonReader;
+import com.google.caliper.internal.gson.stream.JsonToken;
+import com.google.caliper.internal.gson.stream.JsonWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import vogar.Log;
+import vogar.commands.Mkdir;
+
+/**
+ * Remembers how long each task took in previous runs so the queue can start
+ * the tasks on the longest path first. Tasks are identified by name, which
+ * includes the action name, so "build libcore.java.lang.StringTest" from one
+ * run matches the same task in the next.
+ *
+ * <p>Each duration is stored with the number of runs since its task last ran,
+ * like {"build libcore.java.lang.StringTest": [1200, 0]}, and tasks that
+ * haven't run in {@link #MAX_RUNS_UNSEEN} runs are forgotten. Otherwise the
+ * file would grow with every action ever run.
+ */
+public final class TaskDurationStore {
+    static final int MAX_RUNS_UNSEEN = 20;
+
+    private final Log log;
+    private final Mkdir mkdir;
+    private final File file;
+
+    /** Durations from previous runs, updated with this run's durations. */
+    private final Map<String, Long> durations = new TreeMap<String, Long>();
+
+    /** The number of runs since each task last ran, counting this one. */
+    private final Map<String, Integer> runsUnseen = new HashMap<String, Integer>();
+
+    /** Mean duration of each kind of task, like "build" or "dex". */
+    private final Map<String, Long> meanDurationsByKind = new HashMap<String, Long>();
+
+    public TaskDurationStore(Log log, Mkdir mkdir, File file) {
+        this.log = log;
+        this.mkdir = mkdir;
+        this.file = file;
+    }
+
+    public synchronized void read() {
+        if (!file.exists()) {
+            return;
+        }
+
+        try {
+            JsonReader in = new JsonReader(new FileReader(file));
+            try {
+                in.beginObject();
+                while (in.hasNext()) {
+                    String name = in.nextName();
+                    int previousRunsUnseen = 0;
+                    if (in.peek() == JsonToken.BEGIN_ARRAY) {
+                        in.beginArray();
+                        durations.put(name, in.nextLong());
+                        previousRunsUnseen = in.nextInt();
+                        in.endArray();
+                    } else {
+                        durations.put(name, in.nextLong()); // written without a run count
+                    }
+                    runsUnseen.put(name, previousRunsUnseen + 1);
+                }
+                in.endObject();
+            } finally {
+                in.close();
+            }
+        } catch (Exception e) {
+            log.info("Failed to read task durations from " + file, e);
+            durations.clear();
+            runsUnseen.clear();
+        }
+
+        Map<String, long[]> totalsByKind = new HashMap<String, long[]>();
+        for (Map.Entry<String, Long> entry : durations.entrySet()) {
+            String kind = kind(entry.getKey());
+            long[] sumAndCount = totalsByKind.get(kind);
+            if (sumAndCount == null) {
+                sumAndCount = new long[2];
+                totalsByKind.put(kind, sumAndCount);
+            }
+            sumAndCount[0] += entry.getValue();
+            sumAndCount[1]++;
+        }
+        for (Map.Entry<String, long[]> entry : totalsByKind.entrySet()) {
+            long[] sumAndCount = entry.getValue();
+            meanDurationsByKind.put(entry.getKey(), sumAndCount[0] / sumAndCount[1]);
+        }
+        log.verbose("read " + durations.size() + " task durations from " + file);
+    }
+
+    /**
+     * Returns the expected duration of {@code task} in milliseconds. Tasks
+     * that haven't run before are assumed to take as long as the average task
+     * of their kind.
+     */
+    public synchronized long estimateMillis(Task task) {
+        String name = task.toString();
+        Long duration = durations.get(name);
+        if (duration == null) {
+            duration = meanDurationsByKind.get(kind(name));
+        }
+        return duration != null ? duration : 0;
+    }
+
+    /**
+     * Records that {@code task} ran in {@code millis}. To dampen noise the
+     * stored duration is the mean of the previous and current durations.
+     */
+    public synchronized void record(Task task, long millis) {
+        String name = task.toString();
+        Long previous = durations.get(name);
+        durations.put(name, previous != null ? (previous + millis) / 2 : millis);
+        runsUnseen.put(name, 0);
+    }
+
+    public synchronized void write() {
+        try {
+            mkdir.mkdirs(file.getParentFile());
+            JsonWriter out = new JsonWriter(new FileWriter(file));
+            out.setIndent("  ");
+            out.beginObject();
+            for (Map.Entry<String, Long> entry : durations.entrySet()) {
+                int unseen = runsUnseen.get(entry.getKey());
+                if (unseen >= MAX_RUNS_UNSEEN) {
+                    continue;
+                }
+                out.name(entry.getKey());
+                out.beginArray();
+                out.value(entry.getValue());
+                out.value(unseen);
+                out.endArray();
+            }
+            out.endObject();
+            out.close();
+        } catch (IOException e) {
+            log.info("Failed to write task durations to " + file, e);
+        }
+    }
+
+    /**
+     * Returns the first word of a task name, like "build" or "push".
+     */
+    private static String kind(String taskName) {
+        int space = taskName.indexOf(' ');
+        return space == -1 ? taskName : taskName.substring(0, space);
+    }
+}
@@ -18,56 +18,170 @@ package vogar.tasks;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 import vogar.Console;
 import vogar.Result;
 import vogar.util.Threads;
+import vogar.util.Trace;
 
 /**
  * A set of tasks to execute.
+ *
+ * <p>Blocked tasks are only reconsidered when one of their prerequisites
+ * finishes, so completing a task costs time proportional to its number of
+ * direct dependents rather than to the size of the queue.
+ *
+ * <p>Runnable tasks are started longest critical path first: the task whose
+ * own duration plus that of its longest chain of dependents is greatest goes
+ * first. Durations come from previous runs, so a slow action and the tasks it
+ * waits on are started early instead of becoming the straggler that
+ * determines the wall clock time.
+ *
+ * <p>Tasks that were asked to {@link Task#runFirst run first}, and the tasks
+ * they depend on, are started ahead of all others regardless of their
+ * critical paths.
+ *
+ * <p>Each task consumes a {@link Resource} and the queue limits how many tasks
+ * of each resource run concurrently. This keeps memory-hungry dx processes
+ * from thrashing the host while compiles and pushes proceed at their own
+ * pace. Tasks may also be in a {@link Lane}, which limits them further, so
+ * that pushes to one slow device don't take every transfer slot.
  */
 public final class TaskQueue {
     private static final int FOREVER = 60 * 60 * 24 * 28; // four weeks
+
+    private static final Comparator<Task> LONGEST_CRITICAL_PATH_FIRST = new Comparator<Task>() {
+        @Override public int compare(Task a, Task b) {
+            if (a.first != b.first) {
+                return a.first ? -1 : 1;
+            }
+            if (a.criticalPathMillis != b.criticalPathMillis) {
+                return a.criticalPathMillis > b.criticalPathMillis ? -1 : 1;
+            }
+            if (a.sequence != b.sequence) {
+                return a.sequence < b.sequence ? -1 : 1;
+            }
+            return 0;
+        }
+    };
+
     private final Console console;
+    private final TaskDurationStore taskDurationStore;
+    private long nextSequence;
     private int runningTasks;
-    private int runningActions;
-    private int maxConcurrentActions;
-    private final LinkedList<Task> tasks = new LinkedList<Task>();
-    private final LinkedList<Task> runnableActions = new LinkedList<Task>();
-    private final LinkedList<Task> runnableTasks = new LinkedList<Task>();
+    private final Map<Resource, Integer> limits;
+    private final Map<Resource, Integer> running = new EnumMap<Resource, Integer>(Resource.class);
+    private final Map<Resource, PriorityQueue<Task>> runnable
+            = new EnumMap<Resource, PriorityQueue<Task>>(Resource.class);
+    private final Map<Lane, Integer> laneRunning = new HashMap<Lane, Integer>();
+    /** runnable tasks that are in lanes; they aren't in {@code runnable} */
+    private final Map<Lane, PriorityQueue<Task>> laneRunnable
+            = new LinkedHashMap<Lane, PriorityQueue<Task>>();
+    private final LinkedHashSet<Task> tasks = new LinkedHashSet<Task>();
     private final List<Task> failedTasks = new ArrayList<Task>();
+    /** the tasks that still run once the queue is cancelled, or null if it isn't */
+    private Set<Task> keepWhenCancelled;
+    private int skippedTasks;
 
-    public TaskQueue(Console console, int maxConcurrentActions) {
+    /**
+     * @param limits the maximum number of concurrently running tasks for each
+     *     resource. Every resource must have a limit of at least 1.
+     */
+    public TaskQueue(Console console, Map<Resource, Integer> limits,
+            TaskDurationStore taskDurationStore) {
         this.console = console;
-        this.maxConcurrentActions = maxConcurrentActions;
+        this.taskDurationStore = taskDurationStore;
+        this.limits = new EnumMap<Resource, Integer>(limits);
+        for (Resource resource : Resource.values()) {
+            Integer limit = limits.get(resource);
+            if (limit == null || limit < 1) {
+                throw new IllegalArgumentException("Bad limit for " + resource + ": " + limit);
+            }
+            running.put(resource, 0);
+            runnable.put(resource, new PriorityQueue<Task>(11, LONGEST_CRITICAL_PATH_FIRST));
+        }
     }
 
     /**
      * Adds a task to the queue.
      */
     public synchronized void enqueue(Task task) {
+        task.sequence = nextSequence++;
         tasks.add(task);
     }
 
-    public void enqueueAll(Collection<Task> tasks) {
-        this.tasks.addAll(tasks);
+    public synchronized void enqueueAll(Collection<Task> tasks) {
+        for (Task task : tasks) {
+            enqueue(task);
+        }
     }
 
     public synchronized List<Task> getTasks() {
         return new ArrayList<Task>(tasks);
     }
 
+    /**
+     * Skips every task that hasn't started, except those in {@code keep},
+     * like cleanup tasks, which run as usual. Tasks that are running finish
+     * normally. Skipped tasks release even the tasks that require them to
+     * succeed, so the tasks in {@code keep} shouldn't require that.
+     */
+    public synchronized void cancel(Collection<Task> keep) {
+        if (keepWhenCancelled != null) {
+            return;
+        }
+        keepWhenCancelled = new HashSet<Task>(keep);
+        List<Task> toSkip = new ArrayList<Task>();
+        for (PriorityQueue<Task> candidates : allRunnable()) {
+            for (Iterator<Task> it = candidates.iterator(); it.hasNext(); ) {
+                Task task = it.next();
+                if (!keepWhenCancelled.contains(task)) {
+                    it.remove();
+                    toSkip.add(task);
+                }
+            }
+        }
+        for (Task task : toSkip) {
+            skip(task);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Returns the number of tasks that were skipped because the queue was
+     * cancelled.
+     */
+    public synchronized int getSkippedTaskCount() {
+        return skippedTasks;
+    }
+
     public void runTasks() {
-        promoteBlockedTasks();
+        computeCriticalPaths();
+        promoteRunnableTasks();
 
-        ExecutorService runners = Threads.threadPerCpuExecutor(console, "TaskQueue");
-        for (int i = 0; i < Runtime.getRuntime().availableProcessors(); i++) {
+        // Most tasks block waiting on a forked process, so there's one thread
+        // for every task that may run concurrently.
+        int threadCount = 0;
+        for (int limit : limits.values()) {
+            threadCount += limit;
+        }
+        ExecutorService runners = Threads.fixedThreadsExecutor(console, "TaskQueue", threadCount);
+        for (int i = 0; i < threadCount; i++) {
             runners.execute(new Runnable() {
                 @Override public void run() {
+                    Trace.nameCurrentThread();
                     while (runOneTask()) {
                     }
                 }
@@ -139,8 +253,12 @@ public final class TaskQueue {
         }
         String threadName = Thread.currentThread().getName();
         Thread.currentThread().setName(task.toString());
+        long start = System.currentTimeMillis();
         try {
             task.run(console);
+            if (task.result == Result.SUCCESS) {
+                taskDurationStore.record(task, System.currentTimeMillis() - start);
+            }
         } finally {
             doneTask(task);
             Thread.currentThread().setName(threadName);
@@ -150,18 +268,23 @@ public final class TaskQueue {
 
     private synchronized Task takeTask() {
         while (true) {
-            Task task = null;
-            if (runningActions < maxConcurrentActions) {
-                task = runnableActions.poll();
-            }
-            if (task == null) {
-                task = runnableTasks.poll();
+            // take the most urgent task whose resource and lane aren't exhausted
+            PriorityQueue<Task> best = null;
+            for (PriorityQueue<Task> candidates : allRunnable()) {
+                if (!candidates.isEmpty() && canStart(candidates.peek())
+                        && (best == null || LONGEST_CRITICAL_PATH_FIRST.compare(
+                                candidates.peek(), best.peek()) < 0)) {
+                    best = candidates;
+                }
             }
 
-            if (task != null) {
+            if (best != null) {
+                Task task = best.poll();
                 runningTasks++;
-                if (task.isAction()) {
-                    runningActions++;
+                running.put(task.getResource(), running.get(task.getResource()) + 1);
+                Lane lane = task.getLane();
+                if (lane != null) {
+                    laneRunning.put(lane, laneRunning.get(lane) + 1);
                 }
                 return task;
             }
@@ -183,26 +306,105 @@ public final class TaskQueue {
             failedTasks.add(task);
         }
         runningTasks--;
-        if (task.isAction()) {
-            runningActions--;
+        running.put(task.getResource(), running.get(task.getResource()) - 1);
+        Lane lane = task.getLane();
+        if (lane != null) {
+            laneRunning.put(lane, laneRunning.get(lane) - 1);
+        }
+        for (Task unblocked : task.releaseDependents()) {
+            if (tasks.remove(unblocked)) {
+                promote(unblocked);
+            }
+        }
+        // a resource was freed, or the queue is exhausted; either way the
+        // waiting threads have something to do
+        notifyAll();
+    }
+
+    private boolean canStart(Task task) {
+        Resource resource = task.getResource();
+        Lane lane = task.getLane();
+        return running.get(resource) < limits.get(resource)
+                && (lane == null || laneRunning.get(lane) < lane.getLimit());
+    }
+
+    /**
+     * Returns the queues of runnable tasks: one for each resource, and one
+     * for each lane.
+     */
+    private List<PriorityQueue<Task>> allRunnable() {
+        List<PriorityQueue<Task>> result = new ArrayList<PriorityQueue<Task>>(runnable.values());
+        result.addAll(laneRunnable.values());
+        return result;
+    }
+
+    private synchronized void computeCriticalPaths() {
+        for (Task task : tasks) {
+            criticalPathMillis(task);
         }
-        promoteBlockedTasks();
-        if (isExhausted()) {
-            notifyAll();
+    }
+
+    /**
+     * Returns the estimated duration of {@code task} plus the longest chain
+     * of tasks that depend on it.
+     */
+    private long criticalPathMillis(Task task) {
+        if (task.criticalPathMillis != -1) {
+            return task.criticalPathMillis;
+        }
+        long longestDependent = 0;
+        for (Task dependent : task.dependents) {
+            longestDependent = Math.max(longestDependent, criticalPathMillis(dependent));
+            task.first |= dependent.first;
         }
+        for (Task dependent : task.successDependents) {
+            longestDependent = Math.max(longestDependent, criticalPathMillis(dependent));
+            task.first |= dependent.first;
+        }
+        task.criticalPathMillis = taskDurationStore.estimateMillis(task) + longestDependent;
+        return task.criticalPathMillis;
     }
 
-    private synchronized void promoteBlockedTasks() {
+    /**
+     * Scans all enqueued tasks for those with no unsatisfied prerequisites.
+     * This is only necessary once; after that tasks are promoted as their
+     * prerequisites finish.
+     */
+    private synchronized void promoteRunnableTasks() {
         for (Iterator<Task> it = tasks.iterator(); it.hasNext(); ) {
             Task potentiallyUnblocked = it.next();
             if (potentiallyUnblocked.isRunnable()) {
                 it.remove();
-                if (potentiallyUnblocked.isAction()) {
-                    runnableActions.add(potentiallyUnblocked);
-                } else {
-                    runnableTasks.add(potentiallyUnblocked);
-                }
-                notifyAll();
+                promote(potentiallyUnblocked);
+            }
+        }
+    }
+
+    private void promote(Task task) {
+        if (keepWhenCancelled != null && !keepWhenCancelled.contains(task)) {
+            skip(task);
+            return;
+        }
+        Lane lane = task.getLane();
+        if (lane == null) {
+            runnable.get(task.getResource()).add(task);
+        } else {
+            PriorityQueue<Task> candidates = laneRunnable.get(lane);
+            if (candidates == null) {
+                candidates = new PriorityQueue<Task>(11, LONGEST_CRITICAL_PATH_FIRST);
+                laneRunnable.put(lane, candidates);
+                laneRunning.put(lane, 0);
+            }
+            candidates.add(task);
+        }
+        notifyAll();
+    }
+
+    private void skip(Task task) {
+        skippedTasks++;
+        for (Task unblocked : task.skip()) {
+            if (tasks.remove(unblocked)) {
+                promote(unblocked);
             }
         }
     }
@@ -211,6 +413,14 @@ public final class TaskQueue {
      * Returns true if there are no tasks to run and no tasks currently running.
      */
     private boolean isExhausted() {
-        return runnableTasks.isEmpty() && runnableActions.isEmpty() && runningTasks == 0;
+        if (runningTasks != 0) {
+            return false;
+        }
+        for (PriorityQueue<Task> candidates : allRunnable()) {
+            if (!candidates.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
     }
 }
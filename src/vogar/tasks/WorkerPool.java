@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vogar.tasks;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import vogar.Log;
+
+/**
+ * Worker processes that are kept running between actions. Each worker has
+ * its own monitor port; there's one port for each action that may run at
+ * once. A worker is replaced after it crashes or times out, or once it has
+ * run its quota of actions.
+ */
+public final class WorkerPool {
+    private final Log log;
+    private final int actionsPerWorker;
+
+    /** guarded by this */
+    private final LinkedList<TargetWorker> idleWorkers = new LinkedList<TargetWorker>();
+    /** the ports that have no worker; guarded by this */
+    private final LinkedList<Integer> freePorts = new LinkedList<Integer>();
+    /** guarded by this */
+    private final List<TargetWorker> busyWorkers = new ArrayList<TargetWorker>();
+
+    /**
+     * @param actionsPerWorker the number of actions each worker runs before
+     *     it is replaced.
+     */
+    public WorkerPool(Log log, int firstMonitorPort, int maxConcurrentActions,
+            int actionsPerWorker) {
+        this.log = log;
+        this.actionsPerWorker = actionsPerWorker;
+        for (int i = 0; i < maxConcurrentActions; i++) {
+            freePorts.add(firstMonitorPort + i);
+        }
+    }
+
+    /**
+     * Returns an idle worker, or a new worker that hasn't been started yet.
+     */
+    synchronized TargetWorker take() {
+        while (!idleWorkers.isEmpty()) {
+            TargetWorker worker = idleWorkers.removeFirst();
+            if (!worker.hasExited()) {
+                busyWorkers.add(worker);
+                return worker;
+            }
+            log.verbose("worker on port " + worker.getMonitorPort() + " exited while idle");
+            destroy(worker);
+        }
+        if (freePorts.isEmpty()) {
+            throw new IllegalStateException("More workers than concurrent actions");
+        }
+        TargetWorker worker = new TargetWorker(log, freePorts.removeFirst());
+        busyWorkers.add(worker);
+        return worker;
+    }
+
+    /**
+     * Returns {@code worker} to the pool after it has run an action.
+     *
+     * @param healthy false if the worker's action didn't complete normally.
+     */
+    synchronized void release(TargetWorker worker, boolean healthy) {
+        busyWorkers.remove(worker);
+        if (healthy && worker.isStarted() && !worker.hasExited()
+                && worker.getActionsRun() < actionsPerWorker) {
+            worker.getCommand().cancelTimeout();
+            idleWorkers.addFirst(worker);
+        } else {
+            destroy(worker);
+        }
+    }
+
+    private void destroy(TargetWorker worker) {
+        worker.destroy();
+        freePorts.add(worker.getMonitorPort());
+    }
+
+    /**
+     * Destroys every worker.
+     */
+    public synchronized void shutdown() {
+        for (TargetWorker worker : idleWorkers) {
+            destroy(worker);
+        }
+        for (TargetWorker worker : busyWorkers) {
+            destroy(worker);
+        }
+        idleWorkers.clear();
+        busyWorkers.clear();
+    }
+}
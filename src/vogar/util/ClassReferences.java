@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vogar.util;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Reads the names of the classes that a class file may refer to.
+ */
+public final class ClassReferences {
+    private static final int MAGIC = 0xCAFEBABE;
+
+    private ClassReferences() {}
+
+    /**
+     * Returns the internal names, like "java/util/Map$Entry", of classes
+     * named in {@code classFile}'s constant pool. This includes classes that
+     * only appear in field and method descriptors, so it may include a few
+     * names that aren't classes at all.
+     */
+    public static Set<String> read(File classFile) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(classFile)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a class file: " + classFile);
+            }
+            in.readUnsignedShort(); // minor version
+            in.readUnsignedShort(); // major version
+
+            Set<String> result = new HashSet<String>();
+            int constantPoolCount = in.readUnsignedShort();
+            for (int i = 1; i < constantPoolCount; i++) {
+                int tag = in.readUnsignedByte();
+                switch (tag) {
+                case 1: // Utf8
+                    addNames(result, in.readUTF());
+                    break;
+                case 7: // Class
+                case 8: // String
+                case 16: // MethodType
+                case 19: // Module
+                case 20: // Package
+                    in.skipBytes(2);
+                    break;
+                case 15: // MethodHandle
+                    in.skipBytes(3);
+                    break;
+                case 3: // Integer
+                case 4: // Float
+                case 9: // Fieldref
+                case 10: // Methodref
+                case 11: // InterfaceMethodref
+                case 12: // NameAndType
+                case 17: // Dynamic
+                case 18: // InvokeDynamic
+                    in.skipBytes(4);
+                    break;
+                case 5: // Long
+                case 6: // Double
+                    in.skipBytes(8);
+                    i++; // these take two slots
+                    break;
+                default:
+                    throw new IOException("Unexpected constant pool tag " + tag + " in " + classFile);
+                }
+            }
+            return result;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Adds {@code utf8} itself, in case it's the target of a Class constant,
+     * and every "Lname;" type within it, in case it's a descriptor.
+     */
+    private static void addNames(Set<String> names, String utf8) {
+        names.add(utf8);
+        int start = utf8.indexOf('L');
+        while (start != -1) {
+            int end = utf8.indexOf(';', start);
+            if (end == -1) {
+                break;
+            }
+            names.add(utf8.substring(start + 1, end));
+            start = utf8.indexOf('L', start + 1);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vogar.util;
+
+import com.google.common.io.Files;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+/**
+ * Writes jar files whose bytes depend only on the files they contain. Entries
+ * are sorted by name and stamped with a fixed time, and there's no manifest.
+ * This lets content hashes of the jar, like the dex cache's, match from one
+ * run to the next.
+ */
+public final class DeterministicJar {
+    /** Entries' modification time. The jar format can't represent times before 1980. */
+    private static final long ENTRY_TIME
+            = new GregorianCalendar(1980, Calendar.JANUARY, 1).getTimeInMillis();
+
+    private DeterministicJar() {}
+
+    /**
+     * Writes a jar containing the contents of {@code directory}, like
+     * {@code jar cfM jar -C directory ./}.
+     */
+    public static void create(File jar, File directory) throws IOException {
+        TreeMap<String, File> entries = new TreeMap<String, File>();
+        addEntries(entries, directory, "");
+
+        JarOutputStream out = new JarOutputStream(
+                new BufferedOutputStream(new FileOutputStream(jar)));
+        try {
+            for (Map.Entry<String, File> entry : entries.entrySet()) {
+                JarEntry jarEntry = new JarEntry(entry.getKey());
+                jarEntry.setTime(ENTRY_TIME);
+                out.putNextEntry(jarEntry);
+                if (!entry.getValue().isDirectory()) {
+                    Files.copy(entry.getValue(), out);
+                }
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void addEntries(TreeMap<String, File> entries, File directory, String prefix) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                String name = prefix + file.getName() + "/";
+                entries.put(name, file);
+                addEntries(entries, file, name);
+            } else {
+                entries.put(prefix + file.getName(), file);
+            }
+        }
+    }
+
+    /**
+     * Writes {@code properties} without the timestamp comment that {@link
+     * Properties#store} adds, and with the properties in sorted order.
+     */
+    public static void storeProperties(Properties properties, OutputStream out)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        properties.store(bytes, null);
+
+        // store() escapes everything outside of ISO-8859-1, so lines are safe to split.
+        // It doesn't escape trailing spaces, so only the line separator is removed.
+        List<String> lines = new ArrayList<String>();
+        for (String line : new String(bytes.toByteArray(), "ISO-8859-1").split("\n")) {
+            if (line.endsWith("\r")) {
+                line = line.substring(0, line.length() - 1);
+            }
+            if (line.length() > 0 && !line.startsWith("#")) {
+                lines.add(line);
+            }
+        }
+        Collections.sort(lines);
+
+        for (String line : lines) {
+            out.write((line + "\n").getBytes("ISO-8859-1"));
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vogar.util;
+
+import com.google.caliper.internal.gson.stream.JsonWriter;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records a timeline of the run in Chrome's trace event format. Load the
+ * file in chrome://tracing or another trace viewer to see which threads were
+ * busy with which tasks, commands and outcomes.
+ *
+ * <p>Tracing is global because commands are created in many places that have
+ * no access to the run's configuration. When tracing hasn't been started all
+ * methods are no-ops.
+ */
+public final class Trace {
+    private static final int PID = 1;
+
+    private static volatile Trace trace;
+
+    private final JsonWriter out;
+    private final long startNanos = System.nanoTime();
+    private final Set<Long> namedThreads = new HashSet<Long>();
+
+    private Trace(File file) throws IOException {
+        out = new JsonWriter(new BufferedWriter(new FileWriter(file)));
+        out.beginArray();
+    }
+
+    /**
+     * Starts writing trace events to {@code file}.
+     */
+    public static void start(File file) throws IOException {
+        if (trace != null) {
+            throw new IllegalStateException("Already tracing");
+        }
+        trace = new Trace(file);
+    }
+
+    /**
+     * Finishes the trace file. Events recorded after this are discarded.
+     */
+    public static void stop() throws IOException {
+        Trace trace = Trace.trace;
+        if (trace == null) {
+            return;
+        }
+        Trace.trace = null;
+        synchronized (trace) {
+            trace.out.endArray();
+            trace.out.close();
+        }
+    }
+
+    public static boolean isEnabled() {
+        return trace != null;
+    }
+
+    /**
+     * Names the calling thread in the trace. Threads are otherwise named
+     * after whatever their name is when they first record an event, which may
+     * be a temporary name like that of the task they're running.
+     */
+    public static void nameCurrentThread() {
+        Trace trace = Trace.trace;
+        if (trace != null) {
+            trace.nameThread(Thread.currentThread());
+        }
+    }
+
+    /**
+     * Records an event that started at {@code startNanos}, a value from
+     * {@link System#nanoTime}, and ended now.
+     *
+     * @param args alternating keys and values describing the event, like its
+     *     result
+     */
+    public static void complete(String category, String name, Thread thread,
+            long startNanos, Object... args) {
+        Trace trace = Trace.trace;
+        if (trace != null) {
+            trace.write(category, name, thread, startNanos, System.nanoTime(), args);
+        }
+    }
+
+    public static void complete(String category, String name, long startNanos, Object... args) {
+        complete(category, name, Thread.currentThread(), startNanos, args);
+    }
+
+    private synchronized void write(String category, String name, Thread thread,
+            long eventStartNanos, long eventEndNanos, Object[] args) {
+        try {
+            nameThread(thread);
+            out.beginObject();
+            out.name("name").value(name);
+            out.name("cat").value(category);
+            out.name("ph").value("X");
+            out.name("ts").value(micros(eventStartNanos - startNanos));
+            out.name("dur").value(micros(eventEndNanos - eventStartNanos));
+            out.name("pid").value(PID);
+            out.name("tid").value(thread.getId());
+            if (args.length > 0) {
+                out.name("args");
+                out.beginObject();
+                for (int i = 0; i < args.length; i += 2) {
+                    out.name(String.valueOf(args[i])).value(String.valueOf(args[i + 1]));
+                }
+                out.endObject();
+            }
+            out.endObject();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private synchronized void nameThread(Thread thread) {
+        if (!namedThreads.add(thread.getId())) {
+            return;
+        }
+        try {
+            out.beginObject();
+            out.name("name").value("thread_name");
+            out.name("ph").value("M");
+            out.name("pid").value(PID);
+            out.name("tid").value(thread.getId());
+            out.name("args");
+            out.beginObject();
+            out.name("name").value(thread.getName());
+            out.endObject();
+            out.endObject();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
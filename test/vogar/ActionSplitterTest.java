@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vogar;
+
+import java.io.File;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import junit.framework.TestCase;
+import static org.mockito.Mockito.mock;
+import vogar.target.junit3.SimpleTest2;
+
+public class ActionSplitterTest extends TestCase {
+    private final Log log = mock(Log.class);
+
+    private ActionSplitter newSplitter(int methodsPerAction) throws URISyntaxException {
+        // the classes under test/vogar/target, and the JUnit they depend on
+        return new ActionSplitter(log,
+                Classpath.of(codeSource(SimpleTest2.class), codeSource(TestCase.class)),
+                new Classpath(), methodsPerAction);
+    }
+
+    private static File codeSource(Class<?> c) throws URISyntaxException {
+        return new File(c.getProtectionDomain().getCodeSource().getLocation().toURI());
+    }
+
+    public void test_packages_should_be_split_into_classes() throws Exception {
+        List<String> targets = targets(newSplitter(50).split(
+                classpathAction("vogar.target.junit3")));
+        assertTrue(targets.contains("vogar.target.junit3.SimpleTest2"));
+        assertTrue(targets.contains("vogar.target.junit3.SuiteTest"));
+        assertFalse(targets.contains("vogar.target.junit3.SimpleTest2#testSimple1"));
+    }
+
+    public void test_large_classes_should_be_split_into_methods() throws Exception {
+        List<String> targets = targets(newSplitter(2).split(
+                classpathAction("vogar.target.junit3.SimpleTest2")));
+        assertEquals(Arrays.asList(
+                "vogar.target.junit3.SimpleTest2#testSimple1,testSimple2",
+                "vogar.target.junit3.SimpleTest2#testSimple3"), targets);
+    }
+
+    public void test_qualified_and_unknown_actions_should_not_be_split() throws Exception {
+        ActionSplitter splitter = newSplitter(1);
+        Action qualified = classpathAction("vogar.target.junit3.SimpleTest2#testSimple1");
+        assertEquals(Arrays.asList(qualified), splitter.split(qualified));
+        Action unknown = classpathAction("vogar.nonexistent");
+        assertEquals(Arrays.asList(unknown), splitter.split(unknown));
+    }
+
+    private static Action classpathAction(String classOrPackageName) {
+        return new Action(classOrPackageName, classOrPackageName, null, null, null);
+    }
+
+    private static List<String> targets(List<Action> actions) {
+        List<String> result = new ArrayList<String>();
+        for (Action action : actions) {
+            result.add(action.getTargetClass());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vogar;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import junit.framework.TestCase;
+import static org.mockito.Mockito.mock;
+
+public class BuildCacheTest extends TestCase {
+    private final Log log = mock(Log.class);
+    private File tmp;
+    private File sourceDir;
+    private File libJar;
+    private File compiledClassesDir;
+    private Action action;
+
+    @Override protected void setUp() throws IOException {
+        tmp = Files.createTempDir().getCanonicalFile();
+        sourceDir = new File(tmp, "src");
+        sourceDir.mkdirs();
+        write(new File(sourceDir, "Dependency.java"), "class Dependency {}");
+        File javaFile = write(new File(sourceDir, "FooTest.java"),
+                "class FooTest { Dependency d; }");
+        libJar = write(new File(tmp, "lib.jar"), "a jar");
+        action = new Action("FooTest", "FooTest", null, sourceDir, javaFile);
+
+        // the cache doesn't read classes, so they needn't be real
+        compiledClassesDir = new File(tmp, "compiled");
+        write(new File(compiledClassesDir, "FooTest.class"), "FooTest's bytecode");
+        write(new File(compiledClassesDir, "FooTest$1.class"), "FooTest$1's bytecode");
+        write(new File(compiledClassesDir, "Dependency.class"), "Dependency's bytecode");
+    }
+
+    @Override protected void tearDown() throws IOException {
+        Files.deleteRecursively(tmp);
+    }
+
+    public void test_an_unchanged_action_should_hit() {
+        newBuildCache().insert(action, compiledClassesDir);
+        BuildCache buildCache = newBuildCache();
+        assertTrue(buildCache.isCached(action));
+        assertEquals(1, buildCache.getHits());
+        assertEquals(0, buildCache.getMisses());
+    }
+
+    public void test_restoring_a_hit_should_extract_the_same_classes() throws IOException {
+        newBuildCache().insert(action, compiledClassesDir);
+        File restored = new File(tmp, "restored");
+        assertTrue(newBuildCache().restore(action, restored));
+        for (String name : Arrays.asList("FooTest.class", "FooTest$1.class", "Dependency.class")) {
+            assertTrue(name, Files.equal(new File(compiledClassesDir, name),
+                    new File(restored, name)));
+        }
+        assertEquals(3, restored.list().length);
+    }
+
+    public void test_a_changed_dependency_source_should_miss() throws IOException {
+        newBuildCache().insert(action, compiledClassesDir);
+        write(new File(sourceDir, "Dependency.java"), "class Dependency { int i; }");
+        BuildCache buildCache = newBuildCache();
+        assertFalse(buildCache.isCached(action));
+        assertEquals(1, buildCache.getMisses());
+        assertFalse(buildCache.restore(action, new File(tmp, "restored")));
+    }
+
+    public void test_a_changed_classpath_jar_should_miss() throws IOException {
+        newBuildCache().insert(action, compiledClassesDir);
+        write(libJar, "a newer jar");
+        assertFalse(newBuildCache().isCached(action));
+    }
+
+    /**
+     * Returns a cache in the same directory as earlier ones, but that hasn't
+     * looked anything up yet.
+     */
+    private BuildCache newBuildCache() {
+        return new BuildCache(log, new FileHasher(log, new File(tmp, "file-hashes")),
+                new File(tmp, "build-cache"), "javac", Collections.<String>emptyList(), false,
+                Classpath.of(libJar), new Classpath(), Collections.<File>emptyList());
+    }
+
+    private File write(File file, String content) throws IOException {
+        file.getParentFile().mkdirs();
+        Files.write(content, file, Charsets.UTF_8);
+        return file;
+    }
+}
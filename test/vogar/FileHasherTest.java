@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vogar;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import junit.framework.TestCase;
+import static org.mockito.Mockito.mock;
+
+public class FileHasherTest extends TestCase {
+    private static final String MD5_OF_ABC = "900150983cd24fb0d6963f7d28e17f72";
+    private static final String MD5_OF_XYZ = "d16fb36f0911f878998c136191af705e";
+    private static final String MD5_OF_ABCD = "e2fc714c4727ee9395f324cd2e7f331f";
+    /** a modification time old enough for hashes to be remembered */
+    private static final long LAST_MODIFIED = 1300000000000L;
+
+    private final Log log = mock(Log.class);
+    private File tmp;
+    private File memoFile;
+    private File file;
+
+    @Override protected void setUp() throws IOException {
+        tmp = Files.createTempDir().getCanonicalFile();
+        memoFile = new File(tmp, "file-hashes");
+        file = new File(tmp, "a.jar");
+    }
+
+    @Override protected void tearDown() throws IOException {
+        Files.deleteRecursively(tmp);
+    }
+
+    public void test_hashes_should_be_remembered_while_size_and_time_are_unchanged()
+            throws IOException {
+        write("abc", LAST_MODIFIED);
+        assertEquals(MD5_OF_ABC, new FileHasher(log, memoFile).hash(file));
+
+        // a change that the memo can't see
+        write("xyz", LAST_MODIFIED);
+        assertEquals(MD5_OF_ABC, new FileHasher(log, memoFile).hash(file));
+    }
+
+    public void test_a_changed_size_should_invalidate_the_hash() throws IOException {
+        write("abc", LAST_MODIFIED);
+        assertEquals(MD5_OF_ABC, new FileHasher(log, memoFile).hash(file));
+        write("abcd", LAST_MODIFIED);
+        assertEquals(MD5_OF_ABCD, new FileHasher(log, memoFile).hash(file));
+    }
+
+    public void test_a_changed_modification_time_should_invalidate_the_hash()
+            throws IOException {
+        write("abc", LAST_MODIFIED);
+        FileHasher fileHasher = new FileHasher(log, memoFile);
+        assertEquals(MD5_OF_ABC, fileHasher.hash(file));
+        write("xyz", LAST_MODIFIED + 1000);
+        assertEquals(MD5_OF_XYZ, fileHasher.hash(file));
+        assertEquals(MD5_OF_XYZ, new FileHasher(log, memoFile).hash(file));
+    }
+
+    public void test_recently_modified_files_should_not_be_remembered() throws IOException {
+        write("abc", System.currentTimeMillis());
+        assertEquals(MD5_OF_ABC, new FileHasher(log, memoFile).hash(file));
+        assertFalse(memoFile.exists());
+    }
+
+    public void test_corrupt_lines_should_be_ignored() throws IOException {
+        write("abc", LAST_MODIFIED);
+        Files.write("\u0000\u0001 garbage\n"
+                + "3 " + LAST_MODIFIED + " not-an-md5 " + file + "\n"
+                + "3 " + LAST_MODIFIED + " d41d8cd98f", memoFile, Charsets.UTF_8);
+        assertEquals(MD5_OF_ABC, new FileHasher(log, memoFile).hash(file));
+        assertEquals(MD5_OF_ABC, new FileHasher(log, memoFile).hash(file));
+    }
+
+    private void write(String content, long lastModified) throws IOException {
+        Files.write(content, file, Charsets.UTF_8);
+        assertTrue(file.setLastModified(lastModified));
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vogar;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import junit.framework.TestCase;
+import static org.mockito.Mockito.mock;
+
+public class HostFileCacheTest extends TestCase {
+    private final Log log = mock(Log.class);
+    private File tmp;
+    private File cacheRoot;
+
+    @Override protected void setUp() throws IOException {
+        tmp = Files.createTempDir().getCanonicalFile();
+        cacheRoot = new File(tmp, "cache");
+    }
+
+    @Override protected void tearDown() throws IOException {
+        Files.deleteRecursively(tmp);
+    }
+
+    public void test_least_recently_used_files_should_be_evicted() throws IOException {
+        HostFileCache cache = new HostFileCache(log, cacheRoot, 30);
+        cache.copyToCache(write("a", "0123456789"), "a");
+        cache.copyToCache(write("b", "0123456789"), "b");
+        cache.copyToCache(write("c", "0123456789"), "c");
+        cache.copyFromCache("a", new File(tmp, "restored"));
+
+        // over the limit; b is the least recently used
+        cache.copyToCache(write("d", "0123456789"), "d");
+        assertFalse(cache.existsInCache("b"));
+        assertTrue(cache.existsInCache("a"));
+        assertTrue(cache.existsInCache("c"));
+        assertTrue(cache.existsInCache("d"));
+        assertEquals(Arrays.asList("c", "a", "d"),
+                Files.readLines(new File(cacheRoot, "access.log"), Charsets.UTF_8));
+    }
+
+    public void test_files_within_the_limit_should_be_kept() throws IOException {
+        HostFileCache cache = new HostFileCache(log, cacheRoot, 40);
+        for (String key : Arrays.asList("a", "b", "c", "d")) {
+            cache.copyToCache(write(key, "0123456789"), key);
+        }
+        for (String key : Arrays.asList("a", "b", "c", "d")) {
+            assertTrue(cache.existsInCache(key));
+        }
+    }
+
+    public void test_files_should_be_copied_when_they_cant_be_linked() throws IOException {
+        HostFileCache cache = new HostFileCache(log, cacheRoot, 1024) {
+            @Override void link(Path source, Path target) throws IOException {
+                throw new IOException("links aren't supported");
+            }
+        };
+        File source = write("a", "abc");
+        cache.copyToCache(source, "a");
+        File restored = new File(tmp, "restored");
+        cache.copyFromCache("a", restored);
+        assertEquals("abc", Files.toString(restored, Charsets.UTF_8));
+
+        // copies, so writing to one doesn't change the others
+        Files.write("changed", source, Charsets.UTF_8);
+        assertEquals("abc", Files.toString(new File(cacheRoot, "a"), Charsets.UTF_8));
+        assertEquals("abc", Files.toString(restored, Charsets.UTF_8));
+    }
+
+    private File write(String name, String content) throws IOException {
+        File file = new File(tmp, name);
+        Files.write(content, file, Charsets.UTF_8);
+        return file;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vogar;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import junit.framework.TestCase;
+import static org.mockito.Mockito.mock;
+
+public class OutcomeHistoryTest extends TestCase {
+    private final Log log = mock(Log.class);
+    private File dir;
+
+    @Override protected void setUp() throws IOException {
+        dir = File.createTempFile("OutcomeHistoryTest", "");
+        dir.delete();
+    }
+
+    @Override protected void tearDown() {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+        new File(dir.getPath() + ".lock").delete();
+    }
+
+    public void test_appended_runs_should_be_read_newest_last() throws IOException {
+        OutcomeHistory history = new OutcomeHistory(log, dir, 10);
+        history.append(1000, Arrays.asList(outcome("a", Result.SUCCESS, 5),
+                outcome("b", Result.EXEC_FAILED, 7)));
+        history.append(2000, Arrays.asList(outcome("a", Result.EXEC_FAILED, 6)));
+
+        Map<String, AnnotatedOutcome> outcomes = annotated("a", "b", "c");
+        assertEquals(3, new OutcomeHistory(log, dir, 10).addTo(outcomes, 10));
+
+        List<Outcome> a = outcomes.get("a").getPreviousOutcomes();
+        assertEquals(2, a.size());
+        assertEquals(Result.SUCCESS, a.get(0).getResult());
+        assertEquals(5, a.get(0).getDurationMillis());
+        assertEquals(Result.EXEC_FAILED, a.get(1).getResult());
+        assertEquals(Long.valueOf(2000), outcomes.get("a").lastRun(null));
+        assertEquals(Result.EXEC_FAILED, outcomes.get("b").getPreviousOutcomes().get(0).getResult());
+        assertTrue(outcomes.get("c").getPreviousOutcomes().isEmpty());
+    }
+
+    public void test_old_runs_should_be_dropped_and_compacted() throws IOException {
+        OutcomeHistory history = new OutcomeHistory(log, dir, 2);
+        history.append(1000, Arrays.asList(outcome("old", Result.SUCCESS, 1)));
+        for (int run = 2; run <= 6; run++) {
+            history.append(run * 1000, Arrays.asList(outcome("a", Result.SUCCESS, run)));
+        }
+
+        Map<String, AnnotatedOutcome> outcomes = annotated("a", "old");
+        new OutcomeHistory(log, dir, 2).addTo(outcomes, 10);
+        List<Outcome> a = outcomes.get("a").getPreviousOutcomes();
+        assertEquals(2, a.size());
+        assertEquals(5, a.get(0).getDurationMillis());
+        assertEquals(6, a.get(1).getDurationMillis());
+        assertTrue(outcomes.get("old").getPreviousOutcomes().isEmpty());
+        assertTrue(new File(dir, "outcomes.log").length() <= 8 + 4 * 24);
+    }
+
+    public void test_histories_sharing_a_directory_should_keep_each_others_runs()
+            throws IOException {
+        OutcomeHistory first = new OutcomeHistory(log, dir, 10);
+        OutcomeHistory second = new OutcomeHistory(log, dir, 10);
+        first.append(1000, Arrays.asList(outcome("a", Result.SUCCESS, 1)));
+        second.addTo(annotated("a"), 10); // loads the history before first appends again
+        first.append(2000, Arrays.asList(outcome("a", Result.SUCCESS, 2),
+                outcome("b", Result.SUCCESS, 3)));
+        second.append(3000, Arrays.asList(outcome("a", Result.EXEC_FAILED, 4),
+                outcome("c", Result.SUCCESS, 5)));
+
+        Map<String, AnnotatedOutcome> outcomes = annotated("a", "b", "c");
+        assertEquals(5, new OutcomeHistory(log, dir, 10).addTo(outcomes, 10));
+        List<Outcome> a = outcomes.get("a").getPreviousOutcomes();
+        assertEquals(3, a.size());
+        assertEquals(1, a.get(0).getDurationMillis());
+        assertEquals(2, a.get(1).getDurationMillis());
+        assertEquals(4, a.get(2).getDurationMillis());
+        assertEquals(3, outcomes.get("b").getPreviousOutcomes().get(0).getDurationMillis());
+        assertEquals(5, outcomes.get("c").getPreviousOutcomes().get(0).getDurationMillis());
+    }
+
+    private static Outcome outcome(String name, Result result, long durationMillis) {
+        return new Outcome(name, result, Collections.<String>emptyList(), durationMillis);
+    }
+
+    private static Map<String, AnnotatedOutcome> annotated(String... names) {
+        Map<String, AnnotatedOutcome> result = new LinkedHashMap<String, AnnotatedOutcome>();
+        for (String name : names) {
+            result.put(name, new AnnotatedOutcome(
+                    outcome(name, Result.SUCCESS, -1), Expectation.SUCCESS));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vogar;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import junit.framework.TestCase;
+import static org.mockito.Mockito.mock;
+import vogar.commands.Mkdir;
+
+public class ResourceReportTest extends TestCase {
+    private final Log log = mock(Log.class);
+    private final ResourceReport report = new ResourceReport(
+            log, new Mkdir(log), new File("resources.json"));
+
+    public void test_actions_should_sum_amounts_and_keep_peak_levels() {
+        report.add("pk", outcome("pk.FooTest#testA", 100, 5000, 3));
+        report.add("pk", outcome("pk.FooTest#testB", 200, 4000, 7));
+        report.add("pk", outcome("pk.FooTest#testB", 300, 4000, 7));
+
+        Map<String, Long> pk = report.getActionMetrics().get("pk");
+        assertEquals(Long.valueOf(2), pk.get("outcomes"));
+        assertEquals(Long.valueOf(400), pk.get(Outcome.WALL_NANOS));
+        assertEquals(Long.valueOf(5000), pk.get(Outcome.HEAP_USED_BYTES));
+        assertEquals(Long.valueOf(7), pk.get(Outcome.LIVE_THREADS));
+    }
+
+    private Outcome outcome(String name, long wallNanos, long heapUsedBytes, long liveThreads) {
+        Map<String, Long> metrics = new LinkedHashMap<String, Long>();
+        metrics.put(Outcome.WALL_NANOS, wallNanos);
+        metrics.put(Outcome.HEAP_USED_BYTES, heapUsedBytes);
+        metrics.put(Outcome.LIVE_THREADS, liveThreads);
+        return new Outcome(name, Result.SUCCESS, "", 0, metrics);
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vogar;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import junit.framework.TestCase;
+import vogar.commands.Rm;
+import static org.mockito.Mockito.mock;
+
+public class RetryPolicyTest extends TestCase {
+    private final Log log = mock(Log.class);
+    private File resultsDir;
+    private ExpectationStore expectationStore;
+
+    @Override protected void setUp() throws IOException {
+        resultsDir = File.createTempFile("RetryPolicyTest", "");
+        resultsDir.delete();
+        expectationStore = ExpectationStore.parse(log, Collections.<File>emptySet(), ModeId.JVM);
+    }
+
+    @Override protected void tearDown() {
+        new Rm(log).file(resultsDir);
+    }
+
+    public void test_flakiness_should_be_the_fraction_of_changes() {
+        assertEquals(0.0, AnnotatedOutcome.flakiness(Collections.<ResultValue>emptyList()));
+        assertEquals(0.0, AnnotatedOutcome.flakiness(Arrays.asList(ResultValue.FAIL)));
+        assertEquals(0.0, AnnotatedOutcome.flakiness(
+                Arrays.asList(ResultValue.OK, ResultValue.OK, ResultValue.OK)));
+        assertEquals(0.5, AnnotatedOutcome.flakiness(
+                Arrays.asList(ResultValue.OK, ResultValue.OK, ResultValue.FAIL)));
+        assertEquals(1.0, AnnotatedOutcome.flakiness(
+                Arrays.asList(ResultValue.OK, ResultValue.FAIL, ResultValue.OK)));
+    }
+
+    public void test_errors_should_be_retried() {
+        RetryPolicy retryPolicy = retryPolicy(2);
+        assertTrue(retryPolicy.shouldRetry(outcome(Result.ERROR)));
+        assertFalse(retryPolicy.shouldRetry(outcome(Result.SUCCESS)));
+    }
+
+    public void test_failures_should_be_retried_only_with_a_flaky_history() throws IOException {
+        history(Result.EXEC_FAILED, Result.EXEC_FAILED);
+        assertFalse(retryPolicy(2).shouldRetry(outcome(Result.EXEC_FAILED)));
+        history(Result.SUCCESS);
+        assertTrue(retryPolicy(2).shouldRetry(outcome(Result.EXEC_FAILED)));
+    }
+
+    public void test_nothing_should_be_retried_without_retries() {
+        RetryPolicy retryPolicy = retryPolicy(0);
+        assertFalse(retryPolicy.shouldRetry(outcome(Result.ERROR)));
+    }
+
+    public void test_retry_should_stop_after_a_passing_attempt() {
+        RetryPolicy retryPolicy = retryPolicy(5);
+        FakeAttempt attempt = new FakeAttempt(Result.ERROR, Result.SUCCESS, Result.ERROR);
+        List<Outcome> attempts = retryPolicy.retry(outcome(Result.ERROR), attempt);
+        assertEquals(3, attempts.size());
+        assertEquals(Result.SUCCESS, attempts.get(2).getResult());
+        assertEquals(Arrays.asList("a.FooTest#testBar", "a.FooTest#testBar"), attempt.names);
+
+        Outcome summary = retryPolicy.summarize(attempts);
+        assertEquals(Result.SUCCESS, summary.getResult());
+        assertEquals(Long.valueOf(2), summary.getMetrics().get(Outcome.RETRIES));
+        assertEquals(Long.valueOf(50), summary.getMetrics().get(Outcome.FLAKINESS_PERCENT));
+        assertEquals("Attempt 1 of 3: ERROR", summary.getOutputLines().get(0));
+    }
+
+    public void test_retry_should_stop_after_the_last_retry() {
+        RetryPolicy retryPolicy = retryPolicy(2);
+        FakeAttempt attempt = new FakeAttempt(Result.ERROR, Result.ERROR, Result.SUCCESS);
+        List<Outcome> attempts = retryPolicy.retry(outcome(Result.ERROR), attempt);
+        assertEquals(3, attempts.size());
+        assertEquals(Result.ERROR, attempts.get(2).getResult());
+
+        Outcome summary = retryPolicy.summarize(attempts);
+        assertEquals(Result.ERROR, summary.getResult());
+        assertEquals(Long.valueOf(2), summary.getMetrics().get(Outcome.RETRIES));
+        assertEquals(Long.valueOf(0), summary.getMetrics().get(Outcome.FLAKINESS_PERCENT));
+    }
+
+    /** Returns a policy that reads the history as it is now. */
+    private RetryPolicy retryPolicy(int maxRetries) {
+        OutcomeStore outcomeStore = new OutcomeStore(log, new Rm(log), resultsDir, true, 10,
+                expectationStore, new Date());
+        return new RetryPolicy(expectationStore, outcomeStore, maxRetries);
+    }
+
+    private void history(Result... results) throws IOException {
+        OutcomeHistory history = new OutcomeHistory(log, new File(resultsDir, "history"), 10);
+        for (Result result : results) {
+            history.append(System.currentTimeMillis(), Arrays.asList(outcome(result)));
+        }
+    }
+
+    private Outcome outcome(Result result) {
+        return new Outcome("a.FooTest#testBar", result, "output");
+    }
+
+    /** Returns the given results in turn. */
+    private class FakeAttempt implements RetryPolicy.Attempt {
+        private final List<Result> results;
+        private final List<String> names = new ArrayList<String>();
+
+        FakeAttempt(Result... results) {
+            this.results = new ArrayList<Result>(Arrays.asList(results));
+        }
+
+        public Outcome run(String outcomeName) {
+            names.add(outcomeName);
+            return outcome(results.remove(0));
+        }
+    }
+}
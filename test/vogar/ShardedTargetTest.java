@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vogar;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import junit.framework.TestCase;
+import static org.mockito.Mockito.mock;
+import vogar.android.AdbClient;
+import vogar.android.DeviceFilesystem;
+import vogar.android.FakeAdbServer;
+import vogar.tasks.Resource;
+import vogar.tasks.Task;
+
+public class ShardedTargetTest extends TestCase {
+    private FakeAdbServer server;
+    private FakeDevice first;
+    private FakeDevice second;
+    private ShardedTarget target;
+
+    public void setUp() throws IOException {
+        server = new FakeAdbServer("first", "second");
+        AdbClient adb = new AdbClient(mock(Log.class), "127.0.0.1", server.getPort(), null);
+        first = new FakeDevice(adb.forDevice("first"));
+        second = new FakeDevice(adb.forDevice("second"));
+        target = new ShardedTarget(mock(Log.class), Arrays.<Target>asList(first, second), 1);
+    }
+
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    public void test_actions_should_be_spread_across_devices() throws Exception {
+        assertTrue(target.acquire(new File("/tmp/run/a"), 0));
+        assertTrue(target.acquire(new File("/tmp/run/b"), 0));
+        assertEquals(Collections.singletonList("/tmp/run/a"), target.targetProcessPrefix(
+                new File("/tmp/run/a")));
+        assertEquals(Collections.singletonList("/tmp/run/b"), target.targetProcessPrefix(
+                new File("/tmp/run/b")));
+        assertEquals(Collections.singletonList("/tmp/run/a"), first.prefixes);
+        assertEquals(Collections.singletonList("/tmp/run/b"), second.prefixes);
+    }
+
+    public void test_acquire_should_wait_for_a_free_device() throws Exception {
+        target.acquire(new File("/tmp/run/a"), 0);
+        target.acquire(new File("/tmp/run/b"), 0);
+        Thread waiting = new Thread() {
+            @Override public void run() {
+                target.acquire(new File("/tmp/run/c"), 0);
+            }
+        };
+        waiting.start();
+        while (waiting.getState() != Thread.State.WAITING) {
+            Thread.sleep(5);
+        }
+
+        target.release(new File("/tmp/run/b"));
+        waiting.join();
+        target.targetProcessPrefix(new File("/tmp/run/c"));
+        assertEquals(Arrays.asList("/tmp/run/c"), second.prefixes);
+    }
+
+    public void test_heavier_devices_should_run_more_actions() {
+        target = new ShardedTarget(mock(Log.class), Arrays.<Target>asList(first, second),
+                Arrays.asList(1, 2), 1);
+        assertEquals(3, target.getMaxConcurrentActions());
+        for (String name : Arrays.asList("a", "b", "c")) {
+            File userDir = new File("/tmp/run", name);
+            target.acquire(userDir, 0);
+            target.targetProcessPrefix(userDir);
+        }
+        assertEquals(Arrays.asList("/tmp/run/a"), first.prefixes);
+        assertEquals(Arrays.asList("/tmp/run/b", "/tmp/run/c"), second.prefixes);
+    }
+
+    public void test_actions_should_go_where_they_will_finish_first() {
+        target = new ShardedTarget(mock(Log.class), Arrays.<Target>asList(first, second), 2);
+        long[] estimates = { 1000, 100, 100, 100 };
+        for (int i = 0; i < estimates.length; i++) {
+            File userDir = new File("/tmp/run", "action" + i);
+            target.acquire(userDir, estimates[i]);
+            target.targetProcessPrefix(userDir);
+        }
+        // the long action gets a device to itself until the other is full
+        assertEquals(Arrays.asList("/tmp/run/action0", "/tmp/run/action3"), first.prefixes);
+        assertEquals(Arrays.asList("/tmp/run/action1", "/tmp/run/action2"), second.prefixes);
+    }
+
+    public void test_files_should_be_installed_on_every_device() {
+        target.mkdirs(new File("/tmp/run/a"));
+        assertEquals(1, server.getShellCommands("first").size());
+        assertEquals(1, server.getShellCommands("second").size());
+    }
+
+    public void test_each_device_should_get_its_own_push_in_its_own_lane() throws Exception {
+        List<Task> pushes = new ArrayList<Task>(target.pushTasks(
+                new File("/tmp/run/a.jar"), new File("/tmp/run/device/a.jar")));
+        assertEquals(2, pushes.size());
+        assertEquals("push /tmp/run/device/a.jar to first", pushes.get(0).toString());
+        assertEquals("push /tmp/run/device/a.jar to second", pushes.get(1).toString());
+        assertEquals(Resource.TRANSFER, pushes.get(0).getResource());
+        assertNotNull(pushes.get(0).getLane());
+        assertNotSame(pushes.get(0).getLane(), pushes.get(1).getLane());
+    }
+
+    public void test_lost_device_should_be_skipped_by_installs() {
+        server.disconnect("first");
+        target.mkdirs(new File("/tmp/run/a"));
+        assertEquals(0, server.getShellCommands("first").size());
+        assertEquals(1, server.getShellCommands("second").size());
+
+        // actions are no longer placed on the lost device
+        target.acquire(new File("/tmp/run/b"), 0);
+        target.targetProcessPrefix(new File("/tmp/run/b"));
+        assertEquals(Collections.singletonList("/tmp/run/b"), second.prefixes);
+    }
+
+    public void test_actions_on_a_lost_device_should_move_to_another() {
+        File userDir = new File("/tmp/run/a");
+        target.acquire(userDir, 0);
+        assertFalse(target.reassign(userDir)); // the device is still there
+
+        server.disconnect("first");
+        assertTrue(target.reassign(userDir));
+        target.targetProcessPrefix(userDir);
+        assertEquals(Collections.singletonList("/tmp/run/a"), second.prefixes);
+
+        server.disconnect("second");
+        assertFalse(target.reassign(userDir));
+        assertFalse(target.acquire(new File("/tmp/run/b"), 0));
+    }
+
+    /**
+     * A device behind the fake adb server. Its process prefix is just the
+     * working directory, so tests can see which device runs each action.
+     */
+    private static class FakeDevice extends Target {
+        private final AdbClient adb;
+        private final DeviceFilesystem deviceFilesystem;
+        private final List<String> prefixes = new ArrayList<String>();
+
+        FakeDevice(AdbClient adb) {
+            this.adb = adb;
+            this.deviceFilesystem = new DeviceFilesystem(adb);
+        }
+
+        @Override public List<String> targetProcessPrefix(File workingDirectory) {
+            prefixes.add(workingDirectory.getPath());
+            return Collections.singletonList(workingDirectory.getPath());
+        }
+
+        @Override public File defaultDeviceDir() {
+            return new File("/tmp/vogar");
+        }
+
+        @Override public String getDeviceUserName() {
+            return adb.getSerial();
+        }
+
+        @Override public List<File> ls(File directory) throws FileNotFoundException {
+            return deviceFilesystem.ls(directory);
+        }
+
+        @Override public void await(File nonEmptyDirectory) {
+        }
+
+        @Override public void rm(File file) {
+            deviceFilesystem.rm(file);
+        }
+
+        @Override public void mkdirs(File file) {
+            // creates nothing; the fake devices share this host's file system
+            adb.shell("true");
+        }
+
+        @Override public void forwardTcp(int port) {
+            adb.forwardTcp(port);
+        }
+
+        @Override public void push(File local, File remote) {
+            adb.push(local, remote);
+        }
+
+        @Override public void pull(File remote, File local) {
+            adb.pull(remote, local);
+        }
+
+        @Override public boolean isAvailable() {
+            return adb.isOnline();
+        }
+
+        @Override public String toString() {
+            return adb.getSerial();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vogar;
+
+import com.google.caliper.Param;
+import com.google.caliper.Runner;
+import com.google.caliper.SimpleBenchmark;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import vogar.commands.Mkdir;
+import vogar.tasks.Resource;
+import vogar.tasks.Task;
+import vogar.tasks.TaskDurationStore;
+import vogar.tasks.TaskQueue;
+
+/**
+ * Measures the task queue's scheduling overhead. Tasks do no work, so the time
+ * is spent promoting and dispatching tasks. The task graph mirrors the one
+ * built by {@link Driver}: five chained tasks per action, all gated on a
+ * shared prepare task and followed by a shutdown task.
+ */
+public final class TaskQueueBenchmark extends SimpleBenchmark {
+    private static final int TASKS_PER_ACTION = 5;
+
+    @Param({"1000", "10000", "100000"}) int taskCount;
+
+    private final Console console = new Console.StreamingConsole();
+    private final TaskDurationStore taskDurationStore = new TaskDurationStore(
+            console, new Mkdir(console), new File("/dev/null"));
+
+    private final Map<Resource, Integer> limits = new EnumMap<Resource, Integer>(Resource.class);
+    {
+        for (Resource resource : Resource.values()) {
+            limits.put(resource, Vogar.NUM_PROCESSORS);
+        }
+    }
+
+    public void timeRunTasks(int reps) {
+        for (int i = 0; i < reps; i++) {
+            TaskQueue taskQueue = new TaskQueue(console, limits, taskDurationStore);
+
+            Task prepare = new NoOpTask("prepare target");
+            taskQueue.enqueue(prepare);
+            for (int a = 0; a < taskCount / TASKS_PER_ACTION; a++) {
+                Task build = new NoOpTask("build " + a).afterSuccess(prepare);
+                Task prepareUserDir = new NoOpTask("prepare user dir " + a).after(prepare);
+                Task execute = new NoOpTask("execute " + a)
+                        .afterSuccess(build)
+                        .afterSuccess(prepareUserDir);
+                Task retrieveFiles = new NoOpTask("retrieve files " + a).after(execute);
+                Task rm = new NoOpTask("rm " + a).after(execute).after(retrieveFiles);
+                taskQueue.enqueue(build);
+                taskQueue.enqueue(prepareUserDir);
+                taskQueue.enqueue(execute);
+                taskQueue.enqueue(retrieveFiles);
+                taskQueue.enqueue(rm);
+            }
+            List<Task> shutdownTasks = new ArrayList<Task>();
+            shutdownTasks.add(new NoOpTask("shutdown").after(taskQueue.getTasks()));
+            taskQueue.enqueueAll(shutdownTasks);
+
+            taskQueue.runTasks();
+        }
+    }
+
+    private static class NoOpTask extends Task {
+        NoOpTask(String name) {
+            super(name);
+        }
+
+        @Override protected Result execute() {
+            return Result.SUCCESS;
+        }
+    }
+
+    public static void main(String[] args) {
+        Runner.main(TaskQueueBenchmark.class, args);
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vogar.android;
+
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeoutException;
+import junit.framework.TestCase;
+import static org.mockito.Mockito.mock;
+import vogar.Log;
+import vogar.commands.CommandFailedException;
+
+public class AdbClientTest extends TestCase {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private FakeAdbServer server;
+    private AdbClient client;
+    private File tmp;
+
+    public void setUp() throws IOException {
+        server = new FakeAdbServer("emulator-5554");
+        client = new AdbClient(mock(Log.class), "127.0.0.1", server.getPort(), null);
+        tmp = Files.createTempDir();
+    }
+
+    public void tearDown() throws IOException {
+        server.close();
+        Files.deleteRecursively(tmp.getCanonicalFile());
+    }
+
+    public void test_shell_should_return_output_lines() {
+        assertEquals(Arrays.asList("hello", "world"), client.shell("echo hello; echo world"));
+    }
+
+    public void test_shell_should_throw_for_non_zero_exit_status() {
+        try {
+            client.shell("echo oops; false");
+            fail();
+        } catch (CommandFailedException e) {
+            assertEquals(Collections.singletonList("oops"), e.getOutputLines());
+        }
+        assertEquals(Collections.<String>emptyList(), client.execute("false", true));
+    }
+
+    public void test_shell_should_time_out_when_the_device_stops_answering()
+            throws TimeoutException {
+        long start = System.currentTimeMillis();
+        try {
+            client.executeWithTimeout("sleep 10", true, 1);
+            fail();
+        } catch (TimeoutException expected) {
+        }
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertEquals(Arrays.asList("hello"), client.executeWithTimeout("echo hello", false, 5));
+    }
+
+    public void test_push_and_pull_should_copy_a_file() throws IOException {
+        File local = new File(tmp, "local.txt");
+        Files.write("hello device", local, UTF_8);
+        File remote = new File(tmp, "device/a/remote.txt");
+
+        client.push(local, remote);
+        assertEquals("hello device", Files.toString(remote, UTF_8));
+
+        File pulled = new File(tmp, "pulled");
+        pulled.mkdirs();
+        client.pull(remote, pulled);
+        assertEquals("hello device", Files.toString(new File(pulled, "remote.txt"), UTF_8));
+    }
+
+    public void test_push_and_pull_should_copy_a_directory() throws IOException {
+        File local = new File(tmp, "local");
+        new File(local, "sub").mkdirs();
+        Files.write("a", new File(local, "a.txt"), UTF_8);
+        Files.write("b", new File(local, "sub/b.txt"), UTF_8);
+        File remote = new File(tmp, "device");
+
+        client.push(local, remote);
+        assertEquals("b", Files.toString(new File(remote, "sub/b.txt"), UTF_8));
+
+        File pulled = new File(tmp, "pulled");
+        client.pull(remote, pulled);
+        assertEquals("a", Files.toString(new File(pulled, "a.txt"), UTF_8));
+        assertEquals("b", Files.toString(new File(pulled, "sub/b.txt"), UTF_8));
+    }
+
+    public void test_file_transfers_should_reuse_a_connection() throws IOException {
+        File local = new File(tmp, "local.txt");
+        Files.write("x", local, UTF_8);
+        for (int i = 0; i < 3; i++) {
+            client.push(local, new File(tmp, "device/" + i + ".txt"));
+        }
+        assertEquals(1, server.getConnectionCount());
+    }
+
+    public void test_pull_should_throw_for_a_missing_file() {
+        try {
+            client.pull(new File(tmp, "missing"), new File(tmp, "pulled"));
+            fail();
+        } catch (CommandFailedException expected) {
+        }
+    }
+
+    public void test_forward_should_forward_the_same_port() {
+        client.forwardTcp(8787);
+        assertEquals(Collections.singletonList("tcp:8787;tcp:8787"), server.getForwards());
+    }
+
+    public void test_devices_should_list_attached_devices() throws IOException {
+        FakeAdbServer twoDevices = new FakeAdbServer("emulator-5554", "emulator-5556");
+        try {
+            AdbClient any = new AdbClient(mock(Log.class), "127.0.0.1", twoDevices.getPort(), null);
+            assertEquals(Arrays.asList("emulator-5554", "emulator-5556"), any.devices());
+
+            AdbClient second = any.forDevice("emulator-5556");
+            assertEquals(Collections.singletonList("hello"), second.shell("echo hello"));
+            assertEquals(1, twoDevices.getShellCommands("emulator-5556").size());
+            assertTrue(twoDevices.getShellCommands("emulator-5554").isEmpty());
+
+            assertTrue(second.isOnline());
+            twoDevices.disconnect("emulator-5556");
+            assertFalse(second.isOnline());
+            assertEquals(Collections.singletonList("emulator-5554"), any.devices());
+        } finally {
+            twoDevices.close();
+        }
+    }
+
+    public void test_missing_device_should_fail() {
+        AdbClient otherDevice = new AdbClient(mock(Log.class), "127.0.0.1", server.getPort(),
+                "emulator-5556");
+        try {
+            otherDevice.shell("true");
+            fail();
+        } catch (CommandFailedException e) {
+            assertEquals(Collections.singletonList("device 'emulator-5556' not found"),
+                    e.getOutputLines());
+        }
+    }
+}
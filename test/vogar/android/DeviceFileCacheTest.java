@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vogar.android;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+import static org.mockito.Mockito.mock;
+import vogar.Log;
+import vogar.commands.CommandFailedException;
+
+public class DeviceFileCacheTest extends TestCase {
+    private final Log log = mock(Log.class);
+    private File tmp;
+    private DeviceFilesystem deviceFilesystem;
+    private DeviceFileCache cache;
+
+    public void setUp() throws IOException {
+        tmp = Files.createTempDir().getCanonicalFile();
+        deviceFilesystem = new DeviceFilesystem(new LocalShell());
+        cache = new DeviceFileCache(log, new File(tmp, "runner"), deviceFilesystem);
+    }
+
+    public void tearDown() throws IOException {
+        Files.deleteRecursively(tmp);
+    }
+
+    public void test_a_stored_file_should_be_a_hit_with_the_same_content() throws IOException {
+        File source = write("pushed", "abc");
+        assertFalse(cache.existsInCache("key"));
+        cache.copyToCache(source, "key");
+        assertTrue(cache.existsInCache("key"));
+
+        File destination = new File(tmp, "restored");
+        cache.copyFromCache("key", destination);
+        assertEquals("abc", read(destination));
+    }
+
+    public void test_writes_to_cached_files_should_not_change_the_cache() throws IOException {
+        File source = write("pushed", "abc");
+        cache.copyToCache(source, "key");
+        write("pushed", "changed by a test");
+
+        File destination = new File(tmp, "restored");
+        cache.copyFromCache("key", destination);
+        write("restored", "changed by another test");
+
+        File again = new File(tmp, "restored-again");
+        cache.copyFromCache("key", again);
+        assertEquals("abc", read(again));
+    }
+
+    public void test_unknown_keys_should_miss() {
+        assertFalse(cache.existsInCache("key"));
+        assertFalse(new DeviceFileCache(log, new File(tmp, "runner"), deviceFilesystem)
+                .existsInCache("key"));
+    }
+
+    public void test_stored_keys_should_be_read_from_the_index() throws IOException {
+        cache.copyToCache(write("pushed", "abc"), "key");
+        DeviceFileCache reopened = new DeviceFileCache(log, new File(tmp, "runner"),
+                deviceFilesystem);
+        assertTrue(reopened.existsInCache("key"));
+        assertFalse(reopened.existsInCache("other"));
+    }
+
+    public void test_an_indexed_key_without_a_blob_should_be_stored_again() throws IOException {
+        cache.copyToCache(write("pushed", "abc"), "key");
+        assertTrue(new File(tmp, "runner/md5-cache/key").delete());
+
+        DeviceFileCache reopened = new DeviceFileCache(log, new File(tmp, "runner"),
+                deviceFilesystem);
+        assertTrue(reopened.existsInCache("key"));
+        try {
+            reopened.copyFromCache("key", new File(tmp, "restored"));
+            fail();
+        } catch (CommandFailedException expected) {
+        }
+        assertFalse(reopened.existsInCache("key"));
+
+        reopened.copyToCache(new File(tmp, "pushed"), "key");
+        reopened.copyFromCache("key", new File(tmp, "restored"));
+        assertEquals("abc", read(new File(tmp, "restored")));
+    }
+
+    private File write(String name, String content) throws IOException {
+        File file = new File(tmp, name);
+        Files.write(content, file, Charsets.UTF_8);
+        return file;
+    }
+
+    private String read(File file) throws IOException {
+        return Files.toString(file, Charsets.UTF_8);
+    }
+
+    /**
+     * Runs scripts in the local shell.
+     */
+    private static class LocalShell implements DeviceFilesystem.Shell {
+        public List<String> execute(String command, boolean permitNonZeroExitStatus) {
+            try {
+                Process process = new ProcessBuilder("sh", "-c", command)
+                        .redirectErrorStream(true)
+                        .start();
+                List<String> output = new ArrayList<String>();
+                for (String line : new String(
+                        ByteStreams.toByteArray(process.getInputStream()),
+                        "UTF-8").split("\n")) {
+                    if (line.length() > 0) {
+                        output.add(line);
+                    }
+                }
+                process.waitFor();
+                return output;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
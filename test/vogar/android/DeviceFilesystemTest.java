@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vogar.android;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+import vogar.commands.CommandFailedException;
+
+public class DeviceFilesystemTest extends TestCase {
+    private File tmp;
+    private LocalShell shell;
+    private DeviceFilesystem deviceFilesystem;
+
+    public void setUp() throws IOException {
+        tmp = Files.createTempDir().getCanonicalFile();
+        shell = new LocalShell();
+        deviceFilesystem = new DeviceFilesystem(shell);
+    }
+
+    public void tearDown() throws IOException {
+        Files.deleteRecursively(tmp);
+    }
+
+    public void test_mkdirs_should_create_parents_in_one_round_trip() {
+        File dir = new File(tmp, "a/b/c");
+        deviceFilesystem.mkdirs(dir);
+        assertTrue(dir.isDirectory());
+        assertEquals(1, shell.invocations.get());
+
+        deviceFilesystem.mkdirs(dir);
+        assertEquals(1, shell.invocations.get());
+    }
+
+    public void test_rm_should_ignore_missing_files() {
+        deviceFilesystem.rm(new File(tmp, "missing"));
+    }
+
+    public void test_mv_should_report_its_own_failure() {
+        try {
+            deviceFilesystem.mv(new File(tmp, "missing"), new File(tmp, "moved"));
+            fail();
+        } catch (CommandFailedException e) {
+            assertFalse(e.getOutputLines().isEmpty());
+        }
+    }
+
+    public void test_concurrent_operations_should_share_a_round_trip() throws Exception {
+        final CountDownLatch firstScriptStarted = new CountDownLatch(1);
+        final CountDownLatch finishFirstScript = new CountDownLatch(1);
+        shell.firstScriptStarted = firstScriptStarted;
+        shell.finishFirstScript = finishFirstScript;
+
+        Thread first = new Thread() {
+            @Override public void run() {
+                deviceFilesystem.mkdirs(new File(tmp, "first"));
+            }
+        };
+        first.start();
+        firstScriptStarted.await();
+
+        // these queue up while the first script runs
+        List<Thread> waiting = new ArrayList<Thread>();
+        for (int i = 0; i < 4; i++) {
+            final File dir = new File(tmp, "dir" + i + "/sub");
+            Thread thread = new Thread() {
+                @Override public void run() {
+                    deviceFilesystem.mkdirs(dir);
+                }
+            };
+            thread.start();
+            waiting.add(thread);
+        }
+        for (Thread thread : waiting) {
+            while (thread.getState() != Thread.State.WAITING) {
+                Thread.sleep(5);
+            }
+        }
+
+        finishFirstScript.countDown();
+        first.join();
+        for (Thread thread : waiting) {
+            thread.join();
+        }
+
+        assertEquals(2, shell.invocations.get());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(new File(tmp, "dir" + i + "/sub").isDirectory());
+        }
+    }
+
+    /**
+     * Runs scripts in the local shell.
+     */
+    private static class LocalShell implements DeviceFilesystem.Shell {
+        private final AtomicInteger invocations = new AtomicInteger();
+        private volatile CountDownLatch firstScriptStarted;
+        private volatile CountDownLatch finishFirstScript;
+
+        public List<String> execute(String command, boolean permitNonZeroExitStatus) {
+            if (invocations.incrementAndGet() == 1 && firstScriptStarted != null) {
+                firstScriptStarted.countDown();
+                try {
+                    finishFirstScript.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            try {
+                Process process = new ProcessBuilder("sh", "-c", command)
+                        .redirectErrorStream(true)
+                        .start();
+                List<String> output = new ArrayList<String>();
+                for (String line : new String(
+                        ByteStreams.toByteArray(process.getInputStream()),
+                        "UTF-8").split("\n")) {
+                    if (line.length() > 0) {
+                        output.add(line);
+                    }
+                }
+                process.waitFor();
+                return output;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vogar.android;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A stand-in for the adb server and its devices. Every device is this host:
+ * shell commands run in the local shell and file transfers read and write
+ * local files.
+ */
+public final class FakeAdbServer {
+    private final Set<String> serials = Collections.synchronizedSet(new LinkedHashSet<String>());
+    private final ServerSocket serverSocket;
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private final List<String> forwards = Collections.synchronizedList(new ArrayList<String>());
+    private final Map<String, List<String>> shellCommands
+            = Collections.synchronizedMap(new HashMap<String, List<String>>());
+
+    public FakeAdbServer(String... serials) throws IOException {
+        Collections.addAll(this.serials, serials);
+        this.serverSocket = new ServerSocket(0);
+        Thread acceptThread = new Thread("fake adb server") {
+            @Override public void run() {
+                try {
+                    while (true) {
+                        final Socket socket = serverSocket.accept();
+                        connectionCount.incrementAndGet();
+                        new Thread("fake adb connection") {
+                            @Override public void run() {
+                                try {
+                                    serve(socket);
+                                } catch (IOException ignored) {
+                                } finally {
+                                    close(socket);
+                                }
+                            }
+                        }.start();
+                    }
+                } catch (IOException closed) {
+                }
+            }
+        };
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    public List<String> getForwards() {
+        return forwards;
+    }
+
+    /**
+     * Returns the shell commands run on the device with {@code serial}.
+     */
+    public List<String> getShellCommands(String serial) {
+        List<String> result = shellCommands.get(serial);
+        return result != null ? result : Collections.<String>emptyList();
+    }
+
+    /**
+     * Simulates unplugging the device with {@code serial}.
+     */
+    public void disconnect(String serial) {
+        serials.remove(serial);
+    }
+
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+
+    private void serve(Socket socket) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+
+        String request = readRequest(in);
+        if (request.equals("host:devices")) {
+            StringBuilder devices = new StringBuilder();
+            for (String serial : serials.toArray(new String[0])) {
+                devices.append(serial).append("\tdevice\n");
+            }
+            okay(out);
+            out.write(String.format("%04x", devices.length()).getBytes("UTF-8"));
+            out.write(devices.toString().getBytes("UTF-8"));
+            out.flush();
+            return;
+        }
+        if (request.startsWith("host:forward:") || request.startsWith("host-serial:")) {
+            forwards.add(request.substring(request.indexOf("forward:") + "forward:".length()));
+            out.write("OKAYOKAY".getBytes("UTF-8"));
+            out.flush();
+            return;
+        }
+
+        String serial;
+        if (request.equals("host:transport-any") && serials.size() == 1) {
+            serial = serials.iterator().next();
+        } else if (request.startsWith("host:transport:")) {
+            serial = request.substring("host:transport:".length());
+        } else {
+            fail(out, "more than one device");
+            return;
+        }
+        if (!serials.contains(serial)) {
+            fail(out, "device '" + serial + "' not found");
+            return;
+        }
+        okay(out);
+
+        String service = readRequest(in);
+        if (service.startsWith("shell:")) {
+            okay(out);
+            String command = service.substring("shell:".length());
+            synchronized (shellCommands) {
+                List<String> commands = shellCommands.get(serial);
+                if (commands == null) {
+                    commands = new ArrayList<String>();
+                    shellCommands.put(serial, commands);
+                }
+                commands.add(command);
+            }
+            shell(command, out);
+        } else if (service.equals("remount:")) {
+            okay(out);
+            out.write("remount succeeded\n".getBytes("UTF-8"));
+        } else if (service.equals("sync:")) {
+            okay(out);
+            sync(in, out);
+        } else {
+            fail(out, "unknown service " + service);
+        }
+        out.flush();
+    }
+
+    private void shell(String command, OutputStream out) throws IOException {
+        Process process = new ProcessBuilder("sh", "-c", command)
+                .redirectErrorStream(true)
+                .start();
+        InputStream processOut = process.getInputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = processOut.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+    }
+
+    private void sync(DataInputStream in, OutputStream out) throws IOException {
+        while (true) {
+            String id = readString(in, 4);
+            int length = readInt(in);
+            if (id.equals("QUIT")) {
+                return;
+            }
+            File file = new File(readString(in, length));
+            if (id.equals("SEND")) {
+                file = new File(file.getPath().substring(0, file.getPath().lastIndexOf(',')));
+                file.getParentFile().mkdirs();
+                OutputStream fileOut = new FileOutputStream(file);
+                while (true) {
+                    String chunkId = readString(in, 4);
+                    int chunkLength = readInt(in);
+                    if (chunkId.equals("DONE")) {
+                        break;
+                    }
+                    byte[] chunk = new byte[chunkLength];
+                    in.readFully(chunk);
+                    fileOut.write(chunk);
+                }
+                fileOut.close();
+                writeMessage(out, "OKAY", 0);
+            } else if (id.equals("RECV")) {
+                if (!file.isFile()) {
+                    byte[] message = "No such file or directory".getBytes("UTF-8");
+                    writeMessage(out, "FAIL", message.length);
+                    out.write(message);
+                    out.flush();
+                    return;
+                }
+                InputStream fileIn = new FileInputStream(file);
+                byte[] buffer = new byte[64 * 1024];
+                int count;
+                while ((count = fileIn.read(buffer)) != -1) {
+                    writeMessage(out, "DATA", count);
+                    out.write(buffer, 0, count);
+                }
+                fileIn.close();
+                writeMessage(out, "DONE", 0);
+            } else if (id.equals("STAT")) {
+                writeMessage(out, "STAT", mode(file));
+                writeInt(out, (int) file.length());
+                writeInt(out, (int) (file.lastModified() / 1000));
+            } else if (id.equals("LIST")) {
+                List<String> names = new ArrayList<String>();
+                names.add(".");
+                names.add("..");
+                String[] children = file.list();
+                if (children != null) {
+                    Collections.addAll(names, children);
+                }
+                for (String name : names) {
+                    File child = new File(file, name);
+                    byte[] nameBytes = name.getBytes("UTF-8");
+                    writeMessage(out, "DENT", mode(child));
+                    writeInt(out, (int) child.length());
+                    writeInt(out, (int) (child.lastModified() / 1000));
+                    writeInt(out, nameBytes.length);
+                    out.write(nameBytes);
+                }
+                out.write("DONE".getBytes("UTF-8"));
+                out.write(new byte[16]);
+            } else {
+                return;
+            }
+            out.flush();
+        }
+    }
+
+    private static int mode(File file) {
+        if (file.isDirectory()) {
+            return 0040755;
+        } else if (file.isFile()) {
+            return 0100644;
+        } else {
+            return 0;
+        }
+    }
+
+    private static String readRequest(DataInputStream in) throws IOException {
+        int length = Integer.parseInt(readString(in, 4), 16);
+        return readString(in, length);
+    }
+
+    private static String readString(DataInputStream in, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static int readInt(DataInputStream in) throws IOException {
+        int result = 0;
+        for (int i = 0; i < 4; i++) {
+            result |= in.readUnsignedByte() << (8 * i);
+        }
+        return result;
+    }
+
+    private static void writeMessage(OutputStream out, String id, int value) throws IOException {
+        out.write(id.getBytes("UTF-8"));
+        writeInt(out, value);
+    }
+
+    private static void writeInt(OutputStream out, int value) throws IOException {
+        for (int i = 0; i < 4; i++) {
+            out.write(value >>> (8 * i));
+        }
+    }
+
+    private static void okay(OutputStream out) throws IOException {
+        out.write("OKAY".getBytes("UTF-8"));
+        out.flush();
+    }
+
+    private static void fail(OutputStream out, String message) throws IOException {
+        byte[] bytes = message.getBytes("UTF-8");
+        out.write(("FAIL" + String.format("%04x", bytes.length)).getBytes("UTF-8"));
+        out.write(bytes);
+        out.flush();
+    }
+
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
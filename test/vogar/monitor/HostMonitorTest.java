@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vogar.monitor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import junit.framework.TestCase;
+import static org.mockito.Mockito.mock;
+import vogar.Log;
+import vogar.Outcome;
+import vogar.Result;
+import vogar.commands.Command;
+
+public class HostMonitorTest extends TestCase {
+    private static final int PORT = 8799;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final RecordingHandler handler = new RecordingHandler();
+    private final HostMonitor hostMonitor = new HostMonitor(mock(Log.class), handler);
+
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    public void test_targets_that_offer_binary_frames_should_use_them() throws Exception {
+        Future<Boolean> binary = executor.submit(new Callable<Boolean>() {
+            public Boolean call() throws Exception {
+                TargetMonitor monitor = TargetMonitor.await(PORT);
+                monitor.output("before\n");
+                monitor.outcomeStarted(null, "java.util.FooTest#testFoo", "java.util.FooTest");
+                monitor.output("caf\u00e9\n");
+                monitor.outcomeFinished(Result.EXEC_FAILED);
+                monitor.completedNormally(true);
+                monitor.close();
+                return true;
+            }
+        });
+
+        assertTrue(hostMonitor.attach(PORT));
+        assertTrue(binary.get());
+        assertEquals("before\n", handler.printed.toString());
+        assertEquals(1, handler.outcomes.size());
+        Outcome outcome = handler.outcomes.get(0);
+        assertEquals("java.util.FooTest#testFoo", outcome.getName());
+        assertEquals(Result.EXEC_FAILED, outcome.getResult());
+        assertEquals("caf\u00e9\n", outcome.getOutput());
+    }
+
+    public void test_metrics_should_be_reported_with_outcomes() throws Exception {
+        executor.submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                TargetMonitor monitor = TargetMonitor.await(PORT);
+                monitor.outcomeStarted(null, "java.util.FooTest#testFoo", "java.util.FooTest");
+                Map<String, Long> metrics = new LinkedHashMap<String, Long>();
+                metrics.put(Outcome.WALL_NANOS, 2500000L);
+                metrics.put(Outcome.CPU_NANOS, 1000000L);
+                monitor.outcomeFinished(Result.SUCCESS, metrics);
+                monitor.completedNormally(true);
+                monitor.close();
+                return null;
+            }
+        });
+
+        assertTrue(hostMonitor.attach(PORT));
+        Outcome outcome = handler.outcomes.get(0);
+        assertEquals(2, outcome.getDurationMillis());
+        assertEquals(Long.valueOf(1000000L), outcome.getMetrics().get(Outcome.CPU_NANOS));
+    }
+
+    public void test_targets_that_dont_offer_should_use_text() throws Exception {
+        executor.submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                ServerSocket serverSocket = new ServerSocket(PORT);
+                serverSocket.setReuseAddress(true);
+                Socket socket = serverSocket.accept();
+                OutputStream out = socket.getOutputStream();
+                out.write(("//00xx{\"outcome\":\"Main\"}\nhello\n"
+                        + "//00xx{\"result\":\"SUCCESS\"}\n"
+                        + "//00xx{\"completedNormally\":true}\n").getBytes("UTF-8"));
+                socket.close();
+                serverSocket.close();
+                return null;
+            }
+        });
+
+        assertTrue(hostMonitor.attach(PORT));
+        assertEquals(1, handler.outcomes.size());
+        assertEquals("Main", handler.outcomes.get(0).getName());
+        assertEquals("hello\n", handler.outcomes.get(0).getOutput());
+    }
+
+    public void test_actions_that_end_early_should_not_complete_normally() throws IOException {
+        executor.submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                TargetMonitor monitor = TargetMonitor.await(PORT);
+                monitor.outcomeStarted(null, "Main", "Main");
+                monitor.close();
+                return null;
+            }
+        });
+
+        assertFalse(hostMonitor.attach(PORT));
+        assertEquals(0, handler.outcomes.size());
+        assertEquals("Main", handler.lastStarted);
+    }
+
+    public void test_targets_that_exit_before_listening_should_not_be_retried()
+            throws Exception {
+        Command command = new Command.Builder(mock(Log.class))
+                .args("false")
+                .permitNonZeroExitStatus()
+                .build();
+        command.start();
+        command.gatherOutput();
+
+        assertFalse(hostMonitor.attach(PORT, command));
+        assertEquals(0, handler.outcomes.size());
+    }
+
+    static class RecordingHandler implements HostMonitor.Handler {
+        final List<Outcome> outcomes = new ArrayList<Outcome>();
+        final StringBuilder printed = new StringBuilder();
+        String lastStarted;
+
+        public void start(String outcomeName, String runnerClass) {
+            lastStarted = outcomeName;
+        }
+
+        public void finish(Outcome outcome) {
+            outcomes.add(outcome);
+        }
+
+        public void output(String outcomeName, String output) {
+        }
+
+        public void print(String string) {
+            printed.append(string);
+        }
+    }
+}
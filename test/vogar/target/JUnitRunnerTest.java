@@ -18,8 +18,11 @@ package vogar.target;
 
 import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicReference;
 import junit.framework.TestCase;
+import org.mockito.Matchers;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -74,7 +77,7 @@ public class JUnitRunnerTest extends TestCase {
 
         verify(monitor).outcomeStarted(runner,
                 target.getName() + "#testSimple", "");
-        verify(monitor).outcomeFinished(Result.SUCCESS);
+        verify(monitor).outcomeFinished(eq(Result.SUCCESS), anyMetrics());
     }
 
     public void test_init_and_run_for_SuiteTest_should_perform_tests() {
@@ -90,7 +93,7 @@ public class JUnitRunnerTest extends TestCase {
                 "vogar.target.junit3.SimpleTest2#testSimple2", "");
         verify(monitor).outcomeStarted(runner,
                 "vogar.target.junit3.SimpleTest2#testSimple3", "");
-        verify(monitor, times(4)).outcomeFinished(Result.SUCCESS);
+        verify(monitor, times(4)).outcomeFinished(eq(Result.SUCCESS), anyMetrics());
     }
 
     public void test_init_and_run_for_SimpleTest2_with_ActionName_should_perform_test() {
@@ -105,7 +108,7 @@ public class JUnitRunnerTest extends TestCase {
                 target.getName() + "#testSimple2", actionName);
         verify(monitor).outcomeStarted(runner,
                 target.getName() + "#testSimple3", actionName);
-        verify(monitor, times(3)).outcomeFinished(Result.SUCCESS);
+        verify(monitor, times(3)).outcomeFinished(eq(Result.SUCCESS), anyMetrics());
     }
 
     public void test_init_and_run_for_SimpleTest2_limitting_to_1method_should_perform_test() {
@@ -116,7 +119,7 @@ public class JUnitRunnerTest extends TestCase {
 
         verify(monitor).outcomeStarted(runner,
                 target.getName() + "#testSimple2", actionName);
-        verify(monitor).outcomeFinished(Result.SUCCESS);
+        verify(monitor).outcomeFinished(eq(Result.SUCCESS), anyMetrics());
     }
 
     public void test_init_and_run_for_SimpleTest2_limitting_to_2methods_should_perform_test() {
@@ -129,7 +132,7 @@ public class JUnitRunnerTest extends TestCase {
                 target.getName() + "#testSimple2", actionName);
         verify(monitor).outcomeStarted(runner,
                 target.getName() + "#testSimple3", actionName);
-        verify(monitor, times(2)).outcomeFinished(Result.SUCCESS);
+        verify(monitor, times(2)).outcomeFinished(eq(Result.SUCCESS), anyMetrics());
     }
 
     public void test_init_limitting_to_1method_and_run_for_SimpleTest2_should_perform_test() {
@@ -140,7 +143,21 @@ public class JUnitRunnerTest extends TestCase {
 
         verify(monitor).outcomeStarted(runner,
                 target.getName() + "#testSimple2", actionName);
-        verify(monitor).outcomeFinished(Result.SUCCESS);
+        verify(monitor).outcomeFinished(eq(Result.SUCCESS), anyMetrics());
+    }
+
+    public void test_init_limitting_to_2methods_and_run_for_SimpleTest2_should_perform_tests() {
+        Class<?> target = SimpleTest2.class;
+        String actionName = "actionName";
+        runner.init(monitor, actionName, "testSimple1,testSimple3", target, skipPastReference,
+                testEnvironment, 0, false);
+        runner.run("", null, null);
+
+        verify(monitor).outcomeStarted(runner,
+                target.getName() + "#testSimple1", actionName);
+        verify(monitor).outcomeStarted(runner,
+                target.getName() + "#testSimple3", actionName);
+        verify(monitor, times(2)).outcomeFinished(eq(Result.SUCCESS), anyMetrics());
     }
 
     // JUnit3 can't perform test by indicating test method in test suite
@@ -166,7 +183,7 @@ public class JUnitRunnerTest extends TestCase {
 
         verify(monitor).outcomeStarted(runner,
                 target.getName() + "#testSimple5", actionName);
-        verify(monitor).outcomeFinished(Result.EXEC_FAILED);
+        verify(monitor).outcomeFinished(eq(Result.EXEC_FAILED), anyMetrics());
 
         String outStr = baos.toString();
         assertTrue(outStr
@@ -182,7 +199,7 @@ public class JUnitRunnerTest extends TestCase {
 
         verify(monitor).outcomeStarted(runner,
                 target.getName() + "#testSimple2", actionName);
-        verify(monitor).outcomeFinished(Result.SUCCESS);
+        verify(monitor).outcomeFinished(eq(Result.SUCCESS), anyMetrics());
     }
 
     public void test_init_and_run_for_FailTest_should_perform_test() {
@@ -201,8 +218,8 @@ public class JUnitRunnerTest extends TestCase {
                 actionName);
         verify(monitor).outcomeStarted(runner,
                 target.getName() + "#testThrowException", actionName);
-        verify(monitor).outcomeFinished(Result.SUCCESS);
-        verify(monitor, times(2)).outcomeFinished(Result.EXEC_FAILED);
+        verify(monitor).outcomeFinished(eq(Result.SUCCESS), anyMetrics());
+        verify(monitor, times(2)).outcomeFinished(eq(Result.EXEC_FAILED), anyMetrics());
 
         String outStr = baos.toString();
         assertTrue(outStr
@@ -222,7 +239,7 @@ public class JUnitRunnerTest extends TestCase {
 
         verify(monitor).outcomeStarted(runner, target.getName() + "#test",
                 actionName);
-        verify(monitor).outcomeFinished(Result.EXEC_FAILED);
+        verify(monitor).outcomeFinished(eq(Result.EXEC_FAILED), anyMetrics());
 
         String outStr = baos.toString();
         assertTrue(outStr.contains("java.util.concurrent.TimeoutException"));
@@ -235,6 +252,13 @@ public class JUnitRunnerTest extends TestCase {
         runner.init(monitor, actionName, null, target, skipPastReference, testEnvironment, 0, false);
         runner.run("", null, null);
 
-        verify(monitor, times(8)).outcomeFinished(Result.SUCCESS);
+        verify(monitor, times(8)).outcomeFinished(eq(Result.SUCCESS), anyMetrics());
+    }
+
+    /**
+     * Matches any metrics, without the unchecked conversion of anyMap().
+     */
+    private static Map<String, Long> anyMetrics() {
+        return Matchers.<Map<String, Long>>any();
     }
 }
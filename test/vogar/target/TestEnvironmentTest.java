@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vogar.target;
+
+import junit.framework.TestCase;
+
+public final class TestEnvironmentTest extends TestCase {
+    private String tmpDir;
+    private String userDir;
+
+    @Override protected void setUp() {
+        tmpDir = System.getProperty("java.io.tmpdir");
+        userDir = System.getProperty("user.dir");
+    }
+
+    @Override protected void tearDown() {
+        System.setProperty("java.io.tmpdir", tmpDir);
+        System.setProperty("user.dir", userDir);
+    }
+
+    public void test_reset_should_restore_each_actions_directories() {
+        TestEnvironment testEnvironment = new TestEnvironment();
+
+        testEnvironment.setTmpDir("/vogar/run/a.FooTest/tmp");
+        testEnvironment.setUserDir("/vogar/run/a.FooTest");
+        System.setProperty("user.dir", "/changed/by/a/test");
+        testEnvironment.reset();
+        assertEquals("/vogar/run/a.FooTest/tmp", System.getProperty("java.io.tmpdir"));
+        assertEquals("/vogar/run/a.FooTest", System.getProperty("user.dir"));
+
+        testEnvironment.setTmpDir("/vogar/run/a.BarTest/tmp");
+        testEnvironment.setUserDir("/vogar/run/a.BarTest");
+        testEnvironment.reset();
+        assertEquals("/vogar/run/a.BarTest/tmp", System.getProperty("java.io.tmpdir"));
+        assertEquals("/vogar/run/a.BarTest", System.getProperty("user.dir"));
+    }
+}
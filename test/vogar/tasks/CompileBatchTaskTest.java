@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vogar.tasks;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Supplier;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import junit.framework.TestCase;
+import static org.mockito.Mockito.mock;
+import vogar.Action;
+import vogar.Log;
+import vogar.commands.InProcessJavac;
+import vogar.commands.Rm;
+
+public class CompileBatchTaskTest extends TestCase {
+    private final Log log = mock(Log.class);
+    private File dir;
+    private File sourceDir;
+    private File classesDir;
+
+    @Override protected void setUp() throws IOException {
+        dir = File.createTempFile("CompileBatchTaskTest", "");
+        dir.delete();
+        sourceDir = new File(dir, "src");
+        classesDir = new File(dir, "classes");
+        sourceDir.mkdirs();
+        classesDir.mkdirs();
+    }
+
+    @Override protected void tearDown() {
+        new Rm(log).file(dir);
+    }
+
+    public void test_a_broken_source_should_not_stop_the_others_compiling_together()
+            throws IOException {
+        Action a = action("A", "class A { B b; }");
+        Action broken = action("Broken", "class Broken { int i = \"not an int\"; }");
+        Action b = action("B", "class B {}");
+        List<Action> batch = new ArrayList<Action>(Arrays.asList(a, broken, b));
+
+        InProcessJavac javac = CompileBatchTask.compileTogether(log, batch, javacs());
+        assertNotNull(javac);
+        assertEquals(Arrays.asList(a, b), batch);
+        assertTrue(new File(classesDir, "A.class").exists());
+        assertTrue(new File(classesDir, "B.class").exists());
+    }
+
+    public void test_an_error_in_a_dependency_should_compile_each_action_alone()
+            throws IOException {
+        write("Dependency", "class Dependency { int i = \"not an int\"; }");
+        Action a = action("A", "class A { Dependency d; }");
+        Action b = action("B", "class B { Dependency d; }");
+        Action c = action("C", "class C {}");
+        List<Action> batch = new ArrayList<Action>(Arrays.asList(a, b, c));
+
+        assertNull(CompileBatchTask.compileTogether(log, batch, javacs()));
+    }
+
+    private Supplier<InProcessJavac> javacs() {
+        return new Supplier<InProcessJavac>() {
+            public InProcessJavac get() {
+                return new InProcessJavac(log)
+                        .sourcepath(Arrays.asList(sourceDir))
+                        .destination(classesDir);
+            }
+        };
+    }
+
+    private Action action(String className, String source) throws IOException {
+        return new Action(className, className, null, sourceDir, write(className, source));
+    }
+
+    private File write(String className, String source) throws IOException {
+        File javaFile = new File(sourceDir, className + ".java");
+        Files.write(source, javaFile, Charsets.UTF_8);
+        return javaFile;
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vogar.tasks;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import junit.framework.TestCase;
+import static org.mockito.Mockito.mock;
+import vogar.Log;
+import vogar.Result;
+import vogar.commands.Mkdir;
+
+public class TaskDurationStoreTest extends TestCase {
+    private final Log log = mock(Log.class);
+    private File tmp;
+    private File file;
+
+    @Override protected void setUp() throws IOException {
+        tmp = Files.createTempDir().getCanonicalFile();
+        file = new File(tmp, "task-durations.json");
+    }
+
+    @Override protected void tearDown() throws IOException {
+        Files.deleteRecursively(tmp);
+    }
+
+    public void test_tasks_that_stop_running_should_be_forgotten() {
+        TaskDurationStore first = newStore();
+        first.record(new NamedTask("build a"), 1000);
+        first.record(new NamedTask("build b"), 3000);
+        first.write();
+
+        // later runs only run b
+        for (int run = 1; run <= TaskDurationStore.MAX_RUNS_UNSEEN; run++) {
+            TaskDurationStore store = newStore();
+            assertEquals(1000, store.estimateMillis(new NamedTask("build a")));
+            store.record(new NamedTask("build b"), 3000);
+            store.write();
+        }
+
+        TaskDurationStore last = newStore();
+        assertEquals(3000, last.estimateMillis(new NamedTask("build a")));
+        assertEquals(3000, last.estimateMillis(new NamedTask("build b")));
+    }
+
+    public void test_durations_without_run_counts_should_be_read() throws IOException {
+        Files.write("{\"build a\": 1000, \"dex a\": 200}", file, Charsets.UTF_8);
+        TaskDurationStore store = newStore();
+        assertEquals(1000, store.estimateMillis(new NamedTask("build a")));
+        assertEquals(200, store.estimateMillis(new NamedTask("dex b")));
+    }
+
+    private TaskDurationStore newStore() {
+        TaskDurationStore store = new TaskDurationStore(log, new Mkdir(log), file);
+        store.read();
+        return store;
+    }
+
+    private static class NamedTask extends Task {
+        NamedTask(String name) {
+            super(name);
+        }
+
+        @Override protected Result execute() {
+            return Result.SUCCESS;
+        }
+    }
+}
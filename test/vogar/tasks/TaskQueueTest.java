@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vogar.tasks;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+import static org.mockito.Mockito.mock;
+import vogar.Console;
+import vogar.Result;
+import vogar.commands.Mkdir;
+
+public class TaskQueueTest extends TestCase {
+    private final Console console = mock(Console.class);
+    private final List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+    private TaskQueue taskQueue;
+
+    public void setUp() {
+        Map<Resource, Integer> limits = new EnumMap<Resource, Integer>(Resource.class);
+        for (Resource resource : Resource.values()) {
+            limits.put(resource, 1);
+        }
+        taskQueue = new TaskQueue(console, limits, new TaskDurationStore(
+                console, new Mkdir(console), new File("/dev/null")));
+    }
+
+    public void test_tasks_to_run_first_should_start_first_with_their_prerequisites() {
+        Task a = new RecordingTask("a");
+        Task bBuild = new RecordingTask("b build");
+        Task b = new RecordingTask("b").afterSuccess(bBuild).runFirst();
+        taskQueue.enqueueAll(Arrays.asList(a, bBuild, b));
+
+        taskQueue.runTasks();
+        assertEquals(Arrays.asList("b build", "b", "a"), ran);
+    }
+
+    public void test_cancel_should_skip_tasks_that_havent_started_except_those_kept() {
+        final Task cleanup = new RecordingTask("cleanup");
+        Task first = new RecordingTask("first") {
+            @Override protected Result execute() {
+                taskQueue.cancel(Collections.singleton(cleanup));
+                return super.execute();
+            }
+        };
+        Task second = new RecordingTask("second").afterSuccess(first);
+        Task third = new RecordingTask("third").afterSuccess(second);
+        cleanup.after(Arrays.asList(first, second, third));
+        taskQueue.enqueueAll(Arrays.asList(first, second, third, cleanup));
+
+        taskQueue.runTasks();
+        assertEquals(Arrays.asList("first", "cleanup"), ran);
+        assertEquals(2, taskQueue.getSkippedTaskCount());
+    }
+
+    public void test_a_full_lane_should_not_hold_up_other_lanes() {
+        Map<Resource, Integer> limits = new EnumMap<Resource, Integer>(Resource.class);
+        for (Resource resource : Resource.values()) {
+            limits.put(resource, 2);
+        }
+        taskQueue = new TaskQueue(console, limits, new TaskDurationStore(
+                console, new Mkdir(console), new File("/dev/null")));
+
+        // the slow lane's tasks come first, and wait for the fast lane's
+        final CountDownLatch fastRan = new CountDownLatch(1);
+        Lane slow = new Lane("slow", 1);
+        Lane fast = new Lane("fast", 1);
+        List<Task> tasks = new ArrayList<Task>();
+        for (int i = 0; i < 3; i++) {
+            tasks.add(new TransferTask("slow " + i, slow) {
+                @Override protected Result execute() {
+                    try {
+                        if (!fastRan.await(10, TimeUnit.SECONDS)) {
+                            return Result.ERROR;
+                        }
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    return super.execute();
+                }
+            });
+        }
+        tasks.add(new TransferTask("fast", fast) {
+            @Override protected Result execute() {
+                fastRan.countDown();
+                return super.execute();
+            }
+        });
+        taskQueue.enqueueAll(tasks);
+
+        taskQueue.runTasks();
+        assertEquals(Arrays.asList("fast", "slow 0", "slow 1", "slow 2"), ran);
+    }
+
+    class TransferTask extends RecordingTask {
+        private final Lane lane;
+
+        TransferTask(String name, Lane lane) {
+            super(name);
+            this.lane = lane;
+        }
+
+        @Override public Resource getResource() {
+            return Resource.TRANSFER;
+        }
+
+        @Override public Lane getLane() {
+            return lane;
+        }
+    }
+
+    class RecordingTask extends Task {
+        RecordingTask(String name) {
+            super(name);
+        }
+
+        @Override protected Result execute() {
+            ran.add(toString());
+            return Result.SUCCESS;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vogar.tasks;
+
+import java.io.IOException;
+import junit.framework.TestCase;
+import static org.mockito.Mockito.mock;
+import vogar.Log;
+import vogar.commands.Command;
+
+public class WorkerPoolTest extends TestCase {
+    private final Log log = mock(Log.class);
+    private WorkerPool pool;
+
+    public void setUp() {
+        pool = new WorkerPool(log, 9000, 2, 10);
+    }
+
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    public void test_each_worker_should_have_its_own_port() {
+        assertEquals(9000, pool.take().getMonitorPort());
+        assertEquals(9001, pool.take().getMonitorPort());
+        try {
+            pool.take();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    public void test_healthy_workers_should_be_reused() throws IOException {
+        TargetWorker worker = pool.take();
+        worker.start(new Command(log, "sleep", "60"));
+        pool.release(worker, true);
+        assertSame(worker, pool.take());
+    }
+
+    public void test_failed_workers_should_be_replaced() throws IOException {
+        TargetWorker worker = pool.take();
+        worker.start(new Command(log, "sleep", "60"));
+        pool.release(worker, false);
+
+        TargetWorker replacement = pool.take();
+        assertNotSame(worker, replacement);
+        assertFalse(replacement.isStarted());
+    }
+
+    public void test_workers_that_exit_while_idle_should_be_replaced() throws Exception {
+        TargetWorker worker = pool.take();
+        worker.start(new Command(log, "true"));
+        pool.release(worker, true);
+        while (!worker.hasExited()) {
+            Thread.sleep(5);
+        }
+        assertNotSame(worker, pool.take());
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vogar.util;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import junit.framework.TestCase;
+
+public class DeterministicJarTest extends TestCase {
+    private static final List<String> FILES = Arrays.asList(
+            "java/util/FooTest.class", "java/util/FooTest$1.class", "java/io/BarTest.class",
+            "java/AbcTest.class", "resources/test.properties");
+
+    private File tmp;
+
+    @Override protected void setUp() throws IOException {
+        tmp = Files.createTempDir().getCanonicalFile();
+    }
+
+    @Override protected void tearDown() throws IOException {
+        Files.deleteRecursively(tmp);
+    }
+
+    public void test_jars_of_the_same_files_should_have_the_same_bytes() throws IOException {
+        File first = new File(tmp, "first");
+        writeFiles(first, FILES, 1300000000000L);
+        File firstJar = new File(tmp, "first.jar");
+        DeterministicJar.create(firstJar, first);
+
+        // created in the opposite order, so directories list them differently, and later
+        List<String> reversed = new ArrayList<String>(FILES);
+        Collections.reverse(reversed);
+        File second = new File(tmp, "second");
+        writeFiles(second, reversed, 1400000000000L);
+        File secondJar = new File(tmp, "second.jar");
+        DeterministicJar.create(secondJar, second);
+
+        assertTrue(Arrays.equals(Files.toByteArray(firstJar), Files.toByteArray(secondJar)));
+    }
+
+    public void test_jars_of_different_files_should_differ() throws IOException {
+        File first = new File(tmp, "first");
+        writeFiles(first, FILES, 1300000000000L);
+        File firstJar = new File(tmp, "first.jar");
+        DeterministicJar.create(firstJar, first);
+
+        Files.write("changed", new File(first, FILES.get(0)), Charsets.UTF_8);
+        File secondJar = new File(tmp, "second.jar");
+        DeterministicJar.create(secondJar, first);
+
+        assertFalse(Arrays.equals(Files.toByteArray(firstJar), Files.toByteArray(secondJar)));
+    }
+
+    public void test_stored_properties_should_keep_their_values() throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("b", "trailing spaces  ");
+        properties.setProperty("a", "  leading spaces");
+        properties.setProperty("c", "");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DeterministicJar.storeProperties(properties, out);
+
+        Properties loaded = new Properties();
+        loaded.load(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(properties, loaded);
+        assertTrue(new String(out.toByteArray(), "ISO-8859-1").startsWith("a="));
+    }
+
+    /**
+     * Writes each of {@code names} under {@code directory}, with content
+     * derived from its name, and stamps them and their directories with
+     * {@code lastModified}.
+     */
+    private void writeFiles(File directory, List<String> names, long lastModified)
+            throws IOException {
+        for (String name : names) {
+            File file = new File(directory, name);
+            file.getParentFile().mkdirs();
+            Files.write("contents of " + name, file, Charsets.UTF_8);
+            assertTrue(file.setLastModified(lastModified));
+            for (File parent = file.getParentFile(); !parent.equals(directory);
+                    parent = parent.getParentFile()) {
+                assertTrue(parent.setLastModified(lastModified));
+            }
+        }
+    }
+}